@@ -0,0 +1,309 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Service detection stage that runs beside the port sweep. The engine hands
+ * over each freshly connected channel instead of closing it; this stage
+ * waits for the service to speak first (SSH, SMTP, FTP...), and if it stays
+ * silent sends a minimal HTTP request, which most other services answer in
+ * some recognisable way. Whatever comes back is matched against
+ * ServiceSignatures.
+ *
+ * Ports in the TLS set get a TLS handshake instead (see TlsInspector),
+ * driven by the same loop: the selector moves the records and the engine's
+ * delegated tasks run on TlsInspector's pool, coming back through the
+ * resumed queue when they are done.
+ *
+ * Everything runs on one selector thread with a DeadlineWheel for the read
+ * deadlines, and responses are read into a small pool of direct buffers, so
+ * thousands of open ports cost neither threads nor garbage. Adopting a
+ * channel never blocks the sweep: past MAX_QUEUED pending grabs, channels
+ * are simply closed unexamined.
+ */
+class BannerGrabber {
+    private static final int BUFFER_SIZE = 2048;
+    private static final int MAX_ACTIVE = 256;
+    private static final int MAX_QUEUED = 4096;
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SLOTS = 512;
+    // Once the first bytes are in, how long to wait for the rest of the banner
+    private static final long SETTLE_MILLIS = 150;
+    private static final byte[] HTTP_PROBE = "GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ScanListener listener;
+    private final long timeoutMillis;
+    private final Selector selector;
+    private final Thread thread;
+    private final PortSet tlsPorts;
+    private final ConcurrentLinkedQueue<Grab> incoming = new ConcurrentLinkedQueue<>();
+    // TLS grabs whose delegated tasks have finished, to be stepped again
+    private final ConcurrentLinkedQueue<Grab> resumed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final byte[] scratch = new byte[BUFFER_SIZE];
+    private int active;
+    private volatile boolean finishing;
+    private volatile boolean cancelled;
+
+    private static final class Grab extends DeadlineWheel.Entry {
+        final int ip;
+        final int port;
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer buffer;
+        TlsInspector.Handshake tls;
+        boolean probed;
+        boolean settling;
+
+        Grab(int ip, int port, SocketChannel channel) {
+            this.ip = ip;
+            this.port = port;
+            this.channel = channel;
+        }
+    }
+
+    // timeoutMillis is how long a service gets to answer, both before and after the probe,
+    // or to complete a TLS handshake; tlsPorts may be null to read banners everywhere
+    BannerGrabber(ScanListener listener, long timeoutMillis, PortSet tlsPorts) throws IOException {
+        this.listener = listener;
+        this.timeoutMillis = timeoutMillis;
+        this.tlsPorts = tlsPorts;
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, "banner-grabber");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Takes ownership of a connected channel; false if it was closed instead
+    boolean adopt(int ip, int port, SocketChannel channel) {
+        if (cancelled || finishing || pending.incrementAndGet() > MAX_QUEUED) {
+            pending.decrementAndGet();
+            return false;
+        }
+        Grab grab = new Grab(ip, port, channel);
+        incoming.offer(grab);
+        if (cancelled && incoming.remove(grab)) {
+            // Lost a race with the grabber shutting down; the caller keeps the channel
+            pending.decrementAndGet();
+            return false;
+        }
+        selector.wakeup();
+        return true;
+    }
+
+    // Channels handed over and not yet closed
+    int getPending() {
+        return pending.get();
+    }
+
+    // Lets the grabs already handed over run to completion, then stops
+    void finish() throws InterruptedException {
+        finishing = true;
+        selector.wakeup();
+        thread.join();
+    }
+
+    void cancel() {
+        cancelled = true;
+        selector.wakeup();
+    }
+
+    private void run() {
+        DeadlineWheel<Grab> wheel = new DeadlineWheel<>(TICK_MILLIS, WHEEL_SLOTS, nowMillis());
+        try {
+            while (!cancelled) {
+                admit(wheel);
+                Grab ready;
+                while ((ready = resumed.poll()) != null) {
+                    // Skip grabs that timed out while their tasks ran
+                    if (ready.key.isValid()) {
+                        tlsStep(ready, wheel);
+                    }
+                }
+                if (finishing && pending.get() == 0) {
+                    break;
+                }
+                selector.select(wheel.millisUntilNextTick(nowMillis()));
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Grab grab = (Grab) key.attachment();
+                    if (grab.tls != null) {
+                        tlsStep(grab, wheel);
+                    } else if (key.isReadable()) {
+                        read(grab, wheel);
+                    }
+                }
+                wheel.expire(nowMillis(), grab -> deadline(grab, wheel));
+            }
+        } catch (IOException e) {
+            System.err.println("Banner grabber failed: " + e.getMessage());
+        } finally {
+            // Refuse new channels first, then close every one still held
+            cancelled = true;
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    closeQuietly(((Grab) key.attachment()).channel);
+                    pending.decrementAndGet();
+                }
+            }
+            Grab grab;
+            while ((grab = incoming.poll()) != null) {
+                closeQuietly(grab.channel);
+                pending.decrementAndGet();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing useful to do with a failed close
+            }
+        }
+    }
+
+    // Starts waiting on handed-over channels, up to MAX_ACTIVE at a time
+    private void admit(DeadlineWheel<Grab> wheel) {
+        Grab grab;
+        while (active < MAX_ACTIVE && (grab = incoming.poll()) != null) {
+            try {
+                if (grab.channel.isBlocking()) {
+                    grab.channel.configureBlocking(false);
+                }
+                boolean tls = tlsPorts != null && tlsPorts.contains(grab.port);
+                if (tls) {
+                    grab.tls = new TlsInspector.Handshake(grab.ip, grab.port);
+                }
+                grab.key = grab.channel.register(selector, tls ? 0 : SelectionKey.OP_READ, grab);
+                if (!tls) {
+                    grab.buffer = takeBuffer();
+                }
+                active++;
+                wheel.schedule(grab, nowMillis() + timeoutMillis);
+                if (tls) {
+                    // The client speaks first in TLS
+                    tlsStep(grab, wheel);
+                }
+            } catch (IOException e) {
+                closeQuietly(grab.channel);
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void read(Grab grab, DeadlineWheel<Grab> wheel) {
+        try {
+            int n = grab.channel.read(grab.buffer);
+            if (n < 0 || !grab.buffer.hasRemaining()) {
+                done(grab, wheel);
+            } else if (n > 0 && !grab.settling) {
+                grab.settling = true;
+                wheel.schedule(grab, nowMillis() + SETTLE_MILLIS);
+            }
+        } catch (IOException e) {
+            done(grab, wheel);
+        }
+    }
+
+    private void tlsStep(Grab grab, DeadlineWheel<Grab> wheel) {
+        TlsInspector.Handshake tls = grab.tls;
+        try {
+            int ops = tls.step(grab.channel, () -> {
+                resumed.offer(grab);
+                selector.wakeup();
+            });
+            if (ops == TlsInspector.DONE) {
+                tlsDone(grab, wheel, tls.result());
+                return;
+            }
+            grab.key.interestOps(ops);
+            if (tls.isAwaitingTicket() && !grab.settling) {
+                // Handshake done; give the session ticket a moment to arrive
+                grab.settling = true;
+                wheel.schedule(grab, nowMillis() + SETTLE_MILLIS);
+            }
+        } catch (IOException e) {
+            tlsDone(grab, wheel, tls.failed(e));
+        }
+    }
+
+    private void tlsDone(Grab grab, DeadlineWheel<Grab> wheel, TlsInspector.Result result) {
+        release(grab, wheel);
+        if (result.isHandshaken()) {
+            listener.serviceIdentified(grab.ip, grab.port, result.toMatch(grab.port));
+        }
+        listener.tlsInspected(grab.ip, grab.port, result);
+    }
+
+    private void deadline(Grab grab, DeadlineWheel<Grab> wheel) {
+        if (grab.tls != null) {
+            tlsDone(grab, wheel, grab.tls.timedOut());
+            return;
+        }
+        if (grab.probed || grab.buffer.position() > 0) {
+            done(grab, wheel);
+            return;
+        }
+        // Silent so far: the service expects the client to talk first
+        grab.probed = true;
+        try {
+            grab.channel.write(ByteBuffer.wrap(HTTP_PROBE));
+            wheel.schedule(grab, nowMillis() + timeoutMillis);
+        } catch (IOException e) {
+            done(grab, wheel);
+        }
+    }
+
+    private void done(Grab grab, DeadlineWheel<Grab> wheel) {
+        release(grab, wheel);
+        ByteBuffer buffer = grab.buffer;
+        buffer.flip();
+        int length = buffer.remaining();
+        buffer.get(scratch, 0, length);
+        buffer.clear();
+        buffers.push(buffer);
+        if (length > 0) {
+            listener.serviceIdentified(grab.ip, grab.port, ServiceSignatures.match(scratch, length));
+        }
+    }
+
+    private void release(Grab grab, DeadlineWheel<Grab> wheel) {
+        wheel.cancel(grab);
+        grab.key.cancel();
+        closeQuietly(grab.channel);
+        active--;
+        pending.decrementAndGet();
+    }
+
+    // Direct buffers let the socket read skip the JDK's temporary copy
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing useful to do with a failed close
+        }
+    }
+
+    private static long nowMillis() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
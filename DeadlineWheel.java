@@ -0,0 +1,104 @@
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for connect/read deadlines. Scheduling and cancelling
+ * are O(1) (entries are intrusive list nodes), and expiry only walks the
+ * slots that elapsed since the last call, so thousands of pending probes
+ * cost nothing while they wait.
+ */
+class DeadlineWheel<T extends DeadlineWheel.Entry> {
+
+    // Extend this to make an object schedulable on the wheel
+    static class Entry {
+        long deadline;
+        Entry prev, next;
+        int slot = -1;
+
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tickMillis;
+    private final Entry[] heads;
+    private final int mask;
+    private long currentTick;
+    private int size;
+
+    DeadlineWheel(long tickMillis, int slots, long nowMillis) {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("slots must be a power of two");
+        }
+        this.tickMillis = tickMillis;
+        this.heads = new Entry[slots];
+        this.mask = slots - 1;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    void schedule(T entry, long deadlineMillis) {
+        if (entry.isScheduled()) {
+            cancel(entry);
+        }
+        // Never schedule into a slot that has already been swept
+        long tick = Math.max(deadlineMillis / tickMillis, currentTick);
+        int slot = (int) (tick & mask);
+        entry.deadline = deadlineMillis;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = heads[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        heads[slot] = entry;
+        size++;
+    }
+
+    void cancel(Entry entry) {
+        if (!entry.isScheduled()) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            heads[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = entry.next = null;
+        entry.slot = -1;
+        size--;
+    }
+
+    // Removes and reports every entry whose deadline is at or before nowMillis
+    @SuppressWarnings("unchecked")
+    void expire(long nowMillis, Consumer<T> onExpired) {
+        long nowTick = nowMillis / tickMillis;
+        // One full turn visits every slot, so there's no point sweeping further
+        long from = Math.max(currentTick, nowTick - mask);
+        for (long tick = from; tick <= nowTick; tick++) {
+            Entry e = heads[(int) (tick & mask)];
+            while (e != null) {
+                Entry next = e.next;
+                if (e.deadline <= nowMillis) {
+                    cancel(e);
+                    onExpired.accept((T) e);
+                }
+                e = next;
+            }
+        }
+        currentTick = nowTick;
+    }
+
+    // How long a selector may sleep before the wheel needs attention again
+    long millisUntilNextTick(long nowMillis) {
+        if (size == 0) {
+            return 0;
+        }
+        return Math.max(1, tickMillis - (nowMillis % tickMillis));
+    }
+
+    int size() {
+        return size;
+    }
+}
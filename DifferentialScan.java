@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * "Re-scan changed only": instead of sweeping the whole range again, probe
+ * each previously scanned host's known-open ports plus a random sample of
+ * the ports it had closed, and report what flipped. Hosts the store has
+ * never seen are left for a full scan.
+ */
+class DifferentialScan {
+    private final ScanResultStore store;
+    private final Map<Integer, int[]> plan = new LinkedHashMap<>();
+    private final ConcurrentLinkedQueue<Long> opened = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Long> closed = new ConcurrentLinkedQueue<>();
+    // Packed probe with bit 48 set when the port answered open
+    private final ConcurrentLinkedQueue<Long> probed = new ConcurrentLinkedQueue<>();
+    private static final long OPEN_BIT = 1L << 48;
+    private long unknownHosts;
+
+    DifferentialScan(ScanResultStore store, TargetSpec targets, int closedSamplePerHost, long seed) {
+        this.store = store;
+        Random random = new Random(seed);
+        TargetSpec.Iterator it = targets.iterator();
+        while (it.hasNext()) {
+            int ip = it.next();
+            if (!store.hasHost(ip)) {
+                unknownHosts++;
+                continue;
+            }
+            plan.put(ip, planHost(ip, closedSamplePerHost, random));
+        }
+    }
+
+    Map<Integer, int[]> getPlan() {
+        return plan;
+    }
+
+    long getUnknownHosts() {
+        return unknownHosts;
+    }
+
+    // Engine threads: compare one probe against what the store remembers
+    void record(int ip, int port, ProbeOutcome outcome) {
+        long probe = ProbeSource.pack(ip, port);
+        boolean wasOpen = store.wasOpen(ip, port);
+        if (outcome == ProbeOutcome.OPEN) {
+            probed.offer(probe | OPEN_BIT);
+            if (!wasOpen) {
+                opened.offer(probe);
+            }
+        } else if (outcome == ProbeOutcome.CLOSED || outcome == ProbeOutcome.FILTERED) {
+            // Errors say nothing about the port, so they don't count as a change
+            probed.offer(probe);
+            if (wasOpen) {
+                closed.offer(probe);
+            }
+        }
+    }
+
+    List<Long> getOpened() {
+        return new ArrayList<>(opened);
+    }
+
+    List<Long> getClosed() {
+        return new ArrayList<>(closed);
+    }
+
+    // Writes the re-probed ports back to the store
+    void applyTo(long scannedAt) {
+        for (long result : probed) {
+            long probe = result & ~OPEN_BIT;
+            store.update(ProbeSource.ipOf(probe), ProbeSource.portOf(probe), (result & OPEN_BIT) != 0, scannedAt);
+        }
+    }
+
+    private int[] planHost(int ip, int closedSample, Random random) {
+        int[] open = store.openPorts(ip);
+        int[] covered = store.scannedPorts(ip);
+        int closedCount = covered.length - open.length;
+        int sample = Math.min(closedSample, Math.max(0, closedCount));
+
+        int[] ports = Arrays.copyOf(open, open.length + sample);
+        if (sample == 0) {
+            return ports;
+        }
+        // Partial Fisher-Yates over the covered ports, skipping the open ones
+        int[] pool = covered.clone();
+        int n = open.length;
+        for (int i = 0; i < pool.length && n < ports.length; i++) {
+            int j = i + random.nextInt(pool.length - i);
+            int tmp = pool[i];
+            pool[i] = pool[j];
+            pool[j] = tmp;
+            if (Arrays.binarySearch(open, pool[i]) < 0) {
+                ports[n++] = pool[i];
+            }
+        }
+        return Arrays.copyOf(ports, n);
+    }
+}
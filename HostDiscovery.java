@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cheap pre-pass that finds which hosts are up before the full port sweep.
+ * Each host gets a connect probe on a handful of high-yield ports (a RST
+ * counts too: something answered), and hosts that stayed silent get an
+ * InetAddress.isReachable check, which uses ICMP echo when the JVM is
+ * allowed to and falls back to TCP port 7 otherwise. Given a shared
+ * ProbeBudget, both passes draw their in-flight slots from it at the
+ * scan's priority.
+ */
+class HostDiscovery {
+    // Ports most likely to get any answer (open or refused) from a live host
+    static final int[] PROBE_PORTS = {80, 443, 22, 445, 3389, 139, 135, 21, 25, 53, 8080, 23};
+    private static final int PING_THREADS = 64;
+
+    private final ScanConfig config;
+    private final ProbeBudget budget;
+    private final ScanScheduler.Priority priority;
+    private final Set<Integer> live = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    private volatile ScanEngine tcpPass;
+    private volatile ExecutorService pingPool;
+    private volatile Thread pinger;
+    private long elapsedMillis;
+
+    // budget may be null for a scan that has the machine to itself
+    HostDiscovery(ScanConfig config, ProbeBudget budget, ScanScheduler.Priority priority) {
+        this.config = config;
+        this.budget = budget;
+        this.priority = priority;
+    }
+
+    // Blocks until discovery is done; returns the live hosts in target order
+    int[] run() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        runTcpPass();
+        if (!cancelled && config.isDiscoveryPing()) {
+            runPingPass();
+        }
+        elapsedMillis = System.currentTimeMillis() - start;
+
+        int[] result = new int[Math.max(16, live.size())];
+        int n = 0;
+        TargetSpec.Iterator it = config.getTargets().iterator();
+        while (it.hasNext() && n < live.size()) {
+            int ip = it.next();
+            if (live.contains(ip)) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n * 2);
+                }
+                result[n++] = ip;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    void cancel() {
+        cancelled = true;
+        ScanEngine engine = tcpPass;
+        if (engine != null) {
+            engine.cancel();
+        }
+        ExecutorService pool = pingPool;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        Thread t = pinger;
+        if (t != null) {
+            // Unblocks a wait for a budget slot
+            t.interrupt();
+        }
+    }
+
+    long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    private void runTcpPass() throws InterruptedException {
+        ScanConfig tcp = config.copy();
+        tcp.setPorts(PROBE_PORTS);
+        tcp.setMode(ScanEngine.Mode.SELECTOR);
+        tcp.setHostDiscovery(false);
+        tcp.setUdp(false);
+        tcp.setServiceDetection(false);
+        tcp.setCheckpointFile(null);
+        tcp.setWorkers(0);
+        tcp.setCoordinatorPort(0);
+        // Most targets are unknown at this point, so there's nothing to adapt from
+        tcp.setAdaptiveTimeout(false);
+
+        ScanEngine engine = new ScanEngine(tcp, new ScanListener() {
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome) {
+                if (outcome == ProbeOutcome.OPEN || outcome == ProbeOutcome.CLOSED) {
+                    live.add(ip);
+                }
+            }
+
+            @Override
+            public void scanFinished(boolean cancelled) {
+            }
+        });
+        if (budget != null) {
+            engine.setBudget(budget, priority);
+        }
+        tcpPass = engine;
+        if (cancelled) {
+            return;
+        }
+        engine.start();
+        engine.awaitTermination();
+        tcpPass = null;
+    }
+
+    private void runPingPass() throws InterruptedException {
+        long silent = config.getTargets().size() - live.size();
+        if (silent <= 0) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool((int) Math.min(PING_THREADS, silent), r -> {
+            Thread t = new Thread(r, "scan-discovery");
+            t.setDaemon(true);
+            return t;
+        });
+        pingPool = pool;
+        // Each ping holds one slot while it runs
+        ProbeBudget.Lease lease = budget != null ? budget.lease(priority, null) : null;
+        pinger = Thread.currentThread();
+        int timeout = config.getTimeoutMillis();
+        // Keeps the pool's queue short however large the target range is
+        Semaphore queued = new Semaphore(PING_THREADS * 4);
+        try {
+            TargetSpec.Iterator it = config.getTargets().iterator();
+            while (it.hasNext() && !cancelled) {
+                int ip = it.next();
+                if (live.contains(ip)) {
+                    continue;
+                }
+                if (!acquire(queued)) {
+                    break;
+                }
+                if (lease != null) {
+                    budget.acquire(lease);
+                }
+                try {
+                    pool.execute(() -> {
+                        try {
+                            if (!cancelled && Ipv4.toInetAddress(ip).isReachable(timeout)) {
+                                live.add(ip);
+                            }
+                        } catch (IOException e) {
+                            // Treat as unreachable
+                        } finally {
+                            if (lease != null) {
+                                budget.release(lease, 1);
+                            }
+                            queued.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // cancel() shut the pool down under us
+                    break;
+                }
+            }
+            pool.shutdown();
+            while (!cancelled && !pool.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+                // cancel() shuts the pool down from the other side
+            }
+        } finally {
+            pinger = null;
+            pingPool = null;
+            if (lease != null) {
+                // Also returns the slots of pings that were queued but never ran
+                budget.close(lease);
+            }
+        }
+    }
+
+    // Waits for a queue slot, giving up if discovery is cancelled meanwhile
+    private boolean acquire(Semaphore queued) throws InterruptedException {
+        while (!queued.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+            if (cancelled) {
+                return false;
+            }
+        }
+        return !cancelled;
+    }
+}
@@ -0,0 +1,40 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+// Helpers for IPv4 addresses packed into a single int (network byte order)
+final class Ipv4 {
+    private Ipv4() {
+    }
+
+    static int toInt(InetAddress address) {
+        if (!(address instanceof Inet4Address)) {
+            throw new IllegalArgumentException("Only IPv4 addresses are supported: " + address);
+        }
+        byte[] b = address.getAddress();
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+    }
+
+    static int resolve(String host) throws UnknownHostException {
+        return toInt(InetAddress.getByName(host));
+    }
+
+    static InetAddress toInetAddress(int ip) {
+        byte[] b = {(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+        try {
+            return InetAddress.getByAddress(b);
+        } catch (UnknownHostException e) {
+            // Only thrown for a wrong-length array
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static InetSocketAddress socketAddress(int ip, int port) {
+        return new InetSocketAddress(toInetAddress(ip), port);
+    }
+
+    static String toString(int ip) {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+    }
+}
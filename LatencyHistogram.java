@@ -0,0 +1,117 @@
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HDR-style latency histogram: log-linear buckets over microseconds, 128
+ * linear sub-buckets per power of two, so any recorded value is known to
+ * within 0.8% from 1 us up to an hour while the whole thing stays a fixed
+ * 3,287 counters. Recording is one array increment and never allocates or
+ * locks, so every probe thread can record directly; readers see a slightly
+ * moving picture, which is fine for display and export.
+ *
+ * Bucket layout: values below 256 us get one bucket each; above that, each
+ * power-of-two range [2^k, 2^(k+1)) is split into 128 equal buckets.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final long MAX_MICROS = 3_600_000_000L; // one hour; anything longer is clamped
+    private static final int BUCKETS = index(MAX_MICROS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long elapsedNanos) {
+        long micros = Math.min(MAX_MICROS, Math.max(0, elapsedNanos / 1000));
+        counts.incrementAndGet(index(micros));
+        total.increment();
+        sumMicros.add(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // Another thread raised it first; try again against the new max
+        }
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    double meanMillis() {
+        long n = total.sum();
+        return n == 0 ? 0 : sumMicros.sum() / 1000.0 / n;
+    }
+
+    double maxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    // Smallest bucket value at or below which percentile% of the values lie, in ms
+    double percentileMillis(double percentile) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return maxMillis();
+    }
+
+    /**
+     * Writes the percentile distribution in the layout of HdrHistogram's
+     * .hgrm output (Value in ms, Percentile, TotalCount, 1/(1-Percentile)),
+     * which the usual HdrHistogram plotters read directly.
+     */
+    void writePercentiles(PrintWriter out) {
+        out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        long n = total.sum();
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && n > 0; i++) {
+            long c = counts.get(i);
+            if (c == 0) {
+                continue;
+            }
+            seen += c;
+            double fraction = Math.min(1.0, (double) seen / n);
+            double value = Math.min(highestEquivalent(i), maxMicros.get()) / 1000.0;
+            if (fraction < 1.0) {
+                out.printf("%12.3f %2.12f %10d %14.2f%n", value, fraction, seen, 1 / (1 - fraction));
+            } else {
+                out.printf("%12.3f %2.12f %10d%n", value, fraction, seen);
+            }
+        }
+        out.printf("#[Mean    = %12.3f, Max            = %12.3f]%n", meanMillis(), maxMillis());
+        out.printf("#[Total count    = %12d]%n", n);
+        out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", BUCKETS, SUB_BUCKETS);
+    }
+
+    private static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        // Shift so the value keeps SUB_BUCKET_BITS significant bits, in [HALF, SUB_BUCKETS)
+        int shift = 64 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        int sub = (int) (micros >>> shift);
+        return SUB_BUCKETS + (shift - 1) * HALF + (sub - HALF);
+    }
+
+    // Largest value that lands in bucket i
+    private static long highestEquivalent(int i) {
+        if (i < SUB_BUCKETS) {
+            return i;
+        }
+        int shift = (i - SUB_BUCKETS) / HALF + 1;
+        long sub = HALF + (i - SUB_BUCKETS) % HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -3,24 +3,81 @@ import javax.swing.border.*;
 import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.net.*;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 class NetworkScannerPanel extends JPanel {
+    // Closed ports re-checked per host by "Re-scan changed only"
+    private static final int CLOSED_SAMPLE_PER_HOST = 20;
+    private static final String TOP_20 = "Top 20 Ports (most often open)";
+    private static final String TOP_RANKED = "All Ranked Ports (most often open first)";
+    // Probes in flight across the foreground scan and every queued job together
+    private static final int SHARED_PROBE_BUDGET = 4096;
+    private static final int MAX_RUNNING_JOBS = 3;
+
+    // What the scan history dialog searches for
+    private enum HistoryQuery {
+        PORT("Hosts that had port open", "3389"),
+        SERVICE("Hosts that ran service", "ssh"),
+        HOST("Changes on host", "10.0.4.17");
+
+        private final String label;
+        private final String example;
+
+        HistoryQuery(String label, String example) {
+            this.label = label;
+            this.example = example;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
     private JTextField ipRangeField;
-    private JTextField startPortField, endPortField;
-    private JButton scanButton, stopButton;
+    private JTextField portsField;
+    private JCheckBox frequencyOrderCheck;
+    private JButton scanButton, stopButton, resumeButton, latencyButton, historyButton;
     private JTextArea logArea;
     private JTable resultTable;
-    private DefaultTableModel tableModel;
+    private ScanResultsModel resultsModel;
+    private JTextField resultFilterField;
+    private JLabel resultCountLabel;
     private JProgressBar progressBar;
     private JComboBox<String> commonPortsCombo;
     private JTextArea portInfoArea;
+    private JComboBox<ScanEngine.Mode> engineModeCombo;
+    private JComboBox<String> protocolCombo;
+    private JTextField maxInFlightField;
+    private JTextField workersField;
+    private JCheckBox adaptiveTimeoutCheck;
+    private JCheckBox hostDiscoveryCheck;
+    private JCheckBox changedOnlyCheck;
+    private JCheckBox serviceDetectionCheck;
+    private JTextField maxRateField, perHostInFlightField, perHostRateField;
+    private JLabel engineStatusLabel;
+    private JLabel scanStatsLabel;
+    private javax.swing.Timer refreshTimer;
+    private final PortServiceTable serviceTable = PortServiceTable.get();
+    private final ScanEventBuffer events = new ScanEventBuffer();
+    private volatile ScanProgress progress = new ScanProgress();
+    private long lastStatsNanos;
     private boolean scanning = false;
-    private ExecutorService executor;
+    private ScanEngine engine;
+    private final ScanScheduler scheduler = new ScanScheduler(SHARED_PROBE_BUDGET, MAX_RUNNING_JOBS);
+    private JComboBox<ScanScheduler.Priority> jobPriorityCombo;
+    private DefaultTableModel jobsModel;
+    private JTable jobsTable;
+    private JLabel budgetLabel;
+    private javax.swing.Timer jobsTimer;
+    private final Object historyLock = new Object();
+    private ScanHistory history;
 
     public NetworkScannerPanel(Color primary, Color secondary, Color accent,
                                Color danger, Color bgColor, Color cardColor) {
@@ -67,7 +124,7 @@ class NetworkScannerPanel extends JPanel {
                 "• Closed ports mean no service is listening\n\n" +
                 " SCANNING TIPS:\n" +
                 "• Start with common ports (1-1000) for basic scan\n" +
-                "• Use specific IP ranges like 192.168.1.1-50\n" +
+                "• Use specific IP ranges like 192.168.1.1-50 or 192.168.1.0/26\n" +
                 "• Scan your own network first for practice");
         tipsArea.setFont(new Font("Segoe UI", Font.PLAIN, 13));
         tipsArea.setEditable(false);
@@ -80,7 +137,7 @@ class NetworkScannerPanel extends JPanel {
         tipsPanel.add(new JScrollPane(tipsArea), BorderLayout.CENTER);
 
         // Input panel - LARGER and better organized
-        JPanel inputPanel = createCardPanel(cardColor, 850, 200);
+        JPanel inputPanel = createCardPanel(cardColor, 850, 350);
         inputPanel.setLayout(new GridBagLayout());
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.insets = new Insets(8, 10, 8, 10);
@@ -89,7 +146,7 @@ class NetworkScannerPanel extends JPanel {
 
         // IP Range
         gbc.gridx = 0; gbc.gridy = 0;
-        JLabel ipLabel = new JLabel("IP Range (e.g., 192.168.1.1-100):");
+        JLabel ipLabel = new JLabel("Targets (e.g., 192.168.1.1-100, 10.0.0.0/24):");
         ipLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
         inputPanel.add(ipLabel, gbc);
 
@@ -108,6 +165,8 @@ class NetworkScannerPanel extends JPanel {
         String[] commonPortOptions = {
                 "Custom Range",
                 "Common Ports (1-1000)",
+                TOP_20,
+                TOP_RANKED,
                 "Web Services (80,443,8080)",
                 "Network Services (21,22,23,25,53)",
                 "All Ports (1-65535)"
@@ -119,7 +178,7 @@ class NetworkScannerPanel extends JPanel {
 
         // Port Range
         gbc.gridx = 0; gbc.gridy = 2;
-        JLabel portLabel = new JLabel("Port Range:");
+        JLabel portLabel = new JLabel("Ports:");
         portLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
         inputPanel.add(portLabel, gbc);
 
@@ -127,32 +186,157 @@ class NetworkScannerPanel extends JPanel {
         JPanel portPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 0));
         portPanel.setOpaque(false);
 
-        startPortField = new JTextField("1", 6);
-        endPortField = new JTextField("1000", 6);
-        styleTextField(startPortField);
-        styleTextField(endPortField);
+        portsField = new JTextField("1-1000", 18);
+        styleTextField(portsField);
+        portsField.setToolTipText("Ports and ranges, with ! to exclude - e.g. 1-1024,3306,8000-8100,!25");
+
+        portPanel.add(portsField);
 
-        portPanel.add(startPortField);
-        portPanel.add(new JLabel("   to   "));
-        portPanel.add(endPortField);
+        frequencyOrderCheck = new JCheckBox("Most likely ports first", true);
+        frequencyOrderCheck.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        frequencyOrderCheck.setOpaque(false);
+        frequencyOrderCheck.setToolTipText("Probe ports in order of how often they are found open, "
+                + "so most findings show up early");
+        portPanel.add(frequencyOrderCheck);
         inputPanel.add(portPanel, gbc);
 
+        // Scan engine
+        gbc.gridx = 0; gbc.gridy = 3;
+        JLabel engineLabel = new JLabel("Protocol / Engine / Max In-Flight:");
+        engineLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        inputPanel.add(engineLabel, gbc);
+
+        gbc.gridx = 1; gbc.gridy = 3;
+        JPanel enginePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 0));
+        enginePanel.setOpaque(false);
+
+        protocolCombo = new JComboBox<>(new String[]{"TCP", "UDP"});
+        protocolCombo.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        protocolCombo.setBackground(Color.WHITE);
+        protocolCombo.setPreferredSize(new Dimension(80, 35));
+        protocolCombo.setToolTipText("UDP sends a service request to each port; silence is reported as open|filtered");
+
+        engineModeCombo = new JComboBox<>(ScanEngine.Mode.values());
+        engineModeCombo.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        engineModeCombo.setBackground(Color.WHITE);
+        engineModeCombo.setPreferredSize(new Dimension(220, 35));
+        maxInFlightField = new JTextField("1024", 6);
+        styleTextField(maxInFlightField);
+        maxInFlightField.setPreferredSize(new Dimension(100, 35));
+
+        JLabel workersLabel = new JLabel("Worker JVMs:");
+        workersLabel.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        workersField = new JTextField("0", 3);
+        styleTextField(workersField);
+        workersField.setPreferredSize(new Dimension(60, 35));
+        workersField.setToolTipText("Split the sweep across this many worker processes "
+                + "(each with its own socket budget); 0 = scan in this process");
+
+        adaptiveTimeoutCheck = new JCheckBox("Adaptive timeout", true);
+        adaptiveTimeoutCheck.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        adaptiveTimeoutCheck.setOpaque(false);
+        adaptiveTimeoutCheck.setToolTipText("Derive each host's timeout from its measured round-trip time");
+
+        enginePanel.add(protocolCombo);
+        enginePanel.add(engineModeCombo);
+        enginePanel.add(maxInFlightField);
+        enginePanel.add(workersLabel);
+        enginePanel.add(workersField);
+        inputPanel.add(enginePanel, gbc);
+
+        // Scan options
+        gbc.gridx = 0; gbc.gridy = 4;
+        JLabel optionsLabel = new JLabel("Options:");
+        optionsLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        inputPanel.add(optionsLabel, gbc);
+
+        gbc.gridx = 1; gbc.gridy = 4;
+        JPanel optionsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 0));
+        optionsPanel.setOpaque(false);
+
+        hostDiscoveryCheck = new JCheckBox("Discover live hosts first", false);
+        hostDiscoveryCheck.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        hostDiscoveryCheck.setOpaque(false);
+        hostDiscoveryCheck.setToolTipText("Probe a few common ports (and ping) per host, then sweep only hosts that answer");
+
+        changedOnlyCheck = new JCheckBox("Re-scan changed only", false);
+        changedOnlyCheck.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        changedOnlyCheck.setOpaque(false);
+        changedOnlyCheck.setToolTipText("Re-check known open ports plus a sample of closed ones on hosts "
+                + "scanned before, and report what changed");
+
+        optionsPanel.add(adaptiveTimeoutCheck);
+        optionsPanel.add(hostDiscoveryCheck);
+        serviceDetectionCheck = new JCheckBox("Detect services", false);
+        serviceDetectionCheck.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        serviceDetectionCheck.setOpaque(false);
+        serviceDetectionCheck.setToolTipText("Read each open port's banner to identify the real service and version");
+
+        optionsPanel.add(changedOnlyCheck);
+        optionsPanel.add(serviceDetectionCheck);
+        inputPanel.add(optionsPanel, gbc);
+
+        // Rate limits (0 = unlimited)
+        gbc.gridx = 0; gbc.gridy = 5;
+        JLabel rateLabel = new JLabel("Rate Limits (0 = off):");
+        rateLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        inputPanel.add(rateLabel, gbc);
+
+        gbc.gridx = 1; gbc.gridy = 5;
+        JPanel ratePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 0));
+        ratePanel.setOpaque(false);
+
+        maxRateField = new JTextField("0", 6);
+        perHostInFlightField = new JTextField("0", 4);
+        perHostRateField = new JTextField("0", 6);
+        for (JTextField field : new JTextField[]{maxRateField, perHostInFlightField, perHostRateField}) {
+            styleTextField(field);
+            field.setPreferredSize(new Dimension(80, 35));
+        }
+        maxRateField.setToolTipText("Probes per second across the whole scan");
+        perHostInFlightField.setToolTipText("Concurrent probes against any one host");
+        perHostRateField.setToolTipText("Probes per second against any one host");
+
+        ratePanel.add(new JLabel("Probes/s:"));
+        ratePanel.add(maxRateField);
+        ratePanel.add(new JLabel("Per host in flight:"));
+        ratePanel.add(perHostInFlightField);
+        ratePanel.add(new JLabel("Per host/s:"));
+        ratePanel.add(perHostRateField);
+        inputPanel.add(ratePanel, gbc);
+
         // Buttons
-        gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 2;
+        gbc.gridx = 0; gbc.gridy = 6; gbc.gridwidth = 2;
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 0));
         buttonPanel.setOpaque(false);
 
         scanButton = new JButton(" Start Scan");
         stopButton = new JButton(" Stop Scan");
+        resumeButton = new JButton(" Resume");
+        latencyButton = new JButton(" Latency");
+        historyButton = new JButton(" History");
         styleButton(scanButton, accent);
         styleButton(stopButton, danger);
+        styleButton(resumeButton, secondary);
+        styleButton(latencyButton, primary);
+        styleButton(historyButton, primary);
         stopButton.setEnabled(false);
+        resumeButton.setEnabled(checkpointFile().isFile());
+        resumeButton.setToolTipText("Continue the last stopped scan from its saved checkpoint");
+        latencyButton.setToolTipText("Connect latency percentiles per outcome, for tuning timeouts and concurrency");
+        historyButton.setToolTipText("Search every completed scan: who had a port open, what changed on a host");
 
         scanButton.addActionListener(e -> startScan());
         stopButton.addActionListener(e -> stopScan());
+        resumeButton.addActionListener(e -> resumeScan());
+        latencyButton.addActionListener(e -> showLatency());
+        historyButton.addActionListener(e -> showHistory());
 
         buttonPanel.add(scanButton);
         buttonPanel.add(stopButton);
+        buttonPanel.add(resumeButton);
+        buttonPanel.add(latencyButton);
+        buttonPanel.add(historyButton);
         inputPanel.add(buttonPanel, gbc);
 
         // Progress bar
@@ -161,6 +345,16 @@ class NetworkScannerPanel extends JPanel {
         progressBar.setVisible(false);
         progressBar.setPreferredSize(new Dimension(800, 25));
 
+        // Live engine status. Results, log lines and progress are all drained
+        // from the scan threads by one ~15 Hz timer while a scan runs.
+        engineStatusLabel = new JLabel(" ");
+        engineStatusLabel.setFont(new Font("Consolas", Font.PLAIN, 12));
+        engineStatusLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        scanStatsLabel = new JLabel(" ");
+        scanStatsLabel.setFont(new Font("Consolas", Font.PLAIN, 12));
+        scanStatsLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        refreshTimer = new javax.swing.Timer(66, e -> refreshScanView());
+
         // Port Information Panel - LARGER and scrollable
         JPanel portInfoPanel = createCardPanel(cardColor, 850, 220);
         portInfoPanel.setLayout(new BorderLayout());
@@ -184,23 +378,78 @@ class NetworkScannerPanel extends JPanel {
         portInfoPanel.add(portInfoTitle, BorderLayout.NORTH);
         portInfoPanel.add(portInfoScroll, BorderLayout.CENTER);
 
-        // Results table - LARGER and better organized
-        JPanel resultsPanel = createCardPanel(cardColor, 850, 300);
-        resultsPanel.setLayout(new BorderLayout());
+        // Scan queue: the form can also be queued as a background job with a priority
+        JPanel jobsPanel = createCardPanel(cardColor, 850, 300);
+        jobsPanel.setLayout(new BorderLayout());
 
-        JLabel resultsTitle = new JLabel(" Scan Results");
-        resultsTitle.setFont(new Font("Segoe UI", Font.BOLD, 16));
-        resultsTitle.setBorder(BorderFactory.createEmptyBorder(0, 0, 10, 0));
+        JLabel jobsTitle = new JLabel(" Scan Queue");
+        jobsTitle.setFont(new Font("Segoe UI", Font.BOLD, 16));
+        jobsTitle.setBorder(BorderFactory.createEmptyBorder(0, 0, 10, 0));
 
-        String[] columns = {"IP Address", "Port", "Status", "Service", "Description"};
-        tableModel = new DefaultTableModel(columns, 0) {
+        String[] jobColumns = {"#", "Targets", "Priority", "State", "Progress", "Open", "In flight", "Time"};
+        jobsModel = new DefaultTableModel(jobColumns, 0) {
             @Override
             public boolean isCellEditable(int row, int column) {
                 return false;
             }
         };
+        jobsTable = new JTable(jobsModel);
+        jobsTable.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        jobsTable.setRowHeight(24);
+        jobsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        jobsTable.getColumnModel().getColumn(0).setPreferredWidth(30);
+        jobsTable.getColumnModel().getColumn(1).setPreferredWidth(250);
+        JScrollPane jobsScroll = new JScrollPane(jobsTable);
+        jobsScroll.setPreferredSize(new Dimension(800, 150));
+
+        JPanel jobControls = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 0));
+        jobControls.setOpaque(false);
+        jobPriorityCombo = new JComboBox<>(ScanScheduler.Priority.values());
+        jobPriorityCombo.setSelectedItem(ScanScheduler.Priority.NORMAL);
+        jobPriorityCombo.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        jobPriorityCombo.setBackground(Color.WHITE);
+        jobPriorityCombo.setToolTipText("Urgent jobs start at once and take probe slots ahead of the rest");
+        JButton queueButton = new JButton(" Queue Scan");
+        JButton stopJobButton = new JButton(" Stop Job");
+        JButton jobResultsButton = new JButton(" Open Ports");
+        JButton clearJobsButton = new JButton(" Clear Finished");
+        styleButton(queueButton, accent);
+        styleButton(stopJobButton, danger);
+        styleButton(jobResultsButton, secondary);
+        styleButton(clearJobsButton, primary);
+        queueButton.setToolTipText("Run the settings above as a queued job alongside other scans");
+        queueButton.addActionListener(e -> queueScan());
+        stopJobButton.addActionListener(e -> stopSelectedJob());
+        jobResultsButton.addActionListener(e -> showJobResults());
+        clearJobsButton.addActionListener(e -> {
+            scheduler.clearFinished();
+            refreshJobs();
+        });
+        budgetLabel = new JLabel(" ");
+        budgetLabel.setFont(new Font("Consolas", Font.PLAIN, 12));
+        jobControls.add(jobPriorityCombo);
+        jobControls.add(queueButton);
+        jobControls.add(stopJobButton);
+        jobControls.add(jobResultsButton);
+        jobControls.add(clearJobsButton);
+        jobControls.add(budgetLabel);
+        jobsTimer = new javax.swing.Timer(250, e -> refreshJobs());
+
+        jobsPanel.add(jobsTitle, BorderLayout.NORTH);
+        jobsPanel.add(jobsScroll, BorderLayout.CENTER);
+        jobsPanel.add(jobControls, BorderLayout.SOUTH);
 
-        resultTable = new JTable(tableModel);
+        // Results table - LARGER and better organized
+        JPanel resultsPanel = createCardPanel(cardColor, 850, 300);
+        resultsPanel.setLayout(new BorderLayout());
+
+        JLabel resultsTitle = new JLabel(" Scan Results");
+        resultsTitle.setFont(new Font("Segoe UI", Font.BOLD, 16));
+        resultsTitle.setBorder(BorderFactory.createEmptyBorder(0, 0, 10, 0));
+
+        // Primitive-backed and rendered on demand; sorting and filtering happen off the EDT
+        resultsModel = new ScanResultsModel(serviceTable);
+        resultTable = new JTable(resultsModel);
         resultTable.setFont(new Font("Segoe UI", Font.PLAIN, 12));
         resultTable.setRowHeight(30); // Taller rows for better readability
         resultTable.getTableHeader().setFont(new Font("Segoe UI", Font.BOLD, 13));
@@ -212,11 +461,60 @@ class NetworkScannerPanel extends JPanel {
         resultTable.getColumnModel().getColumn(3).setPreferredWidth(100); // Service
         resultTable.getColumnModel().getColumn(4).setPreferredWidth(350); // Description
 
+        JTableHeader resultHeader = resultTable.getTableHeader();
+        resultHeader.setToolTipText("Click a column to sort, again to reverse");
+        resultHeader.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = resultTable.convertColumnIndexToModel(resultHeader.columnAtPoint(e.getPoint()));
+                if (column >= 0) {
+                    resultCountLabel.setText("Sorting...");
+                    resultsModel.sortBy(column, () -> updateResultCount());
+                }
+            }
+        });
+
         JScrollPane tableScroll = new JScrollPane(resultTable);
         tableScroll.setPreferredSize(new Dimension(800, 200));
         tableScroll.getVerticalScrollBar().setUnitIncrement(16);
 
-        resultsPanel.add(resultsTitle, BorderLayout.NORTH);
+        resultFilterField = new JTextField(18);
+        resultFilterField.setToolTipText("Show only rows containing this text in any column");
+        resultCountLabel = new JLabel(" ");
+        resultCountLabel.setFont(new Font("Segoe UI", Font.PLAIN, 11));
+        // Refilter once typing pauses rather than on every keystroke
+        javax.swing.Timer filterTimer = new javax.swing.Timer(300, e -> {
+            resultCountLabel.setText("Filtering...");
+            resultsModel.setFilter(resultFilterField.getText(), () -> updateResultCount());
+        });
+        filterTimer.setRepeats(false);
+        resultFilterField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                filterTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                filterTimer.restart();
+            }
+        });
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 8, 0));
+        filterPanel.setOpaque(false);
+        filterPanel.add(resultCountLabel);
+        filterPanel.add(new JLabel("Filter:"));
+        filterPanel.add(resultFilterField);
+        JPanel resultsHeader = new JPanel(new BorderLayout());
+        resultsHeader.setOpaque(false);
+        resultsHeader.add(resultsTitle, BorderLayout.WEST);
+        resultsHeader.add(filterPanel, BorderLayout.EAST);
+
+        resultsPanel.add(resultsHeader, BorderLayout.NORTH);
         resultsPanel.add(tableScroll, BorderLayout.CENTER);
 
         // Log area - LARGER and more readable
@@ -247,11 +545,15 @@ class NetworkScannerPanel extends JPanel {
         contentPanel.add(inputPanel);
         contentPanel.add(Box.createRigidArea(new Dimension(0, 15)));
         contentPanel.add(progressBar);
+        contentPanel.add(engineStatusLabel);
+        contentPanel.add(scanStatsLabel);
         contentPanel.add(Box.createRigidArea(new Dimension(0, 20)));
         contentPanel.add(portInfoPanel);
         contentPanel.add(Box.createRigidArea(new Dimension(0, 20)));
         contentPanel.add(resultsPanel);
         contentPanel.add(Box.createRigidArea(new Dimension(0, 20)));
+        contentPanel.add(jobsPanel);
+        contentPanel.add(Box.createRigidArea(new Dimension(0, 20)));
         contentPanel.add(logPanel);
     }
 
@@ -276,22 +578,20 @@ class NetworkScannerPanel extends JPanel {
 
     private void updatePortRange() {
         String selected = (String) commonPortsCombo.getSelectedItem();
+        // Top-N lists come from the service database, not the ports field
+        portsField.setEnabled(topPortCount() == 0);
         switch (selected) {
             case "Common Ports (1-1000)":
-                startPortField.setText("1");
-                endPortField.setText("1000");
+                portsField.setText("1-1000");
                 break;
             case "Web Services (80,443,8080)":
-                startPortField.setText("80");
-                endPortField.setText("443");
+                portsField.setText("80,443,8080");
                 break;
             case "Network Services (21,22,23,25,53)":
-                startPortField.setText("21");
-                endPortField.setText("53");
+                portsField.setText("21,22,23,25,53");
                 break;
             case "All Ports (1-65535)":
-                startPortField.setText("1");
-                endPortField.setText("65535");
+                portsField.setText("1-65535");
                 break;
             case "Custom Range":
                 // Keep current values
@@ -299,6 +599,17 @@ class NetworkScannerPanel extends JPanel {
         }
     }
 
+    // How many top ports the quick selection asks for, or 0 for a plain range
+    private int topPortCount() {
+        Object selected = commonPortsCombo.getSelectedItem();
+        if (TOP_20.equals(selected)) {
+            return 20;
+        } else if (TOP_RANKED.equals(selected)) {
+            return Integer.MAX_VALUE;
+        }
+        return 0;
+    }
+
     private String getCommonPortsReference() {
         return " SECURE PORTS:\n" +
                 "• Port 22 (SSH) - Secure remote administration\n" +
@@ -365,177 +676,829 @@ class NetworkScannerPanel extends JPanel {
         });
     }
 
-    // ... (keep the rest of your existing methods: startScan, stopScan, parseIPRange,
-    // getServiceName, getPortDescription, addResult, log) exactly as they were ...
-    // Only the UI components above have been modified for better sizing
-
     private void startScan() {
         if (scanning) return;
 
+        ScanConfig config = configFromForm();
+        if (config == null) {
+            return;
+        }
         String ipRange = ipRangeField.getText().trim();
-        int startPort, endPort;
+        TargetSpec targets = config.getTargets();
+        boolean udp = config.isUdp();
+        int topPorts = topPortCount();
+        PortSet portSet = topPorts == 0 ? PortSet.parse(portsField.getText()) : null;
+        int maxInFlight = config.getMaxInFlight();
+        int workers = config.getWorkers();
+        int maxRate = config.getMaxProbesPerSecond();
+        int perHostInFlight = config.getMaxPerHostInFlight();
+        int perHostRate = config.getMaxPerHostRate();
+        // The coordinator tracks shards, not a resumable position
+        config.setCheckpointFile(workers > 0 ? null : checkpointFile());
+
+        if (checkpointFile().isFile() && JOptionPane.showConfirmDialog(this,
+                "A stopped scan can still be resumed. Start a new scan and discard it?",
+                "Discard Stopped Scan", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+            return;
+        }
 
+        // Results of earlier scans, for the differential mode and to record this one
+        ScanResultStore store;
         try {
-            startPort = Integer.parseInt(startPortField.getText().trim());
-            endPort = Integer.parseInt(endPortField.getText().trim());
+            store = ScanResultStore.load(new File(ScanResultStore.DEFAULT_FILE));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not read saved scan results: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        DifferentialScan diff = null;
+        if (changedOnlyCheck.isSelected() && udp) {
+            JOptionPane.showMessageDialog(this, "Saved results are TCP only, so UDP scans can't be compared.\n"
+                            + "Untick \"Re-scan changed only\" or switch to TCP.",
+                    "Nothing to Re-scan", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        if (changedOnlyCheck.isSelected()) {
+            diff = new DifferentialScan(store, targets, CLOSED_SAMPLE_PER_HOST, System.nanoTime());
+            if (diff.getPlan().isEmpty()) {
+                JOptionPane.showMessageDialog(this, "None of these hosts has been scanned before.\n"
+                                + "Run a full scan first, then re-scan for changes.",
+                        "Nothing to Re-scan", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            config.setPortPlan(diff.getPlan());
+        }
 
-            if (startPort < 1 || endPort > 65535 || startPort > endPort) {
-                throw new NumberFormatException("Invalid port range");
+        checkpointFile().delete();
+        beginScan();
+        log(" Starting network scan...");
+        log(" Targets: " + ipRange + " (" + targets.size() + " hosts)");
+        if (topPorts > 0) {
+            log(" Ports: top " + config.getPorts().length + " by how often they are found open");
+        } else {
+            log(" Ports: " + portSet + " (" + portSet.size() + " ports"
+                    + (frequencyOrderCheck.isSelected() ? ", most likely first)" : ")"));
+        }
+        log(" Engine: " + (udp ? "UDP on the selector" : config.getMode()) + ", up to " + maxInFlight
+                + " probes in flight");
+        if (workers > 0) {
+            log(" Distributed: sharded across " + workers + " worker JVM(s), limits apply per worker"
+                    + (diff != null ? " (differential re-scans run in-process)" : ""));
+        }
+        if (udp) {
+            log(" Silent UDP ports are retried " + config.getUdpRetries() + " times, then reported as open|filtered");
+            if (config.isServiceDetection()) {
+                log(" Service detection reads TCP banners only and is skipped for UDP");
+            }
+        }
+        if (maxRate > 0 || perHostInFlight > 0 || perHostRate > 0) {
+            log(" Pacing: " + (maxRate > 0 ? maxRate + " probes/s" : "no global rate cap")
+                    + ", per host " + (perHostInFlight > 0 ? perHostInFlight : "unlimited") + " in flight / "
+                    + (perHostRate > 0 ? perHostRate + " per s" : "no rate cap"));
+        }
+        if (!udp && config.getMode() == ScanEngine.Mode.VIRTUAL_THREADS && !ScanEngine.virtualThreadsAvailable()) {
+            log(" Virtual threads need Java 21+, falling back to platform threads");
+        }
+        if (diff != null) {
+            log(" Re-scanning " + diff.getPlan().size() + " known host(s): open ports plus up to "
+                    + CLOSED_SAMPLE_PER_HOST + " closed ports each (" + config.getTotalProbes() + " probes)");
+            if (diff.getUnknownHosts() > 0) {
+                log(" Skipping " + diff.getUnknownHosts() + " host(s) with no earlier results");
+            }
+        }
+        log(" Tip: Open ports show services running on devices");
+
+        // The result store holds TCP sweeps; UDP results are shown but not recorded
+        runScan(config, null, store, diff, udp ? null : targets);
+    }
+
+    // Validates the form into a fresh config, or explains what's wrong and returns null
+    private ScanConfig configFromForm() {
+        String ipRange = ipRangeField.getText().trim();
+        boolean udp = "UDP".equals(protocolCombo.getSelectedItem());
+        int topPorts = topPortCount();
+        PortSet portSet = null;
+
+        if (topPorts == 0) {
+            try {
+                portSet = PortSet.parse(portsField.getText());
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage() + "\n\nExamples: 1-1000, 80,443,8080, "
+                                + "1-1024,3306,!25",
+                        "Invalid Ports", JOptionPane.ERROR_MESSAGE);
+                return null;
+            }
+        }
+
+        int maxInFlight, maxRate, perHostInFlight, perHostRate, workers;
+        try {
+            maxInFlight = Integer.parseInt(maxInFlightField.getText().trim());
+            workers = Integer.parseInt(workersField.getText().trim());
+            maxRate = Integer.parseInt(maxRateField.getText().trim());
+            perHostInFlight = Integer.parseInt(perHostInFlightField.getText().trim());
+            perHostRate = Integer.parseInt(perHostRateField.getText().trim());
+            if (maxInFlight < 1 || maxRate < 0 || perHostInFlight < 0 || perHostRate < 0 || workers < 0) {
+                throw new NumberFormatException("Invalid limit");
             }
         } catch (NumberFormatException e) {
-            JOptionPane.showMessageDialog(this, "Please enter valid port numbers (1-65535)",
+            JOptionPane.showMessageDialog(this, "Please enter a positive in-flight limit, "
+                            + "non-negative rate limits (0 = unlimited) and worker count (0 = none)",
                     "Error", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+
+        // Parse the target specification (CIDR, ranges, lists, @file)
+        TargetSpec targets;
+        try {
+            targets = TargetSpec.parse(ipRange);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage() + "\n\nExamples: 192.168.1.1-100, "
+                            + "10.0.0.0/24, 10.0.1-3.1-254, @targets.txt",
+                    "Invalid Targets", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+
+        ScanConfig config = new ScanConfig();
+        config.setTargets(targets);
+        if (topPorts > 0) {
+            // Already ranked by frequency
+            config.setPorts(serviceTable.topPorts(topPorts, udp));
+            if (config.getPorts().length == 0) {
+                JOptionPane.showMessageDialog(this, "The port service database has no open frequencies for "
+                                + (udp ? "UDP" : "TCP") + " ports. Choose a port range instead.",
+                        "Invalid Ports", JOptionPane.ERROR_MESSAGE);
+                return null;
+            }
+        } else {
+            int[] ports = portSet.toArray();
+            config.setPorts(frequencyOrderCheck.isSelected() ? serviceTable.byFrequency(ports, udp) : ports);
+        }
+        config.setUdp(udp);
+        config.setMode((ScanEngine.Mode) engineModeCombo.getSelectedItem());
+        config.setMaxInFlight(maxInFlight);
+        config.setAdaptiveTimeout(adaptiveTimeoutCheck.isSelected());
+        config.setHostDiscovery(hostDiscoveryCheck.isSelected());
+        config.setMaxProbesPerSecond(maxRate);
+        config.setMaxPerHostInFlight(perHostInFlight);
+        config.setMaxPerHostRate(perHostRate);
+        config.setServiceDetection(serviceDetectionCheck.isSelected());
+        config.setWorkers(workers);
+        return config;
+    }
+
+    // Queues the form's settings as a job; checkpoints, worker JVMs and differential re-scans stay with Start Scan
+    private void queueScan() {
+        ScanConfig config = configFromForm();
+        if (config == null) {
             return;
         }
+        config.setWorkers(0);
+        ScanScheduler.Priority priority = (ScanScheduler.Priority) jobPriorityCombo.getSelectedItem();
+        String name = ipRangeField.getText().trim();
+        ConcurrentLinkedQueue<Long> openFound = new ConcurrentLinkedQueue<>();
+        Map<Long, String> identified = new ConcurrentHashMap<>();
+        ScanScheduler.Job job = scheduler.submit(name, priority, config, new ScanListener() {
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome) {
+                // The job keeps its own counts; open ports are only collected for the history
+                if (outcome == ProbeOutcome.OPEN) {
+                    openFound.offer(ProbeSource.pack(ip, port));
+                }
+            }
+
+            @Override
+            public void serviceIdentified(int ip, int port, ServiceSignatures.Match match) {
+                if (match.isIdentified()) {
+                    identified.put(ProbeSource.pack(ip, port), match.service);
+                }
+            }
+
+            @Override
+            public void scanFinished(boolean cancelled) {
+                if (!cancelled) {
+                    recordHistory(config, openFound, identified);
+                }
+                SwingUtilities.invokeLater(() -> refreshJobs());
+            }
+        });
+        log(" Queued job #" + job.id + " (" + priority + "): " + name + ", " + config.getTotalProbes()
+                + " probes, up to " + Math.min(config.getMaxInFlight(), SHARED_PROBE_BUDGET) + " in flight");
+        if (changedOnlyCheck.isSelected() || !workersField.getText().trim().equals("0")) {
+            log("   Queued jobs run in this process as full sweeps; worker JVMs and re-scan changed only apply to Start Scan");
+        }
+        if (!jobsTimer.isRunning()) {
+            jobsTimer.start();
+        }
+        refreshJobs();
+    }
+
+    private ScanScheduler.Job selectedJob() {
+        int row = jobsTable.getSelectedRow();
+        if (row < 0) {
+            JOptionPane.showMessageDialog(this, "Select a job in the queue first.",
+                    "No Job Selected", JOptionPane.INFORMATION_MESSAGE);
+            return null;
+        }
+        int id = (Integer) jobsModel.getValueAt(row, 0);
+        for (ScanScheduler.Job job : scheduler.getJobs()) {
+            if (job.id == id) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void stopSelectedJob() {
+        ScanScheduler.Job job = selectedJob();
+        if (job != null) {
+            job.cancel();
+            log(" Stopping job #" + job.id);
+            refreshJobs();
+        }
+    }
+
+    private void showJobResults() {
+        ScanScheduler.Job job = selectedJob();
+        if (job == null) {
+            return;
+        }
+        List<Long> open = job.getOpenPorts();
+        boolean udp = job.config.isUdp();
+        StringBuilder text = new StringBuilder();
+        for (long packed : open) {
+            int port = ProbeSource.portOf(packed);
+            text.append(Ipv4.toString(ProbeSource.ipOf(packed))).append(':').append(port)
+                    .append(udp ? "/udp" : "").append("  ").append(serviceTable.name(port, udp)).append('\n');
+        }
+        JTextArea area = new JTextArea(open.isEmpty() ? "No open ports found (yet)." : text.toString());
+        area.setEditable(false);
+        area.setFont(new Font("Consolas", Font.PLAIN, 12));
+        JScrollPane scroll = new JScrollPane(area);
+        scroll.setPreferredSize(new Dimension(420, 300));
+        JOptionPane.showMessageDialog(this, scroll, "Job #" + job.id + " - " + open.size() + " open port(s)",
+                JOptionPane.PLAIN_MESSAGE);
+    }
+
+    // EDT: one row per job, rebuilt in place so the selection survives
+    private void refreshJobs() {
+        List<ScanScheduler.Job> jobs = scheduler.getJobs();
+        int selected = jobsTable.getSelectedRow();
+        jobsModel.setRowCount(jobs.size());
+        boolean active = false;
+        for (int row = 0; row < jobs.size(); row++) {
+            ScanScheduler.Job job = jobs.get(row);
+            ScanScheduler.State state = job.getState();
+            active |= state == ScanScheduler.State.QUEUED || state == ScanScheduler.State.RUNNING;
+            long total = job.getTotalProbes();
+            long done = job.getProgress().completed();
+            long seconds = job.getElapsedMillis() / 1000;
+            Object[] values = {job.id, job.name, job.priority, state.name().toLowerCase(),
+                    total == 0 ? "-" : Math.min(100, done * 100 / total) + "%",
+                    job.getProgress().count(ProbeOutcome.OPEN), job.getInFlight(),
+                    String.format("%d:%02d", seconds / 60, seconds % 60)};
+            for (int col = 0; col < values.length; col++) {
+                if (!values[col].equals(jobsModel.getValueAt(row, col))) {
+                    jobsModel.setValueAt(values[col], row, col);
+                }
+            }
+        }
+        if (selected >= 0 && selected < jobs.size()) {
+            jobsTable.setRowSelectionInterval(selected, selected);
+        }
+        ProbeBudget budget = scheduler.getBudget();
+        budgetLabel.setText("Probe slots: " + budget.getUsed() + "/" + budget.getCapacity()
+                + "  |  Running: " + scheduler.getRunningCount());
+        if (!active) {
+            jobsTimer.stop();
+        }
+    }
+
+    private void resumeScan() {
+        if (scanning) return;
+
+        ScanCheckpoint checkpoint;
+        ScanResultStore store;
+        try {
+            checkpoint = ScanCheckpoint.load(checkpointFile());
+            store = ScanResultStore.load(new File(ScanResultStore.DEFAULT_FILE));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not resume: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            resumeButton.setEnabled(checkpointFile().isFile());
+            return;
+        }
+        ScanConfig config = checkpoint.getConfig();
+        config.setCheckpointFile(checkpointFile());
+
+        beginScan();
+        log(" Resuming scan saved at " + new Date(checkpoint.getSavedAt()));
+        log(" Targets: " + config.getTargets().size() + " hosts, " + config.getTotalProbes() + " probes, "
+                + checkpoint.getPosition().probesDone + " already done");
+        log(" Engine: " + (config.isUdp() ? "UDP on the selector" : config.getMode()) + ", up to "
+                + config.getMaxInFlight() + " probes in flight");
+        for (long probe : checkpoint.getOpenPorts()) {
+            events.addOpenPort(ProbeSource.ipOf(probe), ProbeSource.portOf(probe));
+        }
+        if (checkpoint.getOpenPorts().length > 0) {
+            log(" " + checkpoint.getOpenPorts().length + " open port(s) found before the scan was stopped");
+        }
+        if (config.getPortPlan() != null) {
+            log(" Resuming a differential re-scan: changes will not be compared or saved");
+        }
+        // A plan scan only covers part of each host's ports, so only full sweeps get recorded
+        runScan(config, checkpoint, store, null,
+                config.getPortPlan() == null && !config.isUdp() ? config.getTargets() : null);
+    }
 
+    private void beginScan() {
         scanning = true;
         scanButton.setEnabled(false);
         stopButton.setEnabled(true);
+        resumeButton.setEnabled(false);
         progressBar.setVisible(true);
-        tableModel.setRowCount(0);
+        progressBar.setValue(0);
+        resultsModel.clear();
+        updateResultCount();
         logArea.setText("");
-        log(" Starting network scan...");
-        log(" IP Range: " + ipRange);
-        log(" Port Range: " + startPort + " to " + endPort);
-        log(" Tip: Open ports show services running on devices");
+        events.clear();
+    }
 
-        executor = Executors.newFixedThreadPool(50);
-
-        // Parse IP range and start scanning
-        List<String> ipList = parseIPRange(ipRange);
-        final int totalScans = ipList.size() * (endPort - startPort + 1);
-        final int[] completedScans = {0};
-
-        for (String ip : ipList) {
-            for (int port = startPort; port <= endPort; port++) {
-                final String currentIP = ip;
-                final int currentPort = port;
-
-                executor.submit(() -> {
-                    if (!scanning) return;
-
-                    try {
-                        Socket socket = new Socket();
-                        socket.connect(new InetSocketAddress(currentIP, currentPort), 1000);
-                        socket.close();
-
-                        // Open port found
-                        SwingUtilities.invokeLater(() -> {
-                            String service = getServiceName(currentPort);
-                            String description = getPortDescription(currentPort);
-                            addResult(currentIP, currentPort, "Open", service, description);
-                            log(" OPEN: " + currentIP + ":" + currentPort + " (" + service + ")");
-                        });
-                    } catch (Exception e) {
-                        // Port is closed or filtered
-                    }
+    // recordTargets: what to record in the result store once the scan completes (null = nothing)
+    private void runScan(ScanConfig config, ScanCheckpoint resume, ScanResultStore store,
+                         DifferentialScan changes, TargetSpec recordTargets) {
+        ScanProgress scanProgress = new ScanProgress();
+        progress = scanProgress;
+        lastStatsNanos = 0;
+        ConcurrentLinkedQueue<Long> openFound = new ConcurrentLinkedQueue<>();
+        Map<Long, String> identified = new ConcurrentHashMap<>();
+        if (resume != null) {
+            for (long probe : resume.getOpenPorts()) {
+                openFound.offer(probe);
+            }
+        }
 
-                    completedScans[0]++;
-                    final int progress = (completedScans[0] * 100) / totalScans;
-                    SwingUtilities.invokeLater(() -> {
-                        progressBar.setValue(progress);
-                        if (completedScans[0] == totalScans) {
-                            stopScan();
-                            log(" Scan completed! Found " + tableModel.getRowCount() + " open ports");
-                        }
-                    });
+        engine = new ScanEngine(config, new ScanListener() {
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome) {
+                // The engine reports through the timed overload below
+            }
+
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome, long elapsedNanos) {
+                // Engine thread: only enqueue, the refresh timer does the Swing work
+                if (outcome == ProbeOutcome.OPEN) {
+                    events.addOpenPort(ip, port);
+                    events.addLog(" OPEN: " + Ipv4.toString(ip) + ":" + port + (config.isUdp() ? "/udp" : "")
+                            + " (" + serviceTable.name(port, config.isUdp()) + ")");
+                    openFound.offer(ProbeSource.pack(ip, port));
+                }
+                if (changes != null) {
+                    changes.record(ip, port, outcome);
+                }
+                scanProgress.record(outcome, elapsedNanos);
+            }
+
+            @Override
+            public void serviceIdentified(int ip, int port, ServiceSignatures.Match match) {
+                if (match.isIdentified()) {
+                    identified.put(ProbeSource.pack(ip, port), match.service);
+                }
+                events.addService(ip, port, match);
+                events.addLog(" SERVICE: " + Ipv4.toString(ip) + ":" + port + " " + match
+                        + (match.banner.isEmpty() ? "" : " - " + match.banner));
+            }
+
+            @Override
+            public void tlsInspected(int ip, int port, TlsInspector.Result result) {
+                // Successful handshakes are already in the SERVICE line; only call out what needs attention
+                if (!result.isHandshaken()) {
+                    events.addLog(" TLS: " + Ipv4.toString(ip) + ":" + port + " " + result);
+                } else if (!result.findings.isEmpty()) {
+                    events.addLog(" TLS WARNING: " + Ipv4.toString(ip) + ":" + port + " "
+                            + String.join(", ", result.findings));
+                }
+            }
+
+            @Override
+            public void discoveryCompleted(int[] liveHosts, long totalHosts, long elapsedMillis) {
+                // Every probe against a dead host would have burned a full timeout slot
+                long skippedProbes = (totalHosts - liveHosts.length) * config.getPorts().length;
+                long savedMillis = skippedProbes * config.getTimeoutMillis() / config.getMaxInFlight() - elapsedMillis;
+                events.addLog(" Host discovery: " + liveHosts.length + " of " + totalHosts + " hosts up ("
+                        + elapsedMillis + " ms)");
+                for (int i = 0; i < Math.min(liveHosts.length, 50); i++) {
+                    events.addLog("   UP: " + Ipv4.toString(liveHosts[i]));
+                }
+                if (liveHosts.length > 50) {
+                    events.addLog("   ... and " + (liveHosts.length - 50) + " more");
+                }
+                events.addLog(" Skipped " + skippedProbes + " probes on dead hosts, saving about "
+                        + Math.max(0, savedMillis / 1000) + " s");
+            }
+
+            @Override
+            public void scanFinished(boolean cancelled) {
+                // Engine thread: a stopped scan leaves the saved results untouched
+                if (!cancelled && (changes != null || recordTargets != null)) {
+                    saveResults(store, changes, recordTargets, config.getPorts(), openFound);
+                }
+                if (!cancelled && config.getPortPlan() == null) {
+                    recordHistory(config, openFound, identified);
+                }
+                SwingUtilities.invokeLater(() -> {
+                    lastStatsNanos = 0;
+                    refreshScanView();
+                    resetScanControls();
+                    if (cancelled && checkpointFile().isFile()) {
+                        log(" Scan stopped by user - progress saved, press Resume to continue");
+                    } else if (cancelled) {
+                        log(" Scan stopped by user");
+                    } else {
+                        log(" Scan completed! Found " + resultsModel.getResultCount() + " open ports");
+                    }
+                    if (engine.getHostsMeasured() >= 0) {
+                        log(" Adaptive timeouts used for " + engine.getHostsMeasured() + " responsive host(s)");
+                    }
                 });
             }
+        }, resume);
+        if (!config.isDistributed()) {
+            // The scan being watched goes ahead of queued jobs; workers bring their own sockets
+            engine.setBudget(scheduler.getBudget(), ScanScheduler.Priority.URGENT);
+        }
+        engine.start();
+        refreshTimer.start();
+    }
+
+    private static File checkpointFile() {
+        return new File(ScanCheckpoint.DEFAULT_FILE);
+    }
+
+    private void saveResults(ScanResultStore store, DifferentialScan changes, TargetSpec targets,
+                             int[] ports, ConcurrentLinkedQueue<Long> openFound) {
+        long now = System.currentTimeMillis();
+        if (changes != null) {
+            List<Long> opened = changes.getOpened();
+            List<Long> closed = changes.getClosed();
+            events.addLog(" Changes since last scan: " + opened.size() + " newly open, "
+                    + closed.size() + " closed");
+            for (long probe : opened) {
+                events.addLog("   NEW OPEN: " + Ipv4.toString(ProbeSource.ipOf(probe)) + ":"
+                        + ProbeSource.portOf(probe));
+            }
+            for (long probe : closed) {
+                events.addLog("   NOW CLOSED: " + Ipv4.toString(ProbeSource.ipOf(probe)) + ":"
+                        + ProbeSource.portOf(probe));
+            }
+            changes.applyTo(now);
+        } else {
+            long[] open = new long[openFound.size()];
+            int n = 0;
+            for (long probe : openFound) {
+                if (n < open.length) {
+                    open[n++] = probe;
+                }
+            }
+            // Discovery may have narrowed the sweep, but dead hosts really had nothing open
+            store.recordScan(targets, ports, Arrays.copyOf(open, n), now);
+        }
+        try {
+            store.save();
+            events.addLog(" Results saved (" + store.hostCount() + " hosts on record)");
+        } catch (IOException e) {
+            events.addLog(" Could not save scan results: " + e.getMessage());
+        }
+    }
+
+    // Engine thread: every completed full sweep, TCP or UDP, foreground or queued, goes into the history
+    private void recordHistory(ScanConfig config, Collection<Long> openFound, Map<Long, String> identified) {
+        long[] open = openFound.stream().mapToLong(Long::longValue).toArray();
+        try {
+            ScanHistory h = history();
+            h.record(config.getTargets(), config.getPorts(), config.isUdp(), open, identified,
+                    System.currentTimeMillis());
+        } catch (IOException e) {
+            SwingUtilities.invokeLater(() -> log(" Could not add the scan to history: " + e.getMessage()));
+        }
+    }
+
+    // Opened on first use, by whichever thread gets there first; a long history takes a moment to load
+    private ScanHistory history() throws IOException {
+        synchronized (historyLock) {
+            if (history == null) {
+                history = ScanHistory.open(new File(ScanHistory.DEFAULT_DIR));
+            }
+            return history;
         }
     }
 
     private void stopScan() {
-        scanning = false;
-        if (executor != null) {
-            executor.shutdownNow();
+        if (engine != null) {
+            engine.cancel();
         }
-        scanButton.setEnabled(true);
-        stopButton.setEnabled(false);
-        progressBar.setVisible(false);
-        log(" Scan stopped by user");
     }
 
-    private List<String> parseIPRange(String ipRange) {
-        List<String> ipList = new ArrayList<>();
+    // Percentiles of the current (or last) scan; a fresh look each time it is opened
+    private void showLatency() {
+        ScanProgress shown = progress;
+        String[] columns = {"Outcome", "Probes", "Mean", "p50", "p90", "p99", "p99.9", "Max"};
+        DefaultTableModel model = new DefaultTableModel(columns, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        for (ProbeOutcome outcome : ProbeOutcome.values()) {
+            LatencyHistogram histogram = shown.latency(outcome);
+            if (histogram.count() == 0) {
+                continue;
+            }
+            model.addRow(new Object[]{outcome.name().toLowerCase().replace('_', '|'),
+                    String.format("%,d", histogram.count()), millis(histogram.meanMillis()),
+                    millis(histogram.percentileMillis(50)), millis(histogram.percentileMillis(90)),
+                    millis(histogram.percentileMillis(99)), millis(histogram.percentileMillis(99.9)),
+                    millis(histogram.maxMillis())});
+        }
+        if (model.getRowCount() == 0) {
+            JOptionPane.showMessageDialog(this, "No probes have completed yet.",
+                    "Connect Latency", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
 
-        try {
-            if (ipRange.contains("-")) {
-                String[] parts = ipRange.split("\\.");
-                String base = parts[0] + "." + parts[1] + "." + parts[2] + ".";
-                String[] rangeParts = parts[3].split("-");
+        JTable table = new JTable(model);
+        table.setFont(new Font("Consolas", Font.PLAIN, 12));
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.setPreferredSize(new Dimension(640, 40 + model.getRowCount() * table.getRowHeight()));
+        JLabel note = new JLabel("Milliseconds from connect to outcome. Filtered probes bunch at the timeout; "
+                + "closed ones show the real round trip.");
+        note.setFont(new Font("Segoe UI", Font.PLAIN, 11));
+        JPanel content = new JPanel(new BorderLayout(0, 8));
+        content.add(scroll, BorderLayout.CENTER);
+        content.add(note, BorderLayout.SOUTH);
+
+        Object[] options = {"Export...", "Close"};
+        int choice = JOptionPane.showOptionDialog(this, content, "Connect Latency", JOptionPane.DEFAULT_OPTION,
+                JOptionPane.PLAIN_MESSAGE, null, options, options[1]);
+        if (choice != 0) {
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Export Latency Percentiles");
+        chooser.setSelectedFile(new File("scan-latency.hgrm"));
+        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File selected = chooser.getSelectedFile();
+            try {
+                shown.exportLatency(selected);
+                log(" Latency percentiles written to " + selected.getAbsolutePath());
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, "Could not export latency: " + e.getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    private void showHistory() {
+        JComboBox<HistoryQuery> queryCombo = new JComboBox<>(HistoryQuery.values());
+        JTextField queryField = new JTextField(HistoryQuery.PORT.example, 14);
+        JComboBox<String> historyProtocolCombo = new JComboBox<>(new String[]{"TCP", "UDP"});
+        JTextField daysField = new JTextField("30", 4);
+        daysField.setToolTipText("Only scans from the last N days; 0 for all of them");
+        JButton searchButton = new JButton("Search");
+        queryCombo.addActionListener(e -> {
+            HistoryQuery kind = (HistoryQuery) queryCombo.getSelectedItem();
+            historyProtocolCombo.setEnabled(kind != HistoryQuery.HOST);
+            queryField.setText(kind.example);
+        });
+
+        JPanel queryPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 0));
+        queryPanel.add(queryCombo);
+        queryPanel.add(queryField);
+        queryPanel.add(historyProtocolCombo);
+        queryPanel.add(new JLabel("Last days:"));
+        queryPanel.add(daysField);
+        queryPanel.add(searchButton);
+
+        DefaultTableModel model = new DefaultTableModel() {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JTable table = new JTable(model);
+        table.setFont(new Font("Consolas", Font.PLAIN, 12));
+        table.setAutoCreateRowSorter(true);
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.setPreferredSize(new Dimension(760, 420));
+        JLabel status = new JLabel(" ");
+        status.setFont(new Font("Segoe UI", Font.PLAIN, 11));
+
+        JPanel content = new JPanel(new BorderLayout(0, 8));
+        content.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        content.add(queryPanel, BorderLayout.NORTH);
+        content.add(scroll, BorderLayout.CENTER);
+        content.add(status, BorderLayout.SOUTH);
+
+        ActionListener search = e -> searchHistory((HistoryQuery) queryCombo.getSelectedItem(), queryField.getText().trim(),
+                historyProtocolCombo.getSelectedIndex() == 1, daysField.getText().trim(), model, status, searchButton);
+        searchButton.addActionListener(search);
+        queryField.addActionListener(search);
+
+        JDialog dialog = new JDialog(SwingUtilities.getWindowAncestor(this), "Scan History");
+        dialog.setContentPane(content);
+        dialog.pack();
+        dialog.setLocationRelativeTo(this);
+        dialog.setVisible(true);
+    }
 
-                int start = Integer.parseInt(rangeParts[0]);
-                int end = Integer.parseInt(rangeParts[1]);
+    // EDT: parses the query here, runs it on a background thread (the first one loads the history)
+    private void searchHistory(HistoryQuery kind, String query, boolean udp, String days, DefaultTableModel model,
+                               JLabel status, JButton searchButton) {
+        int port = -1;
+        int ip = 0;
+        long from = Long.MIN_VALUE;
+        try {
+            switch (kind) {
+                case PORT:
+                    port = Integer.parseInt(query);
+                    if (port < 1 || port > 65535) {
+                        throw new NumberFormatException();
+                    }
+                    break;
+                case HOST:
+                    ip = TargetSpec.parseAddress(query);
+                    break;
+                case SERVICE:
+                    if (query.isEmpty()) {
+                        throw new IllegalArgumentException("Enter a service name");
+                    }
+                    break;
+            }
+            int lastDays = days.isEmpty() ? 0 : Integer.parseInt(days);
+            if (lastDays > 0) {
+                from = System.currentTimeMillis() - lastDays * 86_400_000L;
+            }
+        } catch (NumberFormatException e) {
+            status.setText("Enter a port from 1 to 65535 and a whole number of days");
+            return;
+        } catch (IllegalArgumentException e) {
+            status.setText(e.getMessage());
+            return;
+        }
 
-                for (int i = start; i <= end; i++) {
-                    ipList.add(base + i);
+        int queryPort = port;
+        int queryIp = ip;
+        long since = from;
+        searchButton.setEnabled(false);
+        status.setText("Searching...");
+        Thread worker = new Thread(() -> {
+            try {
+                ScanHistory h = history();
+                long started = System.nanoTime();
+                List<ScanHistory.Sighting> sightings = null;
+                List<ScanHistory.Change> changes = null;
+                switch (kind) {
+                    case PORT:
+                        sightings = h.openOnPort(queryPort, udp, since, Long.MAX_VALUE);
+                        break;
+                    case SERVICE:
+                        sightings = h.openWithService(query, udp, since, Long.MAX_VALUE);
+                        break;
+                    case HOST:
+                        changes = h.changes(queryIp, since, Long.MAX_VALUE);
+                        break;
                 }
-            } else {
-                ipList.add(ipRange);
+                double tookMillis = (System.nanoTime() - started) / 1e6;
+                String summary = String.format("%,d result(s) in %s ms  |  %,d scans, %,d open ports on record",
+                        sightings != null ? sightings.size() : changes.size(), millis(tookMillis),
+                        h.scanCount(), h.resultCount());
+                List<ScanHistory.Sighting> foundSightings = sightings;
+                List<ScanHistory.Change> foundChanges = changes;
+                SwingUtilities.invokeLater(() -> {
+                    SimpleDateFormat when = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+                    if (foundSightings != null) {
+                        model.setColumnIdentifiers(new Object[]{"Host", "Port", "Service", "First Seen", "Last Seen", "Scans"});
+                        for (ScanHistory.Sighting s : foundSightings) {
+                            model.addRow(new Object[]{Ipv4.toString(s.ip), s.port, s.service,
+                                    when.format(new Date(s.firstSeen)), when.format(new Date(s.lastSeen)), s.scans});
+                        }
+                    } else {
+                        model.setColumnIdentifiers(new Object[]{"When", "Port", "Protocol", "Change", "Service"});
+                        for (ScanHistory.Change c : foundChanges) {
+                            model.addRow(new Object[]{when.format(new Date(c.at)), c.port, c.udp ? "UDP" : "TCP",
+                                    c.kind.toString(), c.service});
+                        }
+                    }
+                    status.setText(summary);
+                    searchButton.setEnabled(true);
+                });
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> {
+                    status.setText("Could not read the scan history: " + e.getMessage());
+                    searchButton.setEnabled(true);
+                });
             }
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "Invalid IP range format. Use: 192.168.1.1-100",
-                    "Error", JOptionPane.ERROR_MESSAGE);
+        }, "scan-history-query");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private static String millis(double value) {
+        return value < 10 ? String.format("%.2f", value) : String.format("%,.0f", value);
+    }
+
+    private void resetScanControls() {
+        refreshTimer.stop();
+        scanning = false;
+        scanButton.setEnabled(true);
+        stopButton.setEnabled(false);
+        resumeButton.setEnabled(checkpointFile().isFile());
+        progressBar.setVisible(false);
+    }
+
+    // EDT: apply everything the scan threads queued since the last tick
+    private void refreshScanView() {
+        List<Long> found = events.drainOpenPorts();
+        if (!found.isEmpty()) {
+            addResults(found);
+        }
+        List<ScanEventBuffer.Service> services = events.drainServices();
+        if (!services.isEmpty()) {
+            applyServices(services);
         }
+        List<String> lines = events.drainLog();
+        if (!lines.isEmpty()) {
+            appendLog(lines);
+        }
+        if (engine != null) {
+            long total = engine.getTotalProbes();
+            long done = engine.getResumedProbes() + progress.completed();
+            progressBar.setValue(total == 0 ? 100 : (int) (done * 100 / total));
+
+            // Rates are sampled on their own slower cadence so the window means something
+            long now = System.nanoTime();
+            if (now - lastStatsNanos >= 250_000_000L) {
+                lastStatsNanos = now;
+                updateScanStats(progress.sample(total - engine.getResumedProbes()));
+            }
+        }
+        updateEngineStatus();
+    }
 
-        return ipList;
-    }
-
-    private String getServiceName(int port) {
-        // Common port services
-        switch (port) {
-            case 21: return "FTP";
-            case 22: return "SSH";
-            case 23: return "Telnet";
-            case 25: return "SMTP";
-            case 53: return "DNS";
-            case 80: return "HTTP";
-            case 110: return "POP3";
-            case 143: return "IMAP";
-            case 443: return "HTTPS";
-            case 993: return "IMAPS";
-            case 995: return "POP3S";
-            case 3306: return "MySQL";
-            case 3389: return "RDP";
-            case 5432: return "PostgreSQL";
-            case 8080: return "HTTP-Alt";
-            case 8443: return "HTTPS-Alt";
-            default: return "Unknown";
-        }
-    }
-
-    private String getPortDescription(int port) {
-        // Detailed descriptions for common ports
-        switch (port) {
-            case 21: return "File Transfer Protocol - for uploading/downloading files";
-            case 22: return "Secure Shell - secure remote administration";
-            case 23: return "Telnet - unsecure remote login (avoid using)";
-            case 25: return "Simple Mail Transfer Protocol - sending emails";
-            case 53: return "Domain Name System - translates domain names to IPs";
-            case 80: return "Hypertext Transfer Protocol - regular web browsing";
-            case 110: return "Post Office Protocol v3 - receiving emails";
-            case 143: return "Internet Message Access Protocol - email access";
-            case 443: return "HTTP Secure - encrypted web browsing";
-            case 993: return "IMAP over SSL - secure email access";
-            case 995: return "POP3 over SSL - secure email retrieval";
-            case 3306: return "MySQL Database - popular database system";
-            case 3389: return "Remote Desktop Protocol - Windows remote access";
-            case 5432: return "PostgreSQL Database - advanced database system";
-            case 8080: return "HTTP Alternative - often used for web proxies";
-            case 8443: return "HTTPS Alternative - secure web services";
-            default:
-                if (port <= 1024) return "Well-known port - system services";
-                else if (port <= 49151) return "Registered port - user applications";
-                else return "Dynamic/private port - temporary use";
-        }
-    }
-
-    private void addResult(String ip, int port, String status, String service, String description) {
-        tableModel.addRow(new Object[]{ip, port, status, service, description});
+    private void updateScanStats(ScanProgress.Snapshot snap) {
+        String eta = snap.etaSeconds < 0 ? "--:--"
+                : String.format("%d:%02d:%02d", snap.etaSeconds / 3600, (snap.etaSeconds / 60) % 60,
+                snap.etaSeconds % 60);
+        String silent = snap.openFiltered > 0 ? String.format("  open|filtered %,d", snap.openFiltered) : "";
+        scanStatsLabel.setText(String.format("%,.0f probes/s  |  open %,d  closed %,d  filtered %,d  errors %,d%s"
+                        + "  |  ETA %s",
+                snap.probesPerSecond, snap.open, snap.closed, snap.filtered, snap.errors, silent, eta));
+    }
+
+    private void updateEngineStatus() {
+        if (engine == null) {
+            return;
+        }
+        ScanConfig config = engine.getConfig();
+        int workers = engine.getWorkerCount();
+        long fds = ScanEngine.openFileDescriptors();
+        engineStatusLabel.setText("Mode: " + (config.isUdp() ? "UDP" : config.getMode()) + "  |  Limit: " + config.getMaxInFlight()
+                + (workers >= 0 ? "  |  Workers: " + workers
+                        : "  |  In flight: " + engine.getInFlight() + "  |  Sockets: " + engine.getOpenChannels())
+                + (fds >= 0 ? "  |  FDs: " + fds : ""));
+    }
+
+
+    private void addResults(List<Long> found) {
+        resultsModel.addOpen(found, engine != null && engine.getConfig().isUdp());
+        updateResultCount();
+    }
+
+    private void applyServices(List<ScanEventBuffer.Service> services) {
+        resultsModel.applyServices(services);
+    }
+
+    private void updateResultCount() {
+        int shown = resultsModel.getRowCount();
+        int total = resultsModel.getResultCount();
+        int column = resultsModel.getSortColumn();
+        resultCountLabel.setText((shown == total ? String.format("%,d rows", total)
+                : String.format("%,d of %,d rows", shown, total))
+                + (column >= 0 ? "  |  by " + ScanResultsModel.COLUMNS[column]
+                + (resultsModel.isAscending() ? " (ascending)" : " (descending)") : ""));
     }
 
     private void log(String message) {
         logArea.append("[" + new Date().toString().split(" ")[3] + "] " + message + "\n");
         logArea.setCaretPosition(logArea.getDocument().getLength());
     }
+
+    private void appendLog(List<String> messages) {
+        String stamp = "[" + new Date().toString().split(" ")[3] + "] ";
+        StringBuilder sb = new StringBuilder();
+        for (String message : messages) {
+            sb.append(stamp).append(message).append('\n');
+        }
+        logArea.append(sb.toString());
+        logArea.setCaretPosition(logArea.getDocument().getLength());
+    }
 }
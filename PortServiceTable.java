@@ -0,0 +1,362 @@
+import java.io.*;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Port metadata for every TCP and UDP port, loaded from an nmap-services
+ * style database into flat arrays indexed by port number. Lookups are a
+ * single array read returning a shared String, so the result table can ask
+ * for names and descriptions as often as it likes without allocating.
+ *
+ * The database is port-services.txt in the working directory if present
+ * (a full nmap-services file works), then the one next to the application's
+ * classes or jar, otherwise the copy bundled on the classpath. Parsing
+ * happens once: the arrays are then written to a compact binary cache beside
+ * the database that later starts read directly, until the source file
+ * changes.
+ *
+ * Cache layout (big-endian, via DataOutputStream):
+ *   int magic, int version, long sourceModified, long sourceLength
+ *   int nameCount, nameCount x UTF, int descriptionCount, descriptionCount x UTF
+ *   int entryCount, then per entry: int slot, short name, short description, float frequency
+ */
+final class PortServiceTable {
+    static final String SERVICES_FILE = "port-services.txt";
+    static final String CACHE_FILE = "port-services.cache";
+    private static final int MAGIC = 0x43535054; // "CSPT"
+    private static final int VERSION = 1;
+    private static final int PORTS = 65536;
+
+    // Slot layout: TCP ports first, then UDP
+    private final short[] name = new short[2 * PORTS];
+    private final short[] description = new short[2 * PORTS];
+    private final float[] frequency = new float[2 * PORTS];
+    // Index 0 is reserved for "no entry"
+    private final List<String> names = new ArrayList<>();
+    private final List<String> descriptions = new ArrayList<>();
+    // Ports 1-65535, most often open first, per protocol; built on first use
+    private int[] tcpRanking;
+    private int[] udpRanking;
+    // How many leading entries of each ranking have a frequency at all
+    private int tcpRanked;
+    private int udpRanked;
+
+    private static final class Holder {
+        static final PortServiceTable INSTANCE = load();
+    }
+
+    private PortServiceTable() {
+        names.add("unknown");
+        descriptions.add("");
+    }
+
+    static PortServiceTable get() {
+        return Holder.INSTANCE;
+    }
+
+    String name(int port) {
+        return names.get(name[port]);
+    }
+
+    String name(int port, boolean udp) {
+        return names.get(name[slot(port, udp)]);
+    }
+
+    // The database comment, or a generic note about the port range
+    String description(int port) {
+        short d = description[port];
+        if (d != 0) {
+            return descriptions.get(d);
+        }
+        if (port <= 1024) {
+            return "Well-known port - system services";
+        } else if (port <= 49151) {
+            return "Registered port - user applications";
+        }
+        return "Dynamic/private port - temporary use";
+    }
+
+    // Fraction of hosts this port is typically found open on (0 if unknown)
+    float frequency(int port) {
+        return frequency[port];
+    }
+
+    float frequency(int port, boolean udp) {
+        return frequency[slot(port, udp)];
+    }
+
+    // Up to count TCP ports most likely to be open, most likely first. Only
+    // ports the database has a frequency for are ranked, so a small database
+    // yields fewer than count; see rankedCount().
+    int[] topPorts(int count) {
+        return topPorts(count, false);
+    }
+
+    int[] topPorts(int count, boolean udp) {
+        return Arrays.copyOf(ranking(udp), Math.min(count, rankedCount(udp)));
+    }
+
+    // Number of ports with an open frequency, i.e. the most topPorts() can return
+    synchronized int rankedCount(boolean udp) {
+        ranking(udp);
+        return udp ? udpRanked : tcpRanked;
+    }
+
+    // The same ports reordered so the most likely to be open are probed first
+    int[] byFrequency(int[] ports) {
+        return byFrequency(ports, false);
+    }
+
+    int[] byFrequency(int[] ports, boolean udp) {
+        boolean[] wanted = new boolean[PORTS];
+        for (int port : ports) {
+            wanted[port] = true;
+        }
+        int[] ordered = new int[ports.length];
+        int n = 0;
+        for (int port : ranking(udp)) {
+            if (wanted[port]) {
+                wanted[port] = false;
+                ordered[n++] = port;
+            }
+        }
+        return n == ordered.length ? ordered : Arrays.copyOf(ordered, n);
+    }
+
+    private synchronized int[] ranking(boolean udp) {
+        if (udp) {
+            if (udpRanking == null) {
+                udpRanking = rank(true);
+                udpRanked = countRanked(udpRanking, true);
+            }
+            return udpRanking;
+        }
+        if (tcpRanking == null) {
+            tcpRanking = rank(false);
+            tcpRanked = countRanked(tcpRanking, false);
+        }
+        return tcpRanking;
+    }
+
+    private int countRanked(int[] ranking, boolean udp) {
+        int n = 0;
+        while (n < ranking.length && frequency[slot(ranking[n], udp)] > 0) {
+            n++;
+        }
+        return n;
+    }
+
+    private int[] rank(boolean udp) {
+        // Sort key: inverted frequency bits above the port, so one long sort
+        // gives descending frequency with ties in port order
+        long[] keys = new long[PORTS - 1];
+        for (int port = 1; port < PORTS; port++) {
+            int bits = Float.floatToIntBits(frequency[slot(port, udp)]);
+            keys[port - 1] = ((long) (Integer.MAX_VALUE - bits) << 16) | port;
+        }
+        Arrays.sort(keys);
+        int[] ranking = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            ranking[i] = (int) (keys[i] & 0xffff);
+        }
+        return ranking;
+    }
+
+    private static int slot(int port, boolean udp) {
+        return udp ? PORTS + port : port;
+    }
+
+    private static PortServiceTable load() {
+        File home = applicationDirectory();
+        File local = new File(SERVICES_FILE);
+        if (!local.isFile() && home != null) {
+            local = new File(home, SERVICES_FILE);
+        }
+        URL source;
+        try {
+            source = local.isFile() ? local.toURI().toURL() : PortServiceTable.class.getResource("/" + SERVICES_FILE);
+        } catch (IOException e) {
+            source = null;
+        }
+        if (source == null) {
+            System.err.println("Port service database not found, service names unavailable");
+            return new PortServiceTable();
+        }
+        File cache = local.isFile() ? new File(local.getAbsoluteFile().getParentFile(), CACHE_FILE)
+                : new File(home, CACHE_FILE);
+        try {
+            URLConnection connection = source.openConnection();
+            long modified = connection.getLastModified();
+            long length = connection.getContentLengthLong();
+            PortServiceTable table = readCache(cache, modified, length);
+            if (table != null) {
+                return table;
+            }
+            table = new PortServiceTable();
+            try (InputStream in = connection.getInputStream()) {
+                table.parse(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            }
+            try {
+                table.writeCache(cache, modified, length);
+            } catch (IOException e) {
+                // Read-only directory: we'll just parse again next time
+            }
+            return table;
+        } catch (IOException e) {
+            System.err.println("Could not load port service database: " + e.getMessage());
+            return new PortServiceTable();
+        }
+    }
+
+    // Directory holding the application's classes, or the one containing its jar;
+    // null if the code source is unknown
+    private static File applicationDirectory() {
+        try {
+            File code = new File(PortServiceTable.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return code.isDirectory() ? code : code.getParentFile();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // "name  port/proto  frequency  # comment"; anything but tcp/udp is skipped
+    private void parse(BufferedReader reader) throws IOException {
+        Map<String, Short> nameIds = new HashMap<>();
+        Map<String, Short> descriptionIds = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int hash = line.indexOf('#');
+            String comment = hash >= 0 ? line.substring(hash + 1).trim() : "";
+            String[] fields = (hash >= 0 ? line.substring(0, hash) : line).trim().split("\\s+");
+            if (fields.length < 2) {
+                continue;
+            }
+            int slash = fields[1].indexOf('/');
+            if (slash < 0) {
+                continue;
+            }
+            String proto = fields[1].substring(slash + 1);
+            if (!proto.equals("tcp") && !proto.equals("udp")) {
+                continue;
+            }
+            int port;
+            float freq = 0;
+            try {
+                port = Integer.parseInt(fields[1].substring(0, slash));
+                if (fields.length > 2) {
+                    freq = Float.parseFloat(fields[2]);
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (port < 0 || port >= PORTS) {
+                continue;
+            }
+            int slot = slot(port, proto.equals("udp"));
+            name[slot] = intern(fields[0], names, nameIds);
+            if (!comment.isEmpty()) {
+                description[slot] = intern(comment, descriptions, descriptionIds);
+            }
+            frequency[slot] = freq;
+        }
+    }
+
+    private static short intern(String value, List<String> values, Map<String, Short> ids) {
+        Short id = ids.get(value);
+        if (id == null) {
+            if (values.size() > Short.MAX_VALUE) {
+                return 0;
+            }
+            id = (short) values.size();
+            values.add(value);
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    private static PortServiceTable readCache(File cache, long modified, long length) {
+        if (!cache.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != modified || in.readLong() != length) {
+                return null;
+            }
+            PortServiceTable table = new PortServiceTable();
+            table.names.clear();
+            table.descriptions.clear();
+            readStrings(in, table.names);
+            readStrings(in, table.descriptions);
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+                int slot = in.readInt();
+                short n = in.readShort();
+                short d = in.readShort();
+                if (n < 0 || n >= table.names.size() || d < 0 || d >= table.descriptions.size()) {
+                    return null;
+                }
+                table.name[slot] = n;
+                table.description[slot] = d;
+                table.frequency[slot] = in.readFloat();
+            }
+            return table;
+        } catch (IOException | IndexOutOfBoundsException e) {
+            // Stale or damaged cache; fall back to parsing the source
+            return null;
+        }
+    }
+
+    private void writeCache(File cache, long modified, long length) throws IOException {
+        File tmp = new File(cache.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(modified);
+            out.writeLong(length);
+            writeStrings(out, names);
+            writeStrings(out, descriptions);
+            int entries = 0;
+            for (int slot = 0; slot < name.length; slot++) {
+                if (name[slot] != 0 || frequency[slot] != 0) {
+                    entries++;
+                }
+            }
+            out.writeInt(entries);
+            for (int slot = 0; slot < name.length; slot++) {
+                if (name[slot] != 0 || frequency[slot] != 0) {
+                    out.writeInt(slot);
+                    out.writeShort(name[slot]);
+                    out.writeShort(description[slot]);
+                    out.writeFloat(frequency[slot]);
+                }
+            }
+        }
+        if (!tmp.renameTo(cache)) {
+            cache.delete();
+            if (!tmp.renameTo(cache)) {
+                throw new IOException("Could not replace " + cache);
+            }
+        }
+    }
+
+    private static void readStrings(DataInputStream in, List<String> values) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            values.add(in.readUTF());
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.Arrays;
+
+/**
+ * Set of TCP/UDP ports as a 65536-bit bitset (8 KB whatever it holds).
+ * Parses specs separated by commas or whitespace:
+ *
+ *   22                      single port
+ *   8000-8100               inclusive range
+ *   !25, !6000-6063         exclusion, applied after everything else
+ *
+ * so "1-1024,3306,8000-8100,!25" is exactly those ports. A spec made only
+ * of exclusions starts from all ports. Iterating only visits set bits, so
+ * a sparse list costs exactly the ports it names.
+ */
+class PortSet {
+    private static final int PORTS = 65536;
+
+    private final long[] words = new long[PORTS / 64];
+    private int size;
+
+    static PortSet parse(String spec) {
+        PortSet include = new PortSet();
+        PortSet exclude = new PortSet();
+        boolean anyInclude = false;
+        for (String token : spec.trim().split("[,\\s]+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            boolean excluded = token.startsWith("!");
+            String range = excluded ? token.substring(1) : token;
+            int dash = range.indexOf('-');
+            int from, to;
+            try {
+                from = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+                to = dash < 0 ? from : Integer.parseInt(range.substring(dash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port spec: " + token);
+            }
+            if (from < 1 || to > 65535 || from > to) {
+                throw new IllegalArgumentException("Ports must be 1-65535 with start <= end: " + token);
+            }
+            if (excluded) {
+                exclude.addRange(from, to);
+            } else {
+                include.addRange(from, to);
+                anyInclude = true;
+            }
+        }
+        if (!anyInclude) {
+            if (exclude.isEmpty()) {
+                throw new IllegalArgumentException("No ports specified");
+            }
+            include.addRange(1, 65535);
+        }
+        include.removeAll(exclude);
+        if (include.isEmpty()) {
+            throw new IllegalArgumentException("Port spec excludes every port: " + spec.trim());
+        }
+        return include;
+    }
+
+    static PortSet of(int[] ports) {
+        PortSet set = new PortSet();
+        for (int port : ports) {
+            set.add(port);
+        }
+        return set;
+    }
+
+    // Sorted from/to pairs covering ports, duplicates and all; the compact form scan files store
+    static char[] toRanges(int[] ports) {
+        int[] sorted = ports.clone();
+        Arrays.sort(sorted);
+        char[] ranges = new char[sorted.length * 2];
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            int from = sorted[i];
+            while (i + 1 < sorted.length && sorted[i + 1] <= sorted[i] + 1) {
+                i++;
+            }
+            ranges[n++] = (char) from;
+            ranges[n++] = (char) sorted[i];
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    void add(int port) {
+        long bit = 1L << port;
+        if ((words[port >>> 6] & bit) == 0) {
+            words[port >>> 6] |= bit;
+            size++;
+        }
+    }
+
+    void addRange(int from, int to) {
+        for (int port = from; port <= to; port++) {
+            add(port);
+        }
+    }
+
+    void removeAll(PortSet other) {
+        size = 0;
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= ~other.words[i];
+            size += Long.bitCount(words[i]);
+        }
+    }
+
+    boolean contains(int port) {
+        return (words[port >>> 6] & (1L << port)) != 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Set ports in ascending order, visiting only the set bits
+    int[] toArray() {
+        int[] ports = new int[size];
+        int n = 0;
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                ports[n++] = (i << 6) | Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return ports;
+    }
+
+    // Compact spec that parses back to the same set, e.g. "21-23,25,53"
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int[] ports = toArray();
+        for (int i = 0; i < ports.length; i++) {
+            int from = ports[i];
+            while (i + 1 < ports.length && ports[i + 1] == ports[i] + 1) {
+                i++;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(from);
+            if (ports[i] != from) {
+                sb.append('-').append(ports[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-flight probe slots shared by every scan a ScanScheduler runs, so the
+ * sum of all jobs stays within one bound however many are going at once.
+ * Each engine holds a Lease and takes slots before pulling probes, giving
+ * them back as the probes complete.
+ *
+ * Priority is enforced at grant time: whatever a higher-priority lease
+ * asked for and didn't get is held back from every lower one, so an urgent
+ * job takes the slots a background sweep frees up and the sweep only gets
+ * what the urgent job can't use. A lease that turns out to have less work
+ * than it asked for (paced, or near the end of its scan) says so through
+ * unused() and stops holding anything back. Probes already in flight are never cut
+ * short; a connect finishes within its timeout, so preemption takes at
+ * most that long.
+ */
+final class ProbeBudget {
+    private final int capacity;
+    private final List<Lease> leases = new ArrayList<>();
+    private int used;
+
+    final class Lease {
+        private final ScanScheduler.Priority priority;
+        private final Runnable wakeup;
+        private int held;
+        // Slots asked for last time and not granted; what lower priorities must leave alone
+        private int starved;
+
+        private Lease(ScanScheduler.Priority priority, Runnable wakeup) {
+            this.priority = priority;
+            this.wakeup = wakeup;
+        }
+
+        ScanScheduler.Priority getPriority() {
+            return priority;
+        }
+    }
+
+    ProbeBudget(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Probe budget must be at least 1");
+        }
+        this.capacity = capacity;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    synchronized int getUsed() {
+        return used;
+    }
+
+    // wakeup is run (on the releasing thread) when slots free up after this lease was refused some
+    synchronized Lease lease(ScanScheduler.Priority priority, Runnable wakeup) {
+        Lease lease = new Lease(priority, wakeup);
+        leases.add(lease);
+        return lease;
+    }
+
+    // Gives back everything the lease still holds; it must not be used afterwards
+    void close(Lease lease) {
+        List<Runnable> wake;
+        synchronized (this) {
+            if (!leases.remove(lease)) {
+                return;
+            }
+            used -= lease.held;
+            lease.held = 0;
+            wake = starvedWakeups();
+            notifyAll();
+        }
+        runAll(wake);
+    }
+
+    // Up to wanted slots, possibly none; never blocks
+    synchronized int tryAcquire(Lease lease, int wanted) {
+        int granted = Math.max(0, Math.min(wanted, capacity - used - reservedAbove(lease.priority)));
+        lease.held += granted;
+        lease.starved = wanted - granted;
+        used += granted;
+        return granted;
+    }
+
+    // One slot, waiting as long as it takes
+    synchronized void acquire(Lease lease) throws InterruptedException {
+        while (tryAcquire(lease, 1) == 0) {
+            wait();
+        }
+    }
+
+    // Slots of a closed lease were already given back; returning them again is a no-op
+    void release(Lease lease, int slots) {
+        List<Runnable> wake;
+        synchronized (this) {
+            slots = Math.min(slots, lease.held);
+            if (slots <= 0) {
+                return;
+            }
+            lease.held -= slots;
+            used -= slots;
+            wake = starvedWakeups();
+            notifyAll();
+        }
+        // Outside the lock: a wakeup may go straight back to tryAcquire
+        runAll(wake);
+    }
+
+    // Gives back slots the lease took but had no probes for, and drops its claim on
+    // more until it next asks, waking the lower priorities that claim was holding back
+    void unused(Lease lease, int slots) {
+        List<Runnable> wake;
+        synchronized (this) {
+            if (slots <= 0 && lease.starved == 0) {
+                return;
+            }
+            lease.held -= Math.max(0, slots);
+            used -= Math.max(0, slots);
+            lease.starved = 0;
+            wake = starvedWakeups();
+            notifyAll();
+        }
+        runAll(wake);
+    }
+
+    private int reservedAbove(ScanScheduler.Priority priority) {
+        int reserved = 0;
+        for (Lease l : leases) {
+            if (l.priority.compareTo(priority) < 0) {
+                reserved += l.starved;
+            }
+        }
+        return reserved;
+    }
+
+    // Null when nobody is waiting, which is nearly every release; saves the garbage
+    private List<Runnable> starvedWakeups() {
+        List<Runnable> wake = null;
+        for (Lease l : leases) {
+            if (l.starved > 0 && l.wakeup != null) {
+                if (wake == null) {
+                    wake = new ArrayList<>(2);
+                }
+                wake.add(l.wakeup);
+            }
+        }
+        return wake;
+    }
+
+    private static void runAll(List<Runnable> wake) {
+        if (wake != null) {
+            wake.forEach(Runnable::run);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+// Result of a single probe (TCP connect, or UDP request/reply)
+enum ProbeOutcome {
+    OPEN,          // handshake completed, or the UDP service replied
+    CLOSED,        // connection refused (RST), or ICMP port unreachable for UDP
+    FILTERED,      // no answer before the deadline, or ICMP unreachable
+    ERROR,         // local failure (out of descriptors, bad address, ...)
+    OPEN_FILTERED  // UDP only: silence after every retry, so open but quiet, or dropped
+}
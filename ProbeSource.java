@@ -0,0 +1,373 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lazy producer and pacer of probe work. Walks targets x ports on demand and
+ * hands out packed (ip, port) pairs in batches no bigger than the caller's
+ * buffer, so nothing is generated until a driver has room for it and memory
+ * stays flat however large the scan is. close() makes every later pull come
+ * back empty, which is what lets Stop take effect immediately.
+ *
+ * Up to hostWindow targets are active at once and served round-robin, so
+ * one host never soaks up all the in-flight slots. Probes are additionally
+ * gated by a global token bucket (probes/second) and per-host in-flight and
+ * rate caps; drivers report completions back so the caps can be released.
+ *
+ * Instead of targets x ports, a source can also walk a per-host port plan
+ * (differential re-scans probe a different port list on every host).
+ *
+ * Completions also drive position(): how far through the target order the
+ * scan has got, plus exactly which probes of the hosts in progress are still
+ * outstanding. A source created from a saved Position skips finished work
+ * and re-issues the outstanding probes first.
+ */
+class ProbeSource {
+    private final TargetSpec.Iterator targets;
+    private final int[] ports;
+    private final Iterator<Map.Entry<Integer, int[]>> plan;
+    private final int hostWindow;
+    private final int perHostInFlight;
+    private final double perHostRate;
+    private final TokenBucket globalBucket;
+
+    private final List<HostCursor> ring = new ArrayList<>();
+    private final Map<Integer, HostCursor> active = new HashMap<>();
+    // Hosts in target order from the oldest one not yet finished
+    private final ArrayDeque<HostCursor> entered = new ArrayDeque<>();
+    private int ringIndex;
+    private long produced;
+    private long hostsPulled;
+    private long probesDone;
+    private volatile boolean closed;
+
+    private static final int[] NO_PORTS = new int[0];
+
+    // Scan position on one host; it stays in active until its last probe completes
+    private static final class HostCursor {
+        final long seq;
+        final int ip;
+        final int[] ports;
+        TokenBucket bucket;
+        int portIndex;
+        int inFlight;
+        boolean retired;
+        // Handed out but not completed yet
+        final BitSet pending = new BitSet();
+        // Probes restored from a checkpoint, issued before ports[portIndex..]
+        int[] redo = NO_PORTS;
+        int redoIndex;
+
+        HostCursor(long seq, int ip, int[] ports) {
+            this.seq = seq;
+            this.ip = ip;
+            this.ports = ports;
+        }
+
+        int nextPort() {
+            return redoIndex < redo.length ? redo[redoIndex++] : ports[portIndex++];
+        }
+
+        boolean exhausted() {
+            return redoIndex == redo.length && portIndex == ports.length;
+        }
+
+        boolean finished() {
+            return retired && inFlight == 0;
+        }
+    }
+
+    // Snapshot of scan progress, see position()
+    static final class Position {
+        final long hostsPulled;     // targets consumed in order; any not listed below are done
+        final long[] seqs;          // per unfinished host: index in the target order,
+        final int[] ips;            // its address,
+        final int[] nextIndex;      // the next untouched port index,
+        final int[][] outstanding;  // and ports handed out but never completed
+        final long probesDone;
+
+        Position(long hostsPulled, long[] seqs, int[] ips, int[] nextIndex, int[][] outstanding, long probesDone) {
+            this.hostsPulled = hostsPulled;
+            this.seqs = seqs;
+            this.ips = ips;
+            this.nextIndex = nextIndex;
+            this.outstanding = outstanding;
+            this.probesDone = probesDone;
+        }
+    }
+
+    ProbeSource(TargetSpec targets, int[] ports, ScanConfig config) {
+        this(targets, ports, null, config, null);
+    }
+
+    ProbeSource(Map<Integer, int[]> portPlan, ScanConfig config) {
+        this(null, null, portPlan, config, null);
+    }
+
+    // Resumes the work of config (targets x ports or its port plan) from a saved position
+    ProbeSource(ScanConfig config, Position resume) {
+        this(config.getPortPlan() == null ? config.getTargets() : null, config.getPorts(),
+                config.getPortPlan(), config, resume);
+    }
+
+    private ProbeSource(TargetSpec targets, int[] ports, Map<Integer, int[]> portPlan, ScanConfig config,
+                        Position resume) {
+        this.targets = targets != null ? targets.iterator() : null;
+        this.ports = ports;
+        this.plan = portPlan != null ? portPlan.entrySet().iterator() : null;
+        this.hostWindow = Math.max(1, config.getHostWindow());
+        this.perHostInFlight = config.getMaxPerHostInFlight() > 0 ? config.getMaxPerHostInFlight() : Integer.MAX_VALUE;
+        this.perHostRate = config.getMaxPerHostRate();
+        this.globalBucket = config.getMaxProbesPerSecond() > 0
+                ? TokenBucket.perSecond(config.getMaxProbesPerSecond(), System.nanoTime())
+                : null;
+        if (resume != null) {
+            restore(resume);
+        }
+        refillRing();
+    }
+
+    // Fills batch[0..max) and returns how many probes were written. 0 with
+    // hasNext() still true means the pacer is holding work back for now.
+    synchronized int next(long[] batch, int max) {
+        long now = System.nanoTime();
+        int limit = Math.min(max, batch.length);
+        if (globalBucket != null) {
+            limit = Math.min(limit, globalBucket.available(now));
+        }
+        int n = 0;
+        int misses = 0;
+        while (n < limit && !ring.isEmpty() && !closed && misses < ring.size()) {
+            if (ringIndex >= ring.size()) {
+                ringIndex = 0;
+            }
+            HostCursor host = ring.get(ringIndex);
+            if (host.inFlight >= perHostInFlight || (host.bucket != null && !host.bucket.tryTake(now))) {
+                ringIndex++;
+                misses++;
+                continue;
+            }
+            if (globalBucket != null) {
+                globalBucket.tryTake(now);
+            }
+            int port = host.nextPort();
+            batch[n++] = pack(host.ip, port);
+            host.pending.set(port);
+            host.inFlight++;
+            misses = 0;
+            if (host.exhausted()) {
+                retire(host);
+            } else {
+                ringIndex++;
+            }
+        }
+        produced += n;
+        return n;
+    }
+
+    // Drivers call this once per probe handed out by next(), unless the scan
+    // was cancelled before the probe got an answer
+    synchronized void completed(int ip, int port) {
+        HostCursor host = active.get(ip);
+        if (host != null && host.pending.get(port)) {
+            host.pending.clear(port);
+            host.inFlight--;
+            probesDone++;
+            if (host.finished()) {
+                active.remove(ip);
+                while (!entered.isEmpty() && entered.peekFirst().finished()) {
+                    entered.pollFirst();
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    synchronized boolean hasNext() {
+        return !ring.isEmpty() && !closed;
+    }
+
+    synchronized long getProduced() {
+        return produced;
+    }
+
+    // Probes answered so far, including those done before a resume
+    synchronized long getProbesDone() {
+        return probesDone;
+    }
+
+    // Everything needed to carry on later without repeating finished probes
+    synchronized Position position() {
+        int count = 0;
+        for (HostCursor host : entered) {
+            if (!host.finished()) {
+                count++;
+            }
+        }
+        long[] seqs = new long[count];
+        int[] ips = new int[count];
+        int[] nextIndex = new int[count];
+        int[][] outstanding = new int[count][];
+        int i = 0;
+        for (HostCursor host : entered) {
+            if (host.finished()) {
+                continue;
+            }
+            int[] redo = new int[host.pending.cardinality() + host.redo.length - host.redoIndex];
+            int n = 0;
+            for (int port = host.pending.nextSetBit(0); port >= 0; port = host.pending.nextSetBit(port + 1)) {
+                redo[n++] = port;
+            }
+            System.arraycopy(host.redo, host.redoIndex, redo, n, host.redo.length - host.redoIndex);
+            seqs[i] = host.seq;
+            ips[i] = host.ip;
+            nextIndex[i] = host.portIndex;
+            outstanding[i] = redo;
+            i++;
+        }
+        return new Position(hostsPulled, seqs, ips, nextIndex, outstanding, probesDone);
+    }
+
+    // How long until the pacer could release more work; 0 if it can now,
+    // -1 if it is waiting on completions (or has nothing left)
+    synchronized long nanosUntilReady() {
+        if (ring.isEmpty() || closed) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (HostCursor host : ring) {
+            if (host.inFlight < perHostInFlight) {
+                wait = Math.min(wait, host.bucket != null ? host.bucket.nanosUntilAvailable(now) : 0);
+            }
+        }
+        if (wait == Long.MAX_VALUE) {
+            return -1;
+        }
+        if (globalBucket != null) {
+            wait = Math.max(wait, globalBucket.nanosUntilAvailable(now));
+        }
+        return wait;
+    }
+
+    // Roughly how many probes next() could hand out right now, at most max: what the
+    // global and per-host pacers allow across the hosts in the ring
+    synchronized int available(int max) {
+        if (ring.isEmpty() || closed) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        int limit = globalBucket != null ? Math.min(max, globalBucket.available(now)) : max;
+        if (perHostInFlight == Integer.MAX_VALUE && perHostRate <= 0) {
+            return limit;
+        }
+        long n = 0;
+        for (HostCursor host : ring) {
+            int free = perHostInFlight - host.inFlight;
+            if (host.bucket != null) {
+                free = Math.min(free, host.bucket.available(now));
+            }
+            n += Math.max(0, free);
+            if (n >= limit) {
+                return limit;
+            }
+        }
+        return (int) n;
+    }
+
+    // Blocks a thread-mode driver until the pacer may have work again
+    synchronized void awaitReady() throws InterruptedException {
+        long wait = nanosUntilReady();
+        if (wait != 0 && hasNext()) {
+            long millis = wait < 0 ? 10 : Math.max(1, wait / 1_000_000);
+            wait(millis);
+        }
+    }
+
+    void close() {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    static long pack(int ip, int port) {
+        return ((ip & 0xffffffffL) << 16) | port;
+    }
+
+    static int ipOf(long probe) {
+        return (int) (probe >>> 16);
+    }
+
+    static int portOf(long probe) {
+        return (int) (probe & 0xffff);
+    }
+
+    // A host that has handed out its last port leaves the ring; the next target takes its place
+    private void retire(HostCursor host) {
+        ring.remove(ringIndex);
+        host.retired = true;
+        if (host.finished()) {
+            active.remove(host.ip);
+        }
+        refillRing();
+    }
+
+    private void refillRing() {
+        HostCursor host;
+        while (ring.size() < hostWindow && (host = pull()) != null) {
+            if (host.ports.length > 0) {
+                admit(host);
+            }
+        }
+    }
+
+    private void admit(HostCursor host) {
+        host.bucket = perHostRate > 0 ? TokenBucket.perSecond(perHostRate, System.nanoTime()) : null;
+        // Completions are matched to hosts by address, so a repeated target would never finish
+        if (active.putIfAbsent(host.ip, host) != null) {
+            throw new IllegalStateException("Target " + Ipv4.toString(host.ip) + " is listed twice");
+        }
+        ring.add(host);
+        entered.add(host);
+    }
+
+    // Next target in order, or null when there are none left
+    private HostCursor pull() {
+        if (plan != null) {
+            if (!plan.hasNext()) {
+                return null;
+            }
+            Map.Entry<Integer, int[]> entry = plan.next();
+            return new HostCursor(hostsPulled++, entry.getKey(), entry.getValue());
+        }
+        if (!targets.hasNext()) {
+            return null;
+        }
+        return new HostCursor(hostsPulled++, targets.next(), ports);
+    }
+
+    // Replays the target order up to the saved position, keeping only unfinished hosts
+    private void restore(Position resume) {
+        int next = 0;
+        HostCursor host;
+        while (hostsPulled < resume.hostsPulled && (host = pull()) != null) {
+            if (next < resume.seqs.length && resume.seqs[next] == host.seq) {
+                if (host.ip != resume.ips[next] || resume.nextIndex[next] > host.ports.length) {
+                    throw new IllegalArgumentException("Checkpoint does not match the scan targets");
+                }
+                host.portIndex = resume.nextIndex[next];
+                host.redo = resume.outstanding[next];
+                next++;
+                if (!host.exhausted()) {
+                    admit(host);
+                }
+            }
+        }
+        probesDone = resume.probesDone;
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-host connect timeout derived from measured round-trip times, using the
+ * same SRTT/RTTVAR smoothing TCP uses for its retransmission timer
+ * (RFC 6298): timeout = SRTT + 4 * RTTVAR, clamped to [min, max].
+ *
+ * Hosts without a sample yet get the max timeout. State lives in a fixed-size
+ * direct-mapped table, so memory stays constant however many hosts a scan
+ * touches; a colliding host just starts over from the max timeout. Which
+ * hosts have ever answered is kept apart, one bit each in per-/16 pages, so
+ * those restarts don't count a host twice.
+ */
+class RttEstimator {
+    private static final int SLOTS = 4096;
+    // Floor for the variance term, so a perfectly steady LAN still leaves slack
+    private static final long MIN_VARIANCE_MICROS = 1000;
+
+    private final long minTimeoutMicros;
+    private final long maxTimeoutMicros;
+    private final int[] hostIps = new int[SLOTS];
+    private final long[] srttMicros = new long[SLOTS];
+    private final long[] rttvarMicros = new long[SLOTS];
+    private final boolean[] seeded = new boolean[SLOTS];
+    // Hosts that have given a sample: 65536-bit page per /16, created on first use
+    private final Map<Integer, long[]> measured = new HashMap<>();
+    private int hostsMeasured;
+
+    RttEstimator(int minTimeoutMillis, int maxTimeoutMillis) {
+        this.minTimeoutMicros = minTimeoutMillis * 1000L;
+        this.maxTimeoutMicros = Math.max(minTimeoutMillis, maxTimeoutMillis) * 1000L;
+    }
+
+    synchronized void addSample(int ip, long rttNanos) {
+        int slot = slot(ip);
+        long r = Math.max(1, rttNanos / 1000);
+        if (!seeded[slot] || hostIps[slot] != ip) {
+            hostIps[slot] = ip;
+            srttMicros[slot] = r;
+            rttvarMicros[slot] = r / 2;
+            seeded[slot] = true;
+            long[] page = measured.computeIfAbsent(ip >>> 16, k -> new long[1024]);
+            int bit = ip & 0xffff;
+            if ((page[bit >>> 6] & (1L << bit)) == 0) {
+                page[bit >>> 6] |= 1L << bit;
+                hostsMeasured++;
+            }
+            return;
+        }
+        long srtt = srttMicros[slot];
+        rttvarMicros[slot] = (3 * rttvarMicros[slot] + Math.abs(srtt - r)) / 4;
+        srttMicros[slot] = (7 * srtt + r) / 8;
+    }
+
+    synchronized int timeoutMillis(int ip) {
+        int slot = slot(ip);
+        if (!seeded[slot] || hostIps[slot] != ip) {
+            return (int) (maxTimeoutMicros / 1000);
+        }
+        long rto = srttMicros[slot] + 4 * Math.max(rttvarMicros[slot], MIN_VARIANCE_MICROS);
+        rto = Math.max(minTimeoutMicros, Math.min(maxTimeoutMicros, rto));
+        return (int) ((rto + 999) / 1000);
+    }
+
+    // Distinct hosts with at least one sample
+    synchronized int getHostsMeasured() {
+        return hostsMeasured;
+    }
+
+    private static int slot(int ip) {
+        // Fibonacci hashing spreads consecutive addresses across the table
+        return (ip * 0x9E3779B9) >>> 20;
+    }
+}
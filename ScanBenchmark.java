@@ -0,0 +1,530 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reproducible throughput benchmark for the scan engine. Builds a simulated
+ * network on loopback (every 127.x.x.x address routes to lo on Linux) with a
+ * seeded layout of port states, scans it once per engine configuration and
+ * reports probes/s, p50/p99 probe latency and how many probes got the right
+ * answer.
+ *
+ *   open      listening; the harness accepts and drops every connection
+ *   closed    nothing bound, so the kernel answers with a RST
+ *   filtered  listening, but the accept queue is plugged with the harness's
+ *             own connections, so the kernel silently drops every SYN
+ *   delayed   plugged like filtered for the first --delay-ms of each run and
+ *             then unplugged, so a probe sent early is answered on the
+ *             client's next SYN retransmission
+ *
+ * Injecting latency per packet needs netem and root; without them the
+ * delayed ports are the latency knob, in steps of the kernel's SYN
+ * retransmit timer (1 s, then 3 s, ...). They are reported on their own and
+ * left out of the accuracy figure, since whether they count as open depends
+ * on the timeout being tested.
+ *
+ *   java ScanBenchmark --hosts 4 --ports 2000 --configs selector:256,selector:4096,threads:1024
+ */
+class ScanBenchmark {
+    private static final String USAGE = String.join("\n",
+            "Usage: java ScanBenchmark [options]",
+            "  --hosts N          simulated hosts, 127.0.10.1 upwards (default 4)",
+            "  --ports N          ports per host, from --base-port upwards (default 2000)",
+            "  --base-port N      first port (default 20000)",
+            "  --open PCT         percentage of ports open (default 5)",
+            "  --filtered PCT     percentage of ports dropping SYNs (default 2)",
+            "  --delayed PCT      percentage of ports answering late (default 1)",
+            "  --delay-ms MS      how long delayed ports drop SYNs per run (default 300)",
+            "  --seed N           layout seed, so runs are comparable (default 1)",
+            "  --timeout MS       connect timeout (default 1000)",
+            "  --configs LIST     engine configurations as mode:maxInFlight[:fixed], mode being",
+            "                     selector or threads; fixed turns adaptive timeouts off",
+            "                     (default selector:256,selector:1024,selector:4096,threads:1024)",
+            "  --runs N           runs per configuration (default 1)",
+            "  --warmup N         unreported runs of the first configuration first (default 1)");
+
+    private static final int FIRST_HOST = (127 << 24) | (10 << 8) | 1; // 127.0.10.1
+
+    enum Role { OPEN, CLOSED, FILTERED, DELAYED, EXCLUDED }
+
+    // One engine setup to measure
+    private static final class Setup {
+        final ScanEngine.Mode mode;
+        final int maxInFlight;
+        final boolean adaptive;
+
+        Setup(ScanEngine.Mode mode, int maxInFlight, boolean adaptive) {
+            this.mode = mode;
+            this.maxInFlight = maxInFlight;
+            this.adaptive = adaptive;
+        }
+
+        static Setup parse(String text) {
+            String[] parts = text.split(":");
+            if (parts.length < 2 || parts.length > 3 || (parts.length == 3 && !parts[2].equals("fixed"))) {
+                throw new IllegalArgumentException("Invalid configuration: " + text);
+            }
+            ScanEngine.Mode mode;
+            if (parts[0].equals("selector")) {
+                mode = ScanEngine.Mode.SELECTOR;
+            } else if (parts[0].equals("threads")) {
+                mode = ScanEngine.Mode.VIRTUAL_THREADS;
+            } else {
+                throw new IllegalArgumentException("Unknown engine mode: " + parts[0]);
+            }
+            try {
+                int maxInFlight = Integer.parseInt(parts[1]);
+                if (maxInFlight < 1) {
+                    throw new NumberFormatException();
+                }
+                return new Setup(mode, maxInFlight, parts.length == 2);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid in-flight limit: " + text);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (mode == ScanEngine.Mode.SELECTOR ? "selector" : "threads") + ":" + maxInFlight
+                    + (adaptive ? "" : ":fixed");
+        }
+    }
+
+    /**
+     * The simulated hosts. Listening sockets stay open between runs; a single
+     * acceptor thread drains connections to open ports so their accept queues
+     * never fill up, and plugs/unplugs the delayed ports at the start of each
+     * run.
+     */
+    static final class SimulatedNetwork implements AutoCloseable {
+        private final int hosts;
+        private final int basePort;
+        private final int portsPerHost;
+        private final Role[] roles;
+        private final List<ServerSocketChannel> listeners = new ArrayList<>();
+        private final List<Socket> plugs = new ArrayList<>();
+        private final List<ServerSocketChannel> delayed = new ArrayList<>();
+        private final List<Socket> delayedPlugs = new ArrayList<>();
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private Thread acceptor;
+        private volatile boolean closed;
+        private long unplugAtNanos = -1;
+
+        SimulatedNetwork(int hosts, int basePort, int portsPerHost, double openPct, double filteredPct,
+                         double delayedPct, long seed) throws IOException {
+            this.hosts = hosts;
+            this.basePort = basePort;
+            this.portsPerHost = portsPerHost;
+            this.roles = new Role[hosts * portsPerHost];
+            this.selector = Selector.open();
+            Random random = new Random(seed);
+            try {
+                for (int h = 0; h < hosts; h++) {
+                    for (int p = 0; p < portsPerHost; p++) {
+                        double roll = random.nextDouble() * 100;
+                        Role role = roll < openPct ? Role.OPEN
+                                : roll < openPct + filteredPct ? Role.FILTERED
+                                : roll < openPct + filteredPct + delayedPct ? Role.DELAYED
+                                : Role.CLOSED;
+                        roles[h * portsPerHost + p] = setUp(role, FIRST_HOST + h, basePort + p);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            acceptor = new Thread(this::acceptLoop, "benchmark-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        // Binds what the role needs; a port something else already holds can't be simulated
+        private Role setUp(Role role, int ip, int port) throws IOException {
+            InetSocketAddress address = Ipv4.socketAddress(ip, port);
+            ServerSocketChannel server = ServerSocketChannel.open();
+            try {
+                // Backlog 1: the kernel queues two connections, then drops SYNs
+                server.bind(address, 1);
+            } catch (IOException e) {
+                server.close();
+                return Role.EXCLUDED;
+            }
+            if (role == Role.CLOSED) {
+                // Only bound to prove the port is free
+                server.close();
+                return role;
+            }
+            listeners.add(server);
+            server.configureBlocking(false);
+            if (role == Role.OPEN) {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } else if (role == Role.FILTERED) {
+                plug(server, plugs);
+            } else {
+                // Plugged by startRun()
+                delayed.add(server);
+            }
+            return role;
+        }
+
+        private static void plug(ServerSocketChannel server, List<Socket> into) throws IOException {
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            for (int i = 0; i < 2; i++) {
+                Socket plug = new Socket();
+                into.add(plug);
+                plug.connect(address, 1000);
+            }
+        }
+
+        // Re-plugs the delayed ports for delayMillis from now; returns once they are plugged
+        void startRun(int delayMillis) throws InterruptedException {
+            CountDownLatch plugged = new CountDownLatch(1);
+            submit(() -> {
+                for (ServerSocketChannel server : delayed) {
+                    SelectionKey key = server.keyFor(selector);
+                    if (key != null) {
+                        key.cancel();
+                    }
+                }
+                try {
+                    selector.selectNow(); // deregister the cancelled keys
+                    for (ServerSocketChannel server : delayed) {
+                        // Late connections from the last run would leave no room for the plugs
+                        drain(server);
+                        plug(server, delayedPlugs);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Could not plug delayed ports: " + e.getMessage());
+                }
+                unplugAtNanos = System.nanoTime() + delayMillis * 1_000_000L;
+                plugged.countDown();
+            });
+            plugged.await();
+        }
+
+        Role role(int ip, int port) {
+            int h = ip - FIRST_HOST;
+            int p = port - basePort;
+            return h >= 0 && h < hosts && p >= 0 && p < portsPerHost ? roles[h * portsPerHost + p] : Role.EXCLUDED;
+        }
+
+        int count(Role role) {
+            int n = 0;
+            for (Role r : roles) {
+                if (r == role) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        TargetSpec targets() {
+            int[] ips = new int[hosts];
+            for (int h = 0; h < hosts; h++) {
+                ips[h] = FIRST_HOST + h;
+            }
+            return TargetSpec.of(ips);
+        }
+
+        int[] ports() {
+            int[] ports = new int[portsPerHost];
+            for (int p = 0; p < portsPerHost; p++) {
+                ports[p] = basePort + p;
+            }
+            return ports;
+        }
+
+        private void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void acceptLoop() {
+            while (!closed) {
+                try {
+                    long wait = unplugAtNanos < 0 ? 0 : Math.max(1, (unplugAtNanos - System.nanoTime()) / 1_000_000);
+                    selector.select(wait);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    if (unplugAtNanos >= 0 && System.nanoTime() >= unplugAtNanos) {
+                        unplugAtNanos = -1;
+                        unplug();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        drain((ServerSocketChannel) key.channel());
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException e) {
+                    if (!closed) {
+                        System.err.println("Acceptor failed: " + e.getMessage());
+                    }
+                    return;
+                }
+            }
+        }
+
+        // Accepting the plug connections frees the queue; from then on it's an open port
+        private void unplug() throws IOException {
+            for (ServerSocketChannel server : delayed) {
+                drain(server);
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            }
+            for (Socket plug : delayedPlugs) {
+                plug.close();
+            }
+            delayedPlugs.clear();
+        }
+
+        private static void drain(ServerSocketChannel server) throws IOException {
+            SocketChannel accepted;
+            while ((accepted = server.accept()) != null) {
+                accepted.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            selector.wakeup();
+            if (acceptor != null) {
+                try {
+                    acceptor.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            plugs.addAll(delayedPlugs);
+            for (Socket plug : plugs) {
+                try {
+                    plug.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            for (ServerSocketChannel server : listeners) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    // What one scan of the simulated network measured
+    private static final class Result {
+        long probes;
+        long elapsedNanos;
+        long p50Nanos;
+        long p99Nanos;
+        int judged;
+        int correct;
+        int delayedOpen;
+        final int[] expected = new int[Role.values().length];
+        final int[] matched = new int[Role.values().length];
+
+        double probesPerSecond() {
+            return elapsedNanos == 0 ? 0 : probes * 1e9 / elapsedNanos;
+        }
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    private static int run(String[] args) {
+        int hosts = 4, ports = 2000, basePort = 20000;
+        int openPct = 5, filteredPct = 2, delayedPct = 1, delayMillis = 300;
+        int seed = 1, timeout = 1000, runs = 1, warmup = 1;
+        List<Setup> setups = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--hosts": hosts = ScanCli.number(args, ++i, arg, 1); break;
+                    case "--ports": ports = ScanCli.number(args, ++i, arg, 1); break;
+                    case "--base-port": basePort = ScanCli.number(args, ++i, arg, 1); break;
+                    case "--open": openPct = ScanCli.number(args, ++i, arg, 0); break;
+                    case "--filtered": filteredPct = ScanCli.number(args, ++i, arg, 0); break;
+                    case "--delayed": delayedPct = ScanCli.number(args, ++i, arg, 0); break;
+                    case "--delay-ms": delayMillis = ScanCli.number(args, ++i, arg, 0); break;
+                    case "--seed": seed = ScanCli.number(args, ++i, arg, 0); break;
+                    case "--timeout": timeout = ScanCli.number(args, ++i, arg, 1); break;
+                    case "--runs": runs = ScanCli.number(args, ++i, arg, 1); break;
+                    case "--warmup": warmup = ScanCli.number(args, ++i, arg, 0); break;
+                    case "--configs":
+                        for (String spec : ScanCli.value(args, ++i, arg).split(",")) {
+                            setups.add(Setup.parse(spec.trim()));
+                        }
+                        break;
+                    case "-h": case "--help":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (basePort + ports - 1 > 65535) {
+                throw new IllegalArgumentException("--base-port + --ports runs past port 65535");
+            }
+            if (hosts > 254) {
+                throw new IllegalArgumentException("--hosts can be at most 254");
+            }
+            if (openPct + filteredPct + delayedPct > 100) {
+                throw new IllegalArgumentException("--open, --filtered and --delayed add up to more than 100");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        if (setups.isEmpty()) {
+            for (String spec : new String[]{"selector:256", "selector:1024", "selector:4096", "threads:1024"}) {
+                setups.add(Setup.parse(spec));
+            }
+        }
+
+        try (SimulatedNetwork network = new SimulatedNetwork(hosts, basePort, ports, openPct, filteredPct,
+                delayedPct, seed)) {
+            System.out.printf("Simulated network: %d host(s) from %s, ports %d-%d%n", hosts,
+                    Ipv4.toString(FIRST_HOST), basePort, basePort + ports - 1);
+            System.out.printf("  open %,d  closed %,d  filtered %,d  delayed %,d (%d ms)  excluded %,d%n",
+                    network.count(Role.OPEN), network.count(Role.CLOSED), network.count(Role.FILTERED),
+                    network.count(Role.DELAYED), delayMillis, network.count(Role.EXCLUDED));
+            if (!ScanEngine.virtualThreadsAvailable()) {
+                System.out.println("  (threads mode runs on platform threads: virtual threads need Java 21+)");
+            }
+            for (int i = 0; i < warmup; i++) {
+                measure(network, setups.get(0), timeout, delayMillis);
+            }
+
+            System.out.println();
+            System.out.printf("%-20s %10s %9s %9s %9s %7s %7s %9s %9s%n", "config", "probes/s", "p50 ms",
+                    "p99 ms", "accuracy", "open", "closed", "filtered", "delayed");
+            for (Setup setup : setups) {
+                for (int r = 0; r < runs; r++) {
+                    print(setup, measure(network, setup, timeout, delayMillis));
+                }
+            }
+            return 0;
+        } catch (IOException e) {
+            System.err.println("Could not set up the simulated network: " + e.getMessage());
+            System.err.println("(addresses beyond 127.0.0.1 need Linux; elsewhere try --hosts 1)");
+            return 1;
+        } catch (InterruptedException e) {
+            return 1;
+        }
+    }
+
+    private static Result measure(SimulatedNetwork network, Setup setup, int timeout, int delayMillis)
+            throws InterruptedException {
+        ScanConfig config = new ScanConfig();
+        config.setTargets(network.targets());
+        config.setPorts(network.ports());
+        config.setMode(setup.mode);
+        config.setMaxInFlight(setup.maxInFlight);
+        config.setAdaptiveTimeout(setup.adaptive);
+        config.setTimeoutMillis(timeout);
+
+        int total = (int) config.getTotalProbes();
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicInteger count = new AtomicInteger();
+        ProbeOutcome[] observed = new ProbeOutcome[total];
+        int portsPerHost = config.getPorts().length;
+        int basePort = config.getPorts()[0];
+
+        ScanEngine engine = new ScanEngine(config, new ScanListener() {
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome) {
+                // The engine reports through the timed overload below
+            }
+
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome, long elapsedNanos) {
+                int n = count.getAndIncrement();
+                if (n < total) {
+                    latency.record(elapsedNanos);
+                    observed[(ip - FIRST_HOST) * portsPerHost + (port - basePort)] = outcome;
+                }
+            }
+
+            @Override
+            public void scanFinished(boolean cancelled) {
+            }
+        });
+
+        network.startRun(delayMillis);
+        long start = System.nanoTime();
+        engine.start();
+        engine.awaitTermination();
+
+        Result result = new Result();
+        result.elapsedNanos = System.nanoTime() - start;
+        int n = Math.min(count.get(), total);
+        result.probes = n;
+        result.p50Nanos = (long) (latency.percentileMillis(50) * 1e6);
+        result.p99Nanos = (long) (latency.percentileMillis(99) * 1e6);
+
+        for (int h = 0; h < network.hosts; h++) {
+            for (int p = 0; p < portsPerHost; p++) {
+                Role role = network.role(FIRST_HOST + h, basePort + p);
+                ProbeOutcome outcome = observed[h * portsPerHost + p];
+                result.expected[role.ordinal()]++;
+                if (role == Role.DELAYED) {
+                    if (outcome == ProbeOutcome.OPEN) {
+                        result.delayedOpen++;
+                    }
+                    continue;
+                }
+                if (role == Role.EXCLUDED) {
+                    continue;
+                }
+                result.judged++;
+                if (outcome == expectedOutcome(role)) {
+                    result.correct++;
+                    result.matched[role.ordinal()]++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static ProbeOutcome expectedOutcome(Role role) {
+        switch (role) {
+            case OPEN: return ProbeOutcome.OPEN;
+            case CLOSED: return ProbeOutcome.CLOSED;
+            case FILTERED: return ProbeOutcome.FILTERED;
+            default: return null;
+        }
+    }
+
+    private static void print(Setup setup, Result r) {
+        System.out.printf("%-20s %,10.0f %9.2f %9.2f %8.2f%% %7s %7s %9s %9s%n", setup, r.probesPerSecond(),
+                r.p50Nanos / 1e6, r.p99Nanos / 1e6, r.judged == 0 ? 100.0 : r.correct * 100.0 / r.judged,
+                fraction(r, Role.OPEN), fraction(r, Role.CLOSED), fraction(r, Role.FILTERED),
+                r.delayedOpen + "/" + r.expected[Role.DELAYED.ordinal()]);
+    }
+
+    // Correct answers out of ports with that role, e.g. "98/100"
+    private static String fraction(Result r, Role role) {
+        return r.matched[role.ordinal()] + "/" + r.expected[role.ordinal()];
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Saved state of an interrupted scan: the settings it ran with, how far the
+ * ProbeSource had got, and the open ports found so far. The engine writes
+ * one periodically while a scan runs and once more when it is stopped, so
+ * a closed app or a sleeping machine costs at most one interval of work.
+ *
+ * File layout (big-endian, via DataOutputStream):
+ *   int magic, int version, long savedAt
+ *   settings: int timeout, boolean adaptive, int minTimeout, int maxInFlight, int mode,
+ *             int hostWindow, int maxRate, int perHostInFlight, int perHostRate,
+ *             boolean serviceDetection, int bannerTimeout, boolean udp, int udpRetries
+ *   targets (TargetSpec.writeTo), int portCount, portCount x char port
+ *   int planHosts (-1 = no plan), then per host: int ip, int portCount, portCount x char port
+ *   position: long hostsPulled, long probesDone, int hostCount,
+ *             per host: long seq, int ip, int nextIndex, int count, count x char port
+ *   int openCount, openCount x long packed probe
+ */
+class ScanCheckpoint {
+    static final String DEFAULT_FILE = "scan-checkpoint.bin";
+    private static final int MAGIC = 0x4353434b; // "CSCK"
+    private static final int VERSION = 2;
+
+    private final ScanConfig config;
+    private final ProbeSource.Position position;
+    private final long[] openPorts;
+    private final long savedAt;
+
+    // config must already describe the exact work left (targets after discovery, no discovery pass)
+    ScanCheckpoint(ScanConfig config, ProbeSource.Position position, long[] openPorts, long savedAt) {
+        this.config = config;
+        this.position = position;
+        this.openPorts = openPorts;
+        this.savedAt = savedAt;
+    }
+
+    ScanConfig getConfig() {
+        return config;
+    }
+
+    ProbeSource.Position getPosition() {
+        return position;
+    }
+
+    long[] getOpenPorts() {
+        return openPorts;
+    }
+
+    long getSavedAt() {
+        return savedAt;
+    }
+
+    void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(savedAt);
+
+            out.writeInt(config.getTimeoutMillis());
+            out.writeBoolean(config.isAdaptiveTimeout());
+            out.writeInt(config.getMinTimeoutMillis());
+            out.writeInt(config.getMaxInFlight());
+            out.writeInt(config.getMode().ordinal());
+            out.writeInt(config.getHostWindow());
+            out.writeInt(config.getMaxProbesPerSecond());
+            out.writeInt(config.getMaxPerHostInFlight());
+            out.writeInt(config.getMaxPerHostRate());
+            out.writeBoolean(config.isServiceDetection());
+            out.writeInt(config.getBannerTimeoutMillis());
+            out.writeBoolean(config.isUdp());
+            out.writeInt(config.getUdpRetries());
+
+            config.getTargets().writeTo(out);
+            writePorts(out, config.getPorts());
+            Map<Integer, int[]> plan = config.getPortPlan();
+            out.writeInt(plan == null ? -1 : plan.size());
+            if (plan != null) {
+                for (Map.Entry<Integer, int[]> e : plan.entrySet()) {
+                    out.writeInt(e.getKey());
+                    writePorts(out, e.getValue());
+                }
+            }
+
+            out.writeLong(position.hostsPulled);
+            out.writeLong(position.probesDone);
+            out.writeInt(position.seqs.length);
+            for (int i = 0; i < position.seqs.length; i++) {
+                out.writeLong(position.seqs[i]);
+                out.writeInt(position.ips[i]);
+                out.writeInt(position.nextIndex[i]);
+                writePorts(out, position.outstanding[i]);
+            }
+
+            out.writeInt(openPorts.length);
+            for (long probe : openPorts) {
+                out.writeLong(probe);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            // Windows won't rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    static ScanCheckpoint load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a scan checkpoint: " + file);
+            }
+            long savedAt = in.readLong();
+
+            ScanConfig config = new ScanConfig();
+            config.setTimeoutMillis(in.readInt());
+            config.setAdaptiveTimeout(in.readBoolean());
+            config.setMinTimeoutMillis(in.readInt());
+            config.setMaxInFlight(in.readInt());
+            int mode = in.readInt();
+            if (mode < 0 || mode >= ScanEngine.Mode.values().length) {
+                throw new IOException("Corrupt scan checkpoint: " + file);
+            }
+            config.setMode(ScanEngine.Mode.values()[mode]);
+            config.setHostWindow(in.readInt());
+            config.setMaxProbesPerSecond(in.readInt());
+            config.setMaxPerHostInFlight(in.readInt());
+            config.setMaxPerHostRate(in.readInt());
+            config.setServiceDetection(in.readBoolean());
+            config.setBannerTimeoutMillis(in.readInt());
+            config.setUdp(in.readBoolean());
+            config.setUdpRetries(in.readInt());
+
+            config.setTargets(TargetSpec.readFrom(in));
+            config.setPorts(readPorts(in));
+            int planHosts = in.readInt();
+            if (planHosts >= 0) {
+                Map<Integer, int[]> plan = new LinkedHashMap<>();
+                for (int i = 0; i < planHosts; i++) {
+                    plan.put(in.readInt(), readPorts(in));
+                }
+                config.setPortPlan(plan);
+            }
+
+            long hostsPulled = in.readLong();
+            long probesDone = in.readLong();
+            int hosts = in.readInt();
+            long[] seqs = new long[hosts];
+            int[] ips = new int[hosts];
+            int[] nextIndex = new int[hosts];
+            int[][] outstanding = new int[hosts][];
+            for (int i = 0; i < hosts; i++) {
+                seqs[i] = in.readLong();
+                ips[i] = in.readInt();
+                nextIndex[i] = in.readInt();
+                outstanding[i] = readPorts(in);
+            }
+            ProbeSource.Position position =
+                    new ProbeSource.Position(hostsPulled, seqs, ips, nextIndex, outstanding, probesDone);
+
+            // A probe open in the saved results may come round again; keep each once
+            Set<Long> open = new LinkedHashSet<>();
+            int openCount = in.readInt();
+            for (int i = 0; i < openCount; i++) {
+                open.add(in.readLong());
+            }
+            long[] openPorts = new long[open.size()];
+            int n = 0;
+            for (long probe : open) {
+                openPorts[n++] = probe;
+            }
+            return new ScanCheckpoint(config, position, openPorts, savedAt);
+        } catch (NegativeArraySizeException | IllegalArgumentException e) {
+            throw new IOException("Corrupt scan checkpoint: " + file);
+        }
+    }
+
+    private static void writePorts(DataOutputStream out, int[] ports) throws IOException {
+        out.writeInt(ports.length);
+        for (int port : ports) {
+            out.writeChar(port);
+        }
+    }
+
+    private static int[] readPorts(DataInputStream in) throws IOException {
+        int[] ports = new int[in.readInt()];
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = in.readChar();
+        }
+        return ports;
+    }
+}
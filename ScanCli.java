@@ -0,0 +1,399 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Command-line front end for the scan engine, for headless boxes and cron.
+ * Touches nothing from AWT/Swing; results stream to stdout as
+ * newline-delimited JSON or CSV the moment they arrive, and a summary goes
+ * to stderr at the end.
+ *
+ *   java ScanCli -t 10.0.0.0/24 -p 1-1024,!25 --format csv > results.csv
+ */
+class ScanCli {
+    private static final String USAGE = String.join("\n",
+            "Usage: java ScanCli -t TARGETS [options]",
+            "  -t, --targets SPEC      192.168.1.1-100, 10.0.0.0/24, 10.0.1-3.1-254, @file",
+            "  -p, --ports SPEC        ports, ranges and !exclusions (default 1-1000)",
+            "      --top N             the N ports most often found open instead of -p (at most",
+            "                          as many as the port database has frequencies for)",
+            "      --udp               UDP scan; silent ports are reported as open|filtered",
+            "      --udp-retries N     retransmissions before a silent port counts (default 2)",
+            "      --format json|csv   output format (default json)",
+            "      --all               report closed/filtered/error probes too, not just open",
+            "      --timeout MS        connect timeout (default 1000)",
+            "      --no-adaptive       fixed timeout instead of per-host RTT estimates",
+            "      --max-in-flight N   concurrent probes (default 1024)",
+            "      --rate N            probes per second, 0 = unlimited",
+            "      --per-host N        probes in flight per host, 0 = unlimited",
+            "      --per-host-rate N   probes per second per host, 0 = unlimited",
+            "      --threads           blocking probes on (virtual) threads instead of a selector",
+            "      --discover          find live hosts first and sweep only those",
+            "      --services          grab banners and identify services on open ports",
+            "      --tls-ports SPEC    with --services, ports to inspect with a TLS handshake",
+            "                          (default " + TlsInspector.DEFAULT_PORTS + ")",
+            "      --workers N         shard the scan across N worker JVMs started on this machine",
+            "      --listen PORT       also accept workers started by hand (java ScanWorker -c 127.0.0.1:PORT)",
+            "      --latency FILE      write per-outcome connect latency percentiles (.hgrm layout) to FILE",
+            "      --checkpoint FILE   save progress to FILE so an interrupted scan can resume",
+            "      --resume FILE       continue the scan saved in FILE, with the targets, ports and",
+            "                          protocol it was started with");
+
+    private final Writer out;
+    private final boolean csv;
+    private final boolean all;
+    private final boolean udp;
+    private final PortServiceTable services = PortServiceTable.get();
+
+    private ScanCli(Writer out, boolean csv, boolean all, boolean udp) {
+        this.out = out;
+        this.csv = csv;
+        this.all = all;
+        this.udp = udp;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    private static int run(String[] args) {
+        ScanConfig config = new ScanConfig();
+        String targets = null;
+        String ports = null;
+        int top = 0;
+        boolean csv = false;
+        boolean all = false;
+        File checkpoint = null;
+        File resume = null;
+        File latency = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-t": case "--targets": targets = value(args, ++i, arg); break;
+                    case "-p": case "--ports": ports = value(args, ++i, arg); break;
+                    case "--top": top = number(args, ++i, arg, 1); break;
+                    case "--format":
+                        String format = value(args, ++i, arg);
+                        if (!format.equals("json") && !format.equals("csv")) {
+                            throw new IllegalArgumentException("Unknown format: " + format);
+                        }
+                        csv = format.equals("csv");
+                        break;
+                    case "--udp": config.setUdp(true); break;
+                    case "--udp-retries": config.setUdpRetries(number(args, ++i, arg, 0)); break;
+                    case "--all": all = true; break;
+                    case "--timeout": config.setTimeoutMillis(number(args, ++i, arg, 1)); break;
+                    case "--no-adaptive": config.setAdaptiveTimeout(false); break;
+                    case "--max-in-flight": config.setMaxInFlight(number(args, ++i, arg, 1)); break;
+                    case "--rate": config.setMaxProbesPerSecond(number(args, ++i, arg, 0)); break;
+                    case "--per-host": config.setMaxPerHostInFlight(number(args, ++i, arg, 0)); break;
+                    case "--per-host-rate": config.setMaxPerHostRate(number(args, ++i, arg, 0)); break;
+                    case "--threads": config.setMode(ScanEngine.Mode.VIRTUAL_THREADS); break;
+                    case "--discover": config.setHostDiscovery(true); break;
+                    case "--services": config.setServiceDetection(true); break;
+                    case "--tls-ports": config.setTlsPorts(PortSet.parse(value(args, ++i, arg))); break;
+                    case "--workers": config.setWorkers(number(args, ++i, arg, 1)); break;
+                    case "--listen": config.setCoordinatorPort(number(args, ++i, arg, 1)); break;
+                    case "--latency": latency = new File(value(args, ++i, arg)); break;
+                    case "--checkpoint": checkpoint = new File(value(args, ++i, arg)); break;
+                    case "--resume": resume = new File(value(args, ++i, arg)); break;
+                    case "-h": case "--help":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (config.getCoordinatorPort() > 65535) {
+                throw new IllegalArgumentException("--listen must be a port number");
+            }
+            if (config.isDistributed() && (checkpoint != null || resume != null)) {
+                throw new IllegalArgumentException("Distributed scans can't be checkpointed or resumed");
+            }
+            if (resume != null && (targets != null || ports != null || top > 0 || config.isUdp())) {
+                throw new IllegalArgumentException("--resume continues the saved targets and ports;"
+                        + " -t, -p, --top and --udp can't be given with it");
+            }
+            if (resume == null) {
+                if (targets == null) {
+                    throw new IllegalArgumentException("No targets given (-t)");
+                }
+                config.setTargets(TargetSpec.parse(targets));
+                if (top > 0) {
+                    config.setPorts(PortServiceTable.get().topPorts(top, config.isUdp()));
+                    if (config.getPorts().length == 0) {
+                        throw new IllegalArgumentException("The port database has no open frequencies for --top");
+                    } else if (config.getPorts().length < top) {
+                        System.err.println("Only " + config.getPorts().length + " ports have open frequencies;"
+                                + " scanning those");
+                    }
+                } else if (ports != null) {
+                    config.setPorts(PortSet.parse(ports).toArray());
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        ScanCheckpoint saved = null;
+        if (resume != null) {
+            try {
+                saved = ScanCheckpoint.load(resume);
+            } catch (IOException e) {
+                System.err.println("Could not resume: " + e.getMessage());
+                return 1;
+            }
+            config = saved.getConfig();
+            // Keep checkpointing into the same file unless told otherwise
+            config.setCheckpointFile(checkpoint != null ? checkpoint : resume);
+        } else {
+            config.setCheckpointFile(checkpoint);
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        ScanCli cli = new ScanCli(out, csv, all, config.isUdp());
+        return cli.scan(config, saved, latency);
+    }
+
+    private int scan(ScanConfig config, ScanCheckpoint resume, File latency) {
+        ScanProgress progress = new ScanProgress();
+        long start = System.nanoTime();
+        ScanEngine engine = new ScanEngine(config, new ScanListener() {
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome) {
+                // The engine reports through the timed overload below
+            }
+
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome, long elapsedNanos) {
+                progress.record(outcome, elapsedNanos);
+                if (all || outcome == ProbeOutcome.OPEN) {
+                    writeProbe(ip, port, outcome);
+                }
+            }
+
+            @Override
+            public void serviceIdentified(int ip, int port, ServiceSignatures.Match match) {
+                writeService(ip, port, match);
+            }
+
+            @Override
+            public void tlsInspected(int ip, int port, TlsInspector.Result result) {
+                writeTls(ip, port, result);
+            }
+
+            @Override
+            public void discoveryCompleted(int[] liveHosts, long totalHosts, long elapsedMillis) {
+                System.err.println("Host discovery: " + liveHosts.length + " of " + totalHosts + " hosts up ("
+                        + elapsedMillis + " ms)");
+            }
+
+            @Override
+            public void scanFinished(boolean cancelled) {
+            }
+        }, resume);
+
+        if (csv) {
+            write("ip,port,protocol,state,service,version,banner\n", false);
+        }
+        if (resume != null) {
+            for (long probe : resume.getOpenPorts()) {
+                writeProbe(ProbeSource.ipOf(probe), ProbeSource.portOf(probe), ProbeOutcome.OPEN);
+            }
+        }
+
+        // Ctrl-C stops the engine cleanly, which also leaves a checkpoint if one is configured
+        Thread hook = new Thread(() -> {
+            engine.cancel();
+            try {
+                engine.awaitTermination();
+            } catch (InterruptedException e) {
+                // Exiting anyway
+            }
+            flush();
+        }, "scan-shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        engine.start();
+        try {
+            engine.awaitTermination();
+        } catch (InterruptedException e) {
+            engine.cancel();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // Already shutting down; the hook finishes the job
+        }
+        flush();
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.err.printf("%s %,d probes in %.1f s: open %,d, closed %,d, filtered %,d, errors %,d%s%n",
+                engine.isCancelled() ? "Stopped after" : "Scanned", progress.completed(), millis / 1000.0,
+                progress.count(ProbeOutcome.OPEN), progress.count(ProbeOutcome.CLOSED),
+                progress.count(ProbeOutcome.FILTERED), progress.count(ProbeOutcome.ERROR),
+                udp ? String.format(", open|filtered %,d", progress.count(ProbeOutcome.OPEN_FILTERED)) : "");
+        StringBuilder percentiles = new StringBuilder();
+        for (ProbeOutcome outcome : ProbeOutcome.values()) {
+            LatencyHistogram histogram = progress.latency(outcome);
+            if (histogram.count() > 0) {
+                percentiles.append(percentiles.length() == 0 ? "" : ", ")
+                        .append(outcome.name().toLowerCase().replace('_', '|'))
+                        .append(String.format(" %.1f/%.1f", histogram.percentileMillis(50), histogram.percentileMillis(99)));
+            }
+        }
+        if (percentiles.length() > 0) {
+            System.err.println("Latency p50/p99 ms: " + percentiles);
+        }
+        if (latency != null) {
+            try {
+                progress.exportLatency(latency);
+            } catch (IOException e) {
+                System.err.println("Could not write latency: " + e.getMessage());
+            }
+        }
+        if (engine.isCancelled() && config.getCheckpointFile() != null && config.getCheckpointFile().isFile()) {
+            System.err.println("Progress saved; continue with --resume " + config.getCheckpointFile());
+        }
+        return engine.isCancelled() ? 1 : 0;
+    }
+
+    private void writeProbe(int ip, int port, ProbeOutcome outcome) {
+        // OPEN_FILTERED prints the way nmap writes it, "open|filtered"
+        String state = outcome.name().toLowerCase().replace('_', '|');
+        String service = services.name(port, udp);
+        String line;
+        if (csv) {
+            line = Ipv4.toString(ip) + "," + port + "," + protocol() + "," + state + "," + csvField(service) + ",,\n";
+        } else {
+            line = "{\"ip\":\"" + Ipv4.toString(ip) + "\",\"port\":" + port + ",\"protocol\":\"" + protocol()
+                    + "\",\"state\":\"" + state + "\",\"service\":" + jsonString(service) + "}\n";
+        }
+        // Open ports are what people wait for; the rest can sit in the buffer
+        write(line, outcome == ProbeOutcome.OPEN);
+    }
+
+    private void writeService(int ip, int port, ServiceSignatures.Match match) {
+        String service = match.isIdentified() ? match.service : services.name(port);
+        String line;
+        if (csv) {
+            line = Ipv4.toString(ip) + "," + port + ",tcp,identified," + csvField(service) + ","
+                    + csvField(match.version) + "," + csvField(match.banner) + "\n";
+        } else {
+            line = "{\"ip\":\"" + Ipv4.toString(ip) + "\",\"port\":" + port
+                    + ",\"protocol\":\"tcp\",\"state\":\"identified\""
+                    + ",\"service\":" + jsonString(service) + ",\"version\":" + jsonString(match.version)
+                    + ",\"banner\":" + jsonString(match.banner) + "}\n";
+        }
+        write(line, true);
+    }
+
+    // Everything the handshake showed, as its own record after the "identified" one
+    private void writeTls(int ip, int port, TlsInspector.Result result) {
+        String line;
+        if (csv) {
+            line = Ipv4.toString(ip) + "," + port + ",tcp,tls," + csvField("ssl/" + services.name(port)) + ","
+                    + csvField(result.isHandshaken() ? result.protocol : "") + "," + csvField(result.toString()) + "\n";
+        } else if (!result.isHandshaken()) {
+            line = "{\"ip\":\"" + Ipv4.toString(ip) + "\",\"port\":" + port
+                    + ",\"protocol\":\"tcp\",\"state\":\"tls\",\"error\":" + jsonString(result.error) + "}\n";
+        } else {
+            line = "{\"ip\":\"" + Ipv4.toString(ip) + "\",\"port\":" + port
+                    + ",\"protocol\":\"tcp\",\"state\":\"tls\",\"tls\":" + jsonString(result.protocol)
+                    + ",\"cipher\":" + jsonString(result.cipher) + ",\"subject\":" + jsonString(result.subject)
+                    + ",\"issuer\":" + jsonString(result.issuer) + ",\"san\":" + jsonArray(result.subjectAltNames)
+                    + ",\"notBefore\":" + result.notBefore + ",\"notAfter\":" + result.notAfter
+                    + ",\"key\":" + jsonString(result.key) + ",\"signature\":" + jsonString(result.signature)
+                    + ",\"selfSigned\":" + result.selfSigned + ",\"resumed\":" + result.resumed
+                    + ",\"findings\":" + jsonArray(result.findings) + "}\n";
+        }
+        write(line, true);
+    }
+
+    private String protocol() {
+        return udp ? "udp" : "tcp";
+    }
+
+    // Engine threads call in concurrently; one lock keeps lines whole
+    private synchronized void write(String line, boolean flush) {
+        try {
+            out.write(line);
+            if (flush) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // stdout closed (e.g. piped into head); nothing left to report to
+        }
+    }
+
+    private synchronized void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // See write()
+        }
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String jsonArray(List<String> values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (String value : values) {
+            sb.append(sb.length() > 1 ? "," : "").append(jsonString(value));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[i];
+    }
+
+    static int number(String[] args, int i, String option, int min) {
+        String text = value(args, i, option);
+        try {
+            int n = Integer.parseInt(text);
+            if (n < min) {
+                throw new IllegalArgumentException(option + " must be at least " + min);
+            }
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a number, got " + text);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.File;
+import java.util.Map;
+
+// Everything a ScanEngine needs to know about one scan
+class ScanConfig {
+    private TargetSpec targets = TargetSpec.of(new int[0]);
+    private int[] ports = range(1, 1000);
+    private Map<Integer, int[]> portPlan;
+    private int timeoutMillis = 1000;
+    private boolean adaptiveTimeout = true;
+    private int minTimeoutMillis = 50;
+    private int maxInFlight = 1024;
+    private ScanEngine.Mode mode = ScanEngine.Mode.SELECTOR;
+    private boolean hostDiscovery = false;
+    private boolean discoveryPing = true;
+    private int hostWindow = 256;
+    private int maxProbesPerSecond = 0;
+    private int maxPerHostInFlight = 0;
+    private int maxPerHostRate = 0;
+    private boolean udp = false;
+    private int udpRetries = 2;
+    private boolean serviceDetection = false;
+    private int bannerTimeoutMillis = 2000;
+    private PortSet tlsPorts = PortSet.parse(TlsInspector.DEFAULT_PORTS);
+    private File checkpointFile;
+    private int checkpointIntervalMillis = 30_000;
+    private int workers = 0;
+    private int coordinatorPort = 0;
+
+    TargetSpec getTargets() {
+        return targets;
+    }
+
+    void setTargets(TargetSpec targets) {
+        this.targets = targets;
+    }
+
+    // Ports in the order they are probed on each host
+    int[] getPorts() {
+        return ports;
+    }
+
+    void setPorts(int[] ports) {
+        for (int port : ports) {
+            if (port < 1 || port > 65535) {
+                throw new IllegalArgumentException("Invalid port: " + port);
+            }
+        }
+        this.ports = ports;
+    }
+
+    // Per-host port lists; when set, they replace targets x ports
+    Map<Integer, int[]> getPortPlan() {
+        return portPlan;
+    }
+
+    void setPortPlan(Map<Integer, int[]> portPlan) {
+        this.portPlan = portPlan;
+    }
+
+    void setPortRange(int startPort, int endPort) {
+        if (startPort < 1 || endPort > 65535 || startPort > endPort) {
+            throw new IllegalArgumentException("Invalid port range: " + startPort + "-" + endPort);
+        }
+        this.ports = range(startPort, endPort);
+    }
+
+    int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    void setTimeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // With adaptive timeouts on, timeoutMillis is the ceiling (and the timeout
+    // for hosts that haven't answered anything yet)
+    boolean isAdaptiveTimeout() {
+        return adaptiveTimeout;
+    }
+
+    void setAdaptiveTimeout(boolean adaptiveTimeout) {
+        this.adaptiveTimeout = adaptiveTimeout;
+    }
+
+    int getMinTimeoutMillis() {
+        return minTimeoutMillis;
+    }
+
+    void setMinTimeoutMillis(int minTimeoutMillis) {
+        this.minTimeoutMillis = minTimeoutMillis;
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    ScanEngine.Mode getMode() {
+        return mode;
+    }
+
+    void setMode(ScanEngine.Mode mode) {
+        this.mode = mode;
+    }
+
+    // Probe a few high-yield ports per host first and sweep only hosts that answer
+    boolean isHostDiscovery() {
+        return hostDiscovery;
+    }
+
+    void setHostDiscovery(boolean hostDiscovery) {
+        this.hostDiscovery = hostDiscovery;
+    }
+
+    // UDP scan instead of TCP connect; always runs on the selector
+    boolean isUdp() {
+        return udp;
+    }
+
+    void setUdp(boolean udp) {
+        this.udp = udp;
+    }
+
+    // Retransmissions (each waiting twice as long) before a silent UDP port counts as open|filtered
+    int getUdpRetries() {
+        return udpRetries;
+    }
+
+    void setUdpRetries(int udpRetries) {
+        this.udpRetries = Math.max(0, udpRetries);
+    }
+
+    // Read (or provoke) a banner from every open port and match it against ServiceSignatures
+    boolean isServiceDetection() {
+        return serviceDetection;
+    }
+
+    void setServiceDetection(boolean serviceDetection) {
+        this.serviceDetection = serviceDetection;
+    }
+
+    // How long a service gets to send its banner, and again to answer the probe
+    int getBannerTimeoutMillis() {
+        return bannerTimeoutMillis;
+    }
+
+    void setBannerTimeoutMillis(int bannerTimeoutMillis) {
+        this.bannerTimeoutMillis = bannerTimeoutMillis;
+    }
+
+    // Open ports that get a TLS handshake instead of a banner read. Not kept in
+    // checkpoints or sent to workers, which use the default list
+    PortSet getTlsPorts() {
+        return tlsPorts;
+    }
+
+    void setTlsPorts(PortSet tlsPorts) {
+        this.tlsPorts = tlsPorts;
+    }
+
+    // Also try InetAddress.isReachable on hosts that didn't answer the TCP probes
+    boolean isDiscoveryPing() {
+        return discoveryPing;
+    }
+
+    void setDiscoveryPing(boolean discoveryPing) {
+        this.discoveryPing = discoveryPing;
+    }
+
+    // How many hosts are scanned side by side, round-robin
+    int getHostWindow() {
+        return hostWindow;
+    }
+
+    void setHostWindow(int hostWindow) {
+        this.hostWindow = Math.max(1, hostWindow);
+    }
+
+    // Pacing limits below are off when 0
+    int getMaxProbesPerSecond() {
+        return maxProbesPerSecond;
+    }
+
+    void setMaxProbesPerSecond(int maxProbesPerSecond) {
+        this.maxProbesPerSecond = Math.max(0, maxProbesPerSecond);
+    }
+
+    int getMaxPerHostInFlight() {
+        return maxPerHostInFlight;
+    }
+
+    void setMaxPerHostInFlight(int maxPerHostInFlight) {
+        this.maxPerHostInFlight = Math.max(0, maxPerHostInFlight);
+    }
+
+    int getMaxPerHostRate() {
+        return maxPerHostRate;
+    }
+
+    void setMaxPerHostRate(int maxPerHostRate) {
+        this.maxPerHostRate = Math.max(0, maxPerHostRate);
+    }
+
+    long getTotalProbes() {
+        if (portPlan != null) {
+            long total = 0;
+            for (int[] hostPorts : portPlan.values()) {
+                total += hostPorts.length;
+            }
+            return total;
+        }
+        return targets.size() * ports.length;
+    }
+
+    // Where the engine saves progress so a stopped scan can be resumed; null = never
+    File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    int getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    void setCheckpointIntervalMillis(int checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    // Worker JVMs to start on this machine for a distributed scan; 0 = scan in-process
+    int getWorkers() {
+        return workers;
+    }
+
+    void setWorkers(int workers) {
+        this.workers = Math.max(0, workers);
+    }
+
+    // Loopback port the coordinator listens on for workers; 0 = any free port
+    // (then only the workers started by the coordinator itself can find it)
+    int getCoordinatorPort() {
+        return coordinatorPort;
+    }
+
+    void setCoordinatorPort(int coordinatorPort) {
+        this.coordinatorPort = coordinatorPort;
+    }
+
+    boolean isDistributed() {
+        return workers > 0 || coordinatorPort > 0;
+    }
+
+    ScanConfig copy() {
+        ScanConfig c = new ScanConfig();
+        c.targets = targets;
+        c.ports = ports;
+        c.portPlan = portPlan;
+        c.timeoutMillis = timeoutMillis;
+        c.adaptiveTimeout = adaptiveTimeout;
+        c.minTimeoutMillis = minTimeoutMillis;
+        c.maxInFlight = maxInFlight;
+        c.mode = mode;
+        c.hostDiscovery = hostDiscovery;
+        c.discoveryPing = discoveryPing;
+        c.hostWindow = hostWindow;
+        c.maxProbesPerSecond = maxProbesPerSecond;
+        c.maxPerHostInFlight = maxPerHostInFlight;
+        c.maxPerHostRate = maxPerHostRate;
+        c.udp = udp;
+        c.udpRetries = udpRetries;
+        c.serviceDetection = serviceDetection;
+        c.bannerTimeoutMillis = bannerTimeoutMillis;
+        c.tlsPorts = tlsPorts;
+        c.checkpointFile = checkpointFile;
+        c.checkpointIntervalMillis = checkpointIntervalMillis;
+        c.workers = workers;
+        c.coordinatorPort = coordinatorPort;
+        return c;
+    }
+
+    private static int[] range(int startPort, int endPort) {
+        int[] result = new int[endPort - startPort + 1];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = startPort + i;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,551 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a scan across worker processes (ScanWorker), so one sweep is not
+ * capped by a single JVM's file descriptors and ephemeral ports. The
+ * targets x ports space is cut into shards of about SHARD_PROBES probes,
+ * created lazily as workers ask for work, and handed out over a small framed
+ * protocol on a loopback socket. Workers stream results back by index within
+ * the shard, and a bitmap per shard makes sure each probe reaches the
+ * listener exactly once, whichever worker reported it.
+ *
+ * Rebalancing: a worker whose connection drops, or that goes quiet for
+ * DEAD_MILLIS, loses its shard back to the front of the queue. When there is
+ * no fresh work left, an idle worker gets a duplicate of the longest-running
+ * shard once it has taken well over the typical shard time; the first copy
+ * to finish wins and the other is cancelled.
+ *
+ * Protocol (big-endian, via DataOutputStream), each message a type byte first:
+ *   worker -> coordinator
+ *     HELLO      int version, UTF name
+ *     RESULTS    int shard, int count, count x (int index, byte outcome ordinal, int elapsed micros)
+ *     SERVICE    int shard, int index, UTF service, UTF version, UTF banner ("" = none)
+ *     FINISHED   int shard, boolean complete
+ *     HEARTBEAT
+ *   coordinator -> worker
+ *     SHARD      int shard, settings (see writeSettings), int hostCount, hostCount x int ip,
+ *                int portCount, portCount x char port
+ *     CANCEL     int shard
+ *     BYE
+ * where index = hostIndex * portCount + portIndex within the shard.
+ */
+class ScanCoordinator {
+    static final int VERSION = 2;
+    static final byte HELLO = 1, RESULTS = 2, SERVICE = 3, FINISHED = 4, HEARTBEAT = 5;
+    static final byte SHARD = 11, CANCEL = 12, BYE = 13;
+    static final int HEARTBEAT_MILLIS = 1000;
+
+    private static final int SHARD_PROBES = 16_384;
+    private static final long DEAD_NANOS = 10_000_000_000L;
+    // A shard is duplicated once it has run this many times the average, and at least SLOW_MIN_NANOS
+    private static final int SLOW_FACTOR = 3;
+    private static final long SLOW_MIN_NANOS = 5_000_000_000L;
+
+    private final ScanConfig config;
+    private final TargetSpec.Iterator hosts;
+    private final int[] ports;
+    private final ScanListener listener;
+    private final int hostsPerShard;
+    private final int portsPerShard;
+
+    // All guarded by this
+    private final ArrayDeque<Shard> queue = new ArrayDeque<>();
+    private final Map<Integer, Shard> outstanding = new HashMap<>();
+    private final List<Worker> workers = new ArrayList<>();
+    private final List<Process> spawned = new ArrayList<>();
+    private int[] chunkHosts;
+    private int chunkPortIndex;
+    private int nextShardId;
+    private long shardsFinished;
+    private long shardNanos;
+
+    private volatile boolean cancelled;
+    private volatile ServerSocket server;
+
+    private static final class Shard {
+        final int id;
+        final int[] hosts;
+        final int[] ports;
+        final BitSet reported = new BitSet();
+        final List<Worker> assignees = new ArrayList<>(2);
+        long startedNanos;
+        boolean done;
+
+        Shard(int id, int[] hosts, int[] ports) {
+            this.id = id;
+            this.hosts = hosts;
+            this.ports = ports;
+        }
+    }
+
+    private static final class Worker {
+        final Socket socket;
+        final DataOutputStream out;
+        String name = "?";
+        Shard shard;
+        volatile long lastHeardNanos = System.nanoTime();
+
+        Worker(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        // false if the worker is gone; its reader thread then cleans up
+        synchronized boolean send(byte type, int shardId) {
+            try {
+                out.writeByte(type);
+                if (type != BYE) {
+                    out.writeInt(shardId);
+                }
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+
+        synchronized boolean sendShard(Shard shard, ScanConfig config) {
+            try {
+                out.writeByte(SHARD);
+                out.writeInt(shard.id);
+                writeSettings(out, config);
+                out.writeInt(shard.hosts.length);
+                for (int ip : shard.hosts) {
+                    out.writeInt(ip);
+                }
+                out.writeInt(shard.ports.length);
+                for (int port : shard.ports) {
+                    out.writeChar(port);
+                }
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    ScanCoordinator(ScanConfig config, TargetSpec targets, int[] ports, ScanListener listener) {
+        this.config = config;
+        this.hosts = targets.iterator();
+        this.ports = ports;
+        this.listener = listener;
+        this.portsPerShard = Math.min(ports.length, SHARD_PROBES);
+        this.hostsPerShard = Math.max(1, SHARD_PROBES / Math.max(1, ports.length));
+    }
+
+    // Blocks until every shard is done (true) or the scan is cancelled or runs out of workers (false)
+    boolean run() throws IOException, InterruptedException {
+        ServerSocket s = new ServerSocket();
+        s.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getCoordinatorPort()), 50);
+        server = s;
+        try {
+            Thread acceptor = new Thread(this::acceptLoop, "coordinator-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            System.err.println("Coordinator listening on " + s.getInetAddress().getHostAddress() + ":"
+                    + s.getLocalPort() + ", starting " + config.getWorkers() + " local worker(s)");
+            spawnWorkers(s.getLocalPort());
+
+            synchronized (this) {
+                while (!cancelled && !allDone()) {
+                    wait(HEARTBEAT_MILLIS);
+                    checkWorkers();
+                    if (workers.isEmpty() && !spawned.isEmpty() && spawned.stream().noneMatch(Process::isAlive)
+                            && config.getCoordinatorPort() == 0) {
+                        System.err.println("All worker processes have exited; stopping the scan");
+                        return false;
+                    }
+                }
+                return !cancelled;
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    synchronized int getWorkerCount() {
+        return workers.size();
+    }
+
+    // Shared with ScanWorker: the engine settings a shard runs with
+    static void writeSettings(DataOutputStream out, ScanConfig config) throws IOException {
+        out.writeInt(config.getTimeoutMillis());
+        out.writeBoolean(config.isAdaptiveTimeout());
+        out.writeInt(config.getMinTimeoutMillis());
+        out.writeInt(config.getMaxInFlight());
+        out.writeInt(config.getMode().ordinal());
+        out.writeInt(config.getHostWindow());
+        out.writeInt(config.getMaxProbesPerSecond());
+        out.writeInt(config.getMaxPerHostInFlight());
+        out.writeInt(config.getMaxPerHostRate());
+        out.writeBoolean(config.isServiceDetection());
+        out.writeInt(config.getBannerTimeoutMillis());
+        out.writeBoolean(config.isUdp());
+        out.writeInt(config.getUdpRetries());
+    }
+
+    static void readSettings(DataInputStream in, ScanConfig config) throws IOException {
+        config.setTimeoutMillis(in.readInt());
+        config.setAdaptiveTimeout(in.readBoolean());
+        config.setMinTimeoutMillis(in.readInt());
+        config.setMaxInFlight(in.readInt());
+        int mode = in.readInt();
+        if (mode < 0 || mode >= ScanEngine.Mode.values().length) {
+            throw new IOException("Unknown engine mode " + mode);
+        }
+        config.setMode(ScanEngine.Mode.values()[mode]);
+        config.setHostWindow(in.readInt());
+        config.setMaxProbesPerSecond(in.readInt());
+        config.setMaxPerHostInFlight(in.readInt());
+        config.setMaxPerHostRate(in.readInt());
+        config.setServiceDetection(in.readBoolean());
+        config.setBannerTimeoutMillis(in.readInt());
+        config.setUdp(in.readBoolean());
+        config.setUdpRetries(in.readInt());
+    }
+
+    private void spawnWorkers(int port) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        for (int i = 0; i < config.getWorkers(); i++) {
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "ScanWorker", "--coordinator", "127.0.0.1:" + port, "--name", "local-" + (i + 1));
+            // Workers report over the socket; stdout may be carrying our own results
+            pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process p = pb.start();
+            synchronized (this) {
+                spawned.add(p);
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        ServerSocket s = server;
+        while (!cancelled) {
+            Socket socket;
+            try {
+                socket = s.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                return; // closed by shutdown()
+            }
+            Thread t = new Thread(() -> serve(socket), "coordinator-worker");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // One thread per worker connection, reading until it goes away
+    private void serve(Socket socket) {
+        Worker worker = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            if (in.readByte() != HELLO || in.readInt() != VERSION) {
+                socket.close();
+                return;
+            }
+            Worker w = new Worker(socket);
+            w.name = in.readUTF();
+            synchronized (this) {
+                if (cancelled) {
+                    w.send(BYE, 0);
+                    w.close();
+                    return;
+                }
+                worker = w;
+                workers.add(w);
+                assign(w);
+            }
+            int[] indexes = new int[0];
+            byte[] outcomes = new byte[0];
+            int[] micros = new int[0];
+            while (true) {
+                byte type = in.readByte();
+                w.lastHeardNanos = System.nanoTime();
+                switch (type) {
+                    case RESULTS: {
+                        int shardId = in.readInt();
+                        int count = in.readInt();
+                        if (count < 0) {
+                            throw new IOException("Bad result count");
+                        }
+                        if (indexes.length < count) {
+                            indexes = new int[count];
+                            outcomes = new byte[count];
+                            micros = new int[count];
+                        }
+                        for (int i = 0; i < count; i++) {
+                            indexes[i] = in.readInt();
+                            outcomes[i] = in.readByte();
+                            micros[i] = in.readInt();
+                        }
+                        report(shardId, indexes, outcomes, micros, count);
+                        break;
+                    }
+                    case SERVICE: {
+                        int shardId = in.readInt();
+                        int index = in.readInt();
+                        String service = in.readUTF();
+                        String version = in.readUTF();
+                        String banner = in.readUTF();
+                        reportService(shardId, index, new ServiceSignatures.Match(
+                                service.isEmpty() ? null : service, version.isEmpty() ? null : version, banner));
+                        break;
+                    }
+                    case FINISHED:
+                        finished(w, in.readInt(), in.readBoolean());
+                        break;
+                    case HEARTBEAT:
+                        break;
+                    default:
+                        throw new IOException("Unknown message type " + type);
+                }
+            }
+        } catch (IOException e) {
+            // Disconnected (or spoke nonsense); anything it had goes back in the queue
+        } finally {
+            if (worker != null) {
+                lost(worker);
+                worker.close();
+            }
+        }
+    }
+
+    // Passes each probe on once, however many workers reported it
+    private void report(int shardId, int[] indexes, byte[] outcomes, int[] micros, int count) {
+        long[] probes = new long[count];
+        ProbeOutcome[] fresh = new ProbeOutcome[count];
+        long[] elapsed = new long[count];
+        int n = 0;
+        ProbeOutcome[] values = ProbeOutcome.values();
+        synchronized (this) {
+            Shard shard = outstanding.get(shardId);
+            if (shard == null) {
+                return;
+            }
+            int size = shard.hosts.length * shard.ports.length;
+            for (int i = 0; i < count; i++) {
+                int index = indexes[i];
+                if (index < 0 || index >= size || outcomes[i] < 0 || outcomes[i] >= values.length
+                        || shard.reported.get(index)) {
+                    continue;
+                }
+                shard.reported.set(index);
+                probes[n] = ProbeSource.pack(shard.hosts[index / shard.ports.length],
+                        shard.ports[index % shard.ports.length]);
+                elapsed[n] = micros[i] * 1000L;
+                fresh[n++] = values[outcomes[i]];
+            }
+        }
+        // Outside the lock: listeners hand off, but needn't be quick about it
+        for (int i = 0; i < n; i++) {
+            listener.probeCompleted(ProbeSource.ipOf(probes[i]), ProbeSource.portOf(probes[i]), fresh[i], elapsed[i]);
+        }
+    }
+
+    private void reportService(int shardId, int index, ServiceSignatures.Match match) {
+        long probe;
+        synchronized (this) {
+            Shard shard = outstanding.get(shardId);
+            if (shard == null || index < 0 || index >= shard.hosts.length * shard.ports.length) {
+                return;
+            }
+            probe = ProbeSource.pack(shard.hosts[index / shard.ports.length], shard.ports[index % shard.ports.length]);
+        }
+        listener.serviceIdentified(ProbeSource.ipOf(probe), ProbeSource.portOf(probe), match);
+    }
+
+    private synchronized void finished(Worker worker, int shardId, boolean complete) {
+        Shard shard = outstanding.get(shardId);
+        if (worker.shard == shard || shard == null) {
+            worker.shard = null;
+        }
+        if (shard != null) {
+            shard.assignees.remove(worker);
+            if (complete) {
+                shard.done = true;
+                outstanding.remove(shardId);
+                shardsFinished++;
+                shardNanos += System.nanoTime() - shard.startedNanos;
+                // A duplicate still running elsewhere is now wasted work
+                for (Worker other : shard.assignees) {
+                    other.send(CANCEL, shardId);
+                }
+            } else if (shard.assignees.isEmpty()) {
+                queue.addFirst(shard);
+            }
+        }
+        assignIdle();
+        notifyAll();
+    }
+
+    private synchronized void lost(Worker worker) {
+        if (!workers.remove(worker)) {
+            return;
+        }
+        Shard shard = worker.shard;
+        worker.shard = null;
+        if (shard != null && !shard.done) {
+            shard.assignees.remove(worker);
+            if (shard.assignees.isEmpty()) {
+                outstanding.remove(shard.id);
+                queue.addFirst(shard);
+            }
+        }
+        if (!cancelled) {
+            System.err.println("Worker " + worker.name + " lost"
+                    + (shard != null && !shard.done ? ", shard " + shard.id + " re-queued" : ""));
+        }
+        assignIdle();
+        notifyAll();
+    }
+
+    // Called with the lock held
+    private void assign(Worker worker) {
+        if (cancelled || worker.shard != null) {
+            return;
+        }
+        Shard shard = queue.pollFirst();
+        boolean duplicate = false;
+        if (shard == null) {
+            shard = nextFreshShard();
+        }
+        if (shard == null) {
+            shard = slowestShard(worker);
+            duplicate = shard != null;
+        }
+        if (shard == null) {
+            return; // stays idle until something turns up
+        }
+        if (!duplicate) {
+            shard.startedNanos = System.nanoTime();
+        }
+        shard.assignees.add(worker);
+        outstanding.put(shard.id, shard);
+        worker.shard = shard;
+        if (duplicate) {
+            System.err.println("Shard " + shard.id + " is running slowly; also giving it to worker " + worker.name);
+        }
+        worker.sendShard(shard, config);
+    }
+
+    private void assignIdle() {
+        for (Worker w : workers) {
+            if (w.shard == null) {
+                assign(w);
+            }
+        }
+    }
+
+    private Shard nextFreshShard() {
+        if (chunkHosts == null) {
+            int[] chunk = new int[hostsPerShard];
+            int n = 0;
+            while (n < chunk.length && hosts.hasNext()) {
+                chunk[n++] = hosts.next();
+            }
+            if (n == 0 || ports.length == 0) {
+                return null;
+            }
+            chunkHosts = n == chunk.length ? chunk : Arrays.copyOf(chunk, n);
+            chunkPortIndex = 0;
+        }
+        int to = Math.min(ports.length, chunkPortIndex + portsPerShard);
+        Shard shard = new Shard(nextShardId++, chunkHosts, Arrays.copyOfRange(ports, chunkPortIndex, to));
+        chunkPortIndex = to;
+        if (chunkPortIndex == ports.length) {
+            chunkHosts = null;
+        }
+        return shard;
+    }
+
+    // The longest-running single-copy shard, if it is overdue enough to run twice
+    private Shard slowestShard(Worker worker) {
+        long now = System.nanoTime();
+        long threshold = Math.max(SLOW_MIN_NANOS, shardsFinished == 0 ? 0 : SLOW_FACTOR * (shardNanos / shardsFinished));
+        Shard slowest = null;
+        for (Shard shard : outstanding.values()) {
+            if (!shard.done && shard.assignees.size() == 1 && !shard.assignees.contains(worker)
+                    && now - shard.startedNanos > threshold
+                    && (slowest == null || shard.startedNanos < slowest.startedNanos)) {
+                slowest = shard;
+            }
+        }
+        return slowest;
+    }
+
+    private boolean allDone() {
+        return queue.isEmpty() && outstanding.isEmpty() && chunkHosts == null && !hosts.hasNext();
+    }
+
+    // Called with the lock held, about once a heartbeat
+    private void checkWorkers() {
+        long now = System.nanoTime();
+        for (Worker w : workers) {
+            if (now - w.lastHeardNanos > DEAD_NANOS) {
+                System.err.println("Worker " + w.name + " stopped responding");
+                w.close(); // its reader thread re-queues the shard
+            }
+        }
+        // Shards can become overdue while workers sit idle
+        assignIdle();
+    }
+
+    private void shutdown() {
+        List<Worker> left;
+        List<Process> processes;
+        synchronized (this) {
+            cancelled = true;
+            left = new ArrayList<>(workers);
+            processes = new ArrayList<>(spawned);
+        }
+        for (Worker w : left) {
+            w.send(BYE, 0);
+            w.close();
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Process p : processes) {
+            try {
+                if (!p.waitFor(2, TimeUnit.SECONDS)) {
+                    p.destroy();
+                }
+            } catch (InterruptedException e) {
+                p.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,1004 @@
+import com.sun.management.UnixOperatingSystemMXBean;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP connect scanner built on non-blocking SocketChannels. One selector
+ * thread keeps up to maxInFlight connects pending at once and tracks their
+ * timeouts in a DeadlineWheel, so a filtered host costs a wheel slot rather
+ * than a parked thread. The engine knows nothing about Swing; the UI is just
+ * one ScanListener.
+ *
+ * Mode.VIRTUAL_THREADS runs each probe as a plain blocking connect on its own
+ * virtual thread instead, with a semaphore bounding how many are in flight.
+ *
+ * Either way probes are pulled lazily from a ProbeSource only when there is
+ * room to start them, so nothing is queued ahead of the in-flight window,
+ * and the source also paces them (global and per-host rate limits).
+ *
+ * With service detection on, connected channels are handed to a
+ * BannerGrabber instead of being closed, and the scan only reports finished
+ * once the grabber has worked through them.
+ *
+ * UDP scans run on the selector too: one connected DatagramChannel per
+ * probe sends a protocol-specific request (UdpPayloads) and is retried with
+ * doubling timeouts. A reply means open, an ICMP port unreachable (surfacing
+ * as PortUnreachableException) means closed, and silence after the last
+ * retry means open|filtered.
+ *
+ * With workers configured the sweep is handed to a ScanCoordinator, which
+ * shards it across ScanWorker processes; discovery still runs here and the
+ * listener sees the same stream of outcomes either way.
+ *
+ * With a checkpoint file configured, progress and open ports are saved
+ * periodically and when the scan is stopped; a ScanEngine created from
+ * that ScanCheckpoint carries on where it left off.
+ *
+ * Every channel a probe opens is counted until it is closed or handed to
+ * the grabber, and each probe path releases it exactly once, whatever the
+ * outcome (or listener) throws. Stop closes everything still connecting
+ * straight away, blocked connects included, so nothing keeps probing after
+ * it; getOpenChannels() and openFileDescriptors() let the UI show both
+ * holding steady.
+ *
+ * Run by a ScanScheduler, an engine also takes each in-flight slot from a
+ * ProbeBudget shared with the other jobs, so maxInFlight becomes its own
+ * ceiling within that budget rather than a claim on the machine.
+ */
+class ScanEngine {
+    enum Mode {
+        SELECTOR("Non-blocking (selector)"),
+        VIRTUAL_THREADS("Virtual threads");
+
+        private final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SLOTS = 1024;
+    // Probes pulled from the source per batch
+    private static final int BATCH = 256;
+
+    private final ScanConfig config;
+    private final ScanListener listener;
+    private final RttEstimator rtt;
+    private volatile boolean cancelled;
+    private volatile Selector selector;
+    private Thread thread;
+
+    // Targets shrink to the live ones after discovery
+    private TargetSpec targets;
+    private int[] ports;
+    private volatile ProbeSource source;
+    private final long[] batch = new long[BATCH];
+    private volatile long totalProbes;
+    private volatile HostDiscovery discovery;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger openChannels = new AtomicInteger();
+    // Blocking connects in progress (thread mode), so cancel() can close them under the threads
+    private final Set<SocketChannel> connecting = ConcurrentHashMap.newKeySet();
+    // Slots shared with other scans when run by a ScanScheduler; null otherwise
+    private ProbeBudget budget;
+    private ScanScheduler.Priority priority;
+    private volatile ProbeBudget.Lease lease;
+    private volatile BannerGrabber grabber;
+    private volatile ScanCoordinator coordinator;
+    private final ScanCheckpoint resume;
+    // Open ports found so far, kept only for checkpoints
+    private final ConcurrentLinkedQueue<Long> openFound;
+    private Thread checkpointer;
+    private final Object checkpointLock = new Object();
+    private boolean checkpointFailed;
+
+    private static final class UdpProbe extends DeadlineWheel.Entry {
+        final int ip;
+        final int port;
+        final DatagramChannel channel;
+        final long startNanos = System.nanoTime();
+        SelectionKey key;
+        long sentNanos;
+        int attempts;
+
+        UdpProbe(int ip, int port, DatagramChannel channel) {
+            this.ip = ip;
+            this.port = port;
+            this.channel = channel;
+        }
+    }
+
+    private static final class Probe extends DeadlineWheel.Entry {
+        final int ip;
+        final int port;
+        final SocketChannel channel;
+        final long startNanos = System.nanoTime();
+        SelectionKey key;
+
+        Probe(int ip, int port, SocketChannel channel) {
+            this.ip = ip;
+            this.port = port;
+            this.channel = channel;
+        }
+    }
+
+    ScanEngine(ScanConfig config, ScanListener listener) {
+        this(config, listener, null);
+    }
+
+    // Continues a stopped scan; config is normally resume.getConfig(), optionally with a checkpoint file
+    ScanEngine(ScanConfig config, ScanListener listener, ScanCheckpoint resume) {
+        this.config = config;
+        this.listener = listener;
+        this.resume = resume;
+        this.rtt = config.isAdaptiveTimeout()
+                ? new RttEstimator(config.getMinTimeoutMillis(), config.getTimeoutMillis())
+                : null;
+        this.openFound = config.getCheckpointFile() != null ? new ConcurrentLinkedQueue<>() : null;
+        if (openFound != null && resume != null) {
+            for (long probe : resume.getOpenPorts()) {
+                openFound.offer(probe);
+            }
+        }
+    }
+
+    // Draws in-flight slots from a budget shared with other scans; call before start()
+    synchronized void setBudget(ProbeBudget budget, ScanScheduler.Priority priority) {
+        if (thread != null) {
+            throw new IllegalStateException("Scan already started");
+        }
+        this.budget = budget;
+        this.priority = priority;
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Scan already started");
+        }
+        thread = new Thread(this::run, "scan-engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void cancel() {
+        cancelled = true;
+        ProbeSource src = source;
+        if (src != null) {
+            src.close();
+        }
+        HostDiscovery d = discovery;
+        if (d != null) {
+            d.cancel();
+        }
+        BannerGrabber g = grabber;
+        if (g != null) {
+            g.cancel();
+        }
+        ScanCoordinator c = coordinator;
+        if (c != null) {
+            c.cancel();
+        }
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t != null && config.getMode() == Mode.VIRTUAL_THREADS && !config.isUdp()) {
+            // Unblocks the producer waiting on the semaphore
+            t.interrupt();
+        }
+        // A blocked connect returns (AsynchronousCloseException) as soon as its channel is closed
+        for (SocketChannel channel : connecting) {
+            closeQuietly(channel);
+        }
+    }
+
+    ScanConfig getConfig() {
+        return config;
+    }
+
+    // Probes in the port sweep; drops once host discovery has weeded out dead hosts
+    long getTotalProbes() {
+        return totalProbes;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    // Sockets held by probes and banner grabs right now; should track getInFlight(), not grow
+    int getOpenChannels() {
+        BannerGrabber g = grabber;
+        return openChannels.get() + (g != null ? g.getPending() : 0);
+    }
+
+    // File descriptors open in this JVM, or -1 where the platform doesn't say (Windows)
+    static long openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            return ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    // Probes already done by the run this one resumes
+    long getResumedProbes() {
+        return resume != null ? resume.getPosition().probesDone : 0;
+    }
+
+    // Number of hosts with an RTT estimate, or -1 with adaptive timeouts off (or measured by workers)
+    int getHostsMeasured() {
+        return rtt != null && !config.isDistributed() ? rtt.getHostsMeasured() : -1;
+    }
+
+    // Workers connected to a distributed scan, or -1 when scanning in-process
+    int getWorkerCount() {
+        ScanCoordinator c = coordinator;
+        return c != null ? c.getWorkerCount() : config.isDistributed() ? 0 : -1;
+    }
+
+    private int timeoutFor(int ip) {
+        return rtt != null ? rtt.timeoutMillis(ip) : config.getTimeoutMillis();
+    }
+
+    // Both a handshake and a RST take one full round trip, so either is a sample
+    private void recordRtt(int ip, ProbeOutcome outcome, long startNanos) {
+        if (rtt != null && (outcome == ProbeOutcome.OPEN || outcome == ProbeOutcome.CLOSED)) {
+            rtt.addSample(ip, System.nanoTime() - startNanos);
+        }
+    }
+
+    // True when the running JVM can actually give us virtual threads
+    static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void awaitTermination() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    private void run() {
+        targets = config.getTargets();
+        ports = config.getPorts();
+        totalProbes = config.getTotalProbes();
+        // A port plan already names the hosts worth probing
+        if (config.getPortPlan() == null && config.isHostDiscovery() && !discoverHosts()) {
+            listener.scanFinished(true);
+            return;
+        }
+        if (config.isDistributed() && config.getPortPlan() == null && resume == null) {
+            runDistributed();
+            return;
+        }
+        try {
+            if (resume != null) {
+                source = new ProbeSource(config, resume.getPosition());
+            } else if (config.getPortPlan() != null) {
+                source = new ProbeSource(config.getPortPlan(), config);
+            } else {
+                source = new ProbeSource(targets, ports, config);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Cannot resume scan: " + e.getMessage());
+            listener.scanFinished(true);
+            return;
+        }
+        if (cancelled) {
+            source.close();
+        }
+        if (config.isServiceDetection() && !config.isUdp()) {
+            startGrabber();
+        }
+        if (config.getCheckpointFile() != null) {
+            startCheckpoints();
+        }
+        if (budget != null) {
+            lease = budget.lease(priority, () -> {
+                Selector s = selector;
+                if (s != null) {
+                    s.wakeup();
+                }
+            });
+        }
+        if (config.isUdp()) {
+            runUdp();
+        } else if (config.getMode() == Mode.VIRTUAL_THREADS) {
+            runThreaded();
+        } else {
+            runSelector();
+        }
+    }
+
+    // Returns false if the scan was cancelled during discovery
+    private boolean discoverHosts() {
+        HostDiscovery d = new HostDiscovery(config, budget, priority);
+        discovery = d;
+        try {
+            if (cancelled) {
+                return false;
+            }
+            int[] live = d.run();
+            if (cancelled) {
+                return false;
+            }
+            listener.discoveryCompleted(live, targets.size(), d.getElapsedMillis());
+            targets = TargetSpec.of(live);
+            totalProbes = (long) live.length * ports.length;
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            discovery = null;
+        }
+    }
+
+    private void startGrabber() {
+        try {
+            BannerGrabber g = new BannerGrabber(listener, config.getBannerTimeoutMillis(), config.getTlsPorts());
+            g.start();
+            grabber = g;
+            if (cancelled) {
+                g.cancel();
+            }
+        } catch (IOException e) {
+            System.err.println("Service detection unavailable: " + e.getMessage());
+        }
+    }
+
+    private void startCheckpoints() {
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(config.getCheckpointIntervalMillis());
+                    saveCheckpoint();
+                }
+            } catch (InterruptedException e) {
+                // Scan is over
+            }
+        }, "scan-checkpoint");
+        t.setDaemon(true);
+        t.start();
+        checkpointer = t;
+    }
+
+    // A stopped scan leaves a final checkpoint to resume from; a finished one removes it
+    private void finishCheckpoints() {
+        Thread t = checkpointer;
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            // Still write the final checkpoint below
+        }
+        if (cancelled) {
+            saveCheckpoint();
+        } else {
+            config.getCheckpointFile().delete();
+        }
+    }
+
+    private void saveCheckpoint() {
+        // Read source first: its volatile write publishes targets
+        ProbeSource src = source;
+        ScanConfig saved = config.copy();
+        saved.setTargets(targets);
+        saved.setPorts(ports);
+        saved.setHostDiscovery(false);
+        File file = config.getCheckpointFile();
+        synchronized (checkpointLock) {
+            ProbeSource.Position position = src.position();
+            long[] open = new long[openFound.size()];
+            int n = 0;
+            for (long probe : openFound) {
+                if (n < open.length) {
+                    open[n++] = probe;
+                }
+            }
+            try {
+                new ScanCheckpoint(saved, position, Arrays.copyOf(open, n), System.currentTimeMillis())
+                        .save(file);
+            } catch (IOException e) {
+                if (!checkpointFailed) {
+                    checkpointFailed = true;
+                    System.err.println("Could not save scan checkpoint: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Open probes go into checkpoints before their completion does, so no save can miss one
+    private void recordOpen(int ip, int port, ProbeOutcome outcome) {
+        if (openFound != null && outcome == ProbeOutcome.OPEN) {
+            openFound.offer(ProbeSource.pack(ip, port));
+        }
+    }
+
+    // Waits for outstanding banner grabs before the scan counts as finished
+    private void finishGrabber() {
+        BannerGrabber g = grabber;
+        if (g == null) {
+            return;
+        }
+        try {
+            if (cancelled) {
+                g.cancel();
+            }
+            g.finish();
+        } catch (InterruptedException e) {
+            g.cancel();
+        }
+    }
+
+    // An open port's channel goes to the grabber if there is one, otherwise it's closed
+    private void release(int ip, int port, SocketChannel channel, ProbeOutcome outcome) {
+        BannerGrabber g = grabber;
+        if (outcome != ProbeOutcome.OPEN || g == null || cancelled || !g.adopt(ip, port, channel)) {
+            closeChannel(channel);
+        } else {
+            openChannels.decrementAndGet();
+        }
+    }
+
+    // The one place a probe gives up its channel; call exactly once per opened channel
+    private void closeChannel(Channel channel) {
+        if (channel != null) {
+            closeQuietly(channel);
+            openChannels.decrementAndGet();
+        }
+    }
+
+    // Abandons whatever is still registered (a stop, or the selector failing) so nothing lingers on the wire
+    private void abandonAll(Selector sel) {
+        for (SelectionKey key : sel.keys()) {
+            // Keys of completed probes stay in the set, cancelled, until the next select
+            if (!key.isValid()) {
+                continue;
+            }
+            Object probe = key.attachment();
+            closeChannel(probe instanceof Probe ? ((Probe) probe).channel : ((UdpProbe) probe).channel);
+            slotFreed();
+        }
+    }
+
+    private void runSelector() {
+        DeadlineWheel<Probe> wheel = new DeadlineWheel<>(TICK_MILLIS, WHEEL_SLOTS, nowMillis());
+        try (Selector sel = Selector.open()) {
+            selector = sel;
+            try {
+                while (!cancelled) {
+                    fill(sel, wheel);
+                    if (inFlight.get() == 0 && !source.hasNext()) {
+                        break;
+                    }
+                    sel.select(selectTimeout(wheel));
+
+                    Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Probe probe = (Probe) key.attachment();
+                        if (key.isValid() && key.isConnectable()) {
+                            finishConnect(probe, wheel);
+                        }
+                    }
+                    wheel.expire(nowMillis(), probe -> complete(probe, ProbeOutcome.FILTERED, wheel));
+                }
+            } finally {
+                abandonAll(sel);
+            }
+        } catch (IOException e) {
+            System.err.println("Scan engine failed: " + e.getMessage());
+            cancelled = true;
+        } finally {
+            selector = null;
+            finishGrabber();
+            finishCheckpoints();
+            closeLease();
+            listener.scanFinished(cancelled);
+        }
+    }
+
+    // Sleep until the next wheel tick or until the pacer releases more work
+    private long selectTimeout(DeadlineWheel<?> wheel) {
+        long timeout = wheel.millisUntilNextTick(nowMillis());
+        long pace = source.nanosUntilReady();
+        if (pace >= 0) {
+            long paceMillis = Math.max(1, (pace + 999_999) / 1_000_000);
+            timeout = timeout == 0 ? paceMillis : Math.min(timeout, paceMillis);
+        }
+        return timeout;
+    }
+
+    // Slots for up to wanted new probes: all of them, unless a shared budget says otherwise
+    private int reserve(int wanted) {
+        ProbeBudget.Lease l = lease;
+        if (l == null || wanted <= 0) {
+            return wanted;
+        }
+        // Ask only for what the source could send now: a paced or drained job's
+        // unmet request would hold slots back from lower priorities for nothing
+        wanted = source.available(wanted);
+        if (wanted == 0) {
+            budget.unused(l, 0);
+            return 0;
+        }
+        return budget.tryAcquire(l, wanted);
+    }
+
+    // Slots reserved for probes the source then didn't hand out
+    private void unused(int slots) {
+        ProbeBudget.Lease l = lease;
+        if (l != null) {
+            budget.unused(l, slots);
+        }
+    }
+
+    private void unreserve(int slots) {
+        ProbeBudget.Lease l = lease;
+        if (l != null) {
+            budget.release(l, slots);
+        }
+    }
+
+    // A probe finished or was abandoned; its in-flight slot is free again
+    private void slotFreed() {
+        inFlight.decrementAndGet();
+        unreserve(1);
+    }
+
+    // Hands back whatever the lease still holds, before anyone hears the scan is over
+    private void closeLease() {
+        ProbeBudget.Lease l = lease;
+        if (l != null) {
+            lease = null;
+            budget.close(l);
+        }
+    }
+
+    // Open new connects until the in-flight budget is used up
+    private void fill(Selector sel, DeadlineWheel<Probe> wheel) {
+        long now = nowMillis();
+        int free;
+        while ((free = reserve(config.getMaxInFlight() - inFlight.get())) > 0 && !cancelled) {
+            int n = source.next(batch, free);
+            if (n < free) {
+                unused(free - n);
+            }
+            if (n == 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                int ip = ProbeSource.ipOf(batch[i]);
+                launch(sel, wheel, ip, ProbeSource.portOf(batch[i]), now + timeoutFor(ip));
+            }
+        }
+    }
+
+    private void launch(Selector sel, DeadlineWheel<Probe> wheel, int ip, int port, long deadline) {
+        long startNanos = System.nanoTime();
+        SocketChannel channel = null;
+        inFlight.incrementAndGet();
+        try {
+            channel = SocketChannel.open();
+            openChannels.incrementAndGet();
+            channel.configureBlocking(false);
+            Probe probe = new Probe(ip, port, channel);
+            if (channel.connect(Ipv4.socketAddress(ip, port))) {
+                // Loopback connects can complete immediately
+                complete(probe, ProbeOutcome.OPEN, wheel);
+                return;
+            }
+            probe.key = channel.register(sel, SelectionKey.OP_CONNECT, probe);
+            wheel.schedule(probe, deadline);
+        } catch (ConnectException e) {
+            slotFreed();
+            closeChannel(channel);
+            source.completed(ip, port);
+            listener.probeCompleted(ip, port, ProbeOutcome.CLOSED, System.nanoTime() - startNanos);
+        } catch (IOException e) {
+            // Also where running out of file descriptors (EMFILE) surfaces
+            slotFreed();
+            closeChannel(channel);
+            source.completed(ip, port);
+            listener.probeCompleted(ip, port, ProbeOutcome.ERROR, System.nanoTime() - startNanos);
+        }
+    }
+
+    private void finishConnect(Probe probe, DeadlineWheel<Probe> wheel) {
+        ProbeOutcome outcome;
+        try {
+            if (!probe.channel.finishConnect()) {
+                return;
+            }
+            outcome = ProbeOutcome.OPEN;
+        } catch (NoRouteToHostException e) {
+            outcome = ProbeOutcome.FILTERED;
+        } catch (ConnectException e) {
+            outcome = ProbeOutcome.CLOSED;
+        } catch (IOException e) {
+            outcome = ProbeOutcome.ERROR;
+        }
+        complete(probe, outcome, wheel);
+    }
+
+    private void complete(Probe probe, ProbeOutcome outcome, DeadlineWheel<Probe> wheel) {
+        wheel.cancel(probe);
+        if (probe.key != null) {
+            probe.key.cancel();
+        }
+        slotFreed();
+        recordOpen(probe.ip, probe.port, outcome);
+        source.completed(probe.ip, probe.port);
+        recordRtt(probe.ip, outcome, probe.startNanos);
+        // Report first so the OPEN always precedes anything the grabber says about the port
+        try {
+            listener.probeCompleted(probe.ip, probe.port, outcome, System.nanoTime() - probe.startNanos);
+        } finally {
+            release(probe.ip, probe.port, probe.channel, outcome);
+        }
+    }
+
+    private void runUdp() {
+        DeadlineWheel<UdpProbe> wheel = new DeadlineWheel<>(TICK_MILLIS, WHEEL_SLOTS, nowMillis());
+        ByteBuffer reply = ByteBuffer.allocateDirect(2048);
+        try (Selector sel = Selector.open()) {
+            selector = sel;
+            try {
+                while (!cancelled) {
+                    fillUdp(sel, wheel);
+                    if (inFlight.get() == 0 && !source.hasNext()) {
+                        break;
+                    }
+                    sel.select(selectTimeout(wheel));
+
+                    Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            receive((UdpProbe) key.attachment(), reply, wheel);
+                        }
+                    }
+                    wheel.expire(nowMillis(), probe -> retransmit(probe, wheel));
+                }
+            } finally {
+                abandonAll(sel);
+            }
+        } catch (IOException e) {
+            System.err.println("Scan engine failed: " + e.getMessage());
+            cancelled = true;
+        } finally {
+            selector = null;
+            finishCheckpoints();
+            closeLease();
+            listener.scanFinished(cancelled);
+        }
+    }
+
+    private void fillUdp(Selector sel, DeadlineWheel<UdpProbe> wheel) {
+        int free;
+        while ((free = reserve(config.getMaxInFlight() - inFlight.get())) > 0 && !cancelled) {
+            int n = source.next(batch, free);
+            if (n < free) {
+                unused(free - n);
+            }
+            if (n == 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                launchUdp(sel, wheel, ProbeSource.ipOf(batch[i]), ProbeSource.portOf(batch[i]));
+            }
+        }
+    }
+
+    private void launchUdp(Selector sel, DeadlineWheel<UdpProbe> wheel, int ip, int port) {
+        long startNanos = System.nanoTime();
+        DatagramChannel channel = null;
+        inFlight.incrementAndGet();
+        try {
+            channel = openUdp(Ipv4.socketAddress(ip, port));
+            openChannels.incrementAndGet();
+            UdpProbe probe = new UdpProbe(ip, port, channel);
+            probe.key = channel.register(sel, SelectionKey.OP_READ, probe);
+            send(probe, wheel);
+        } catch (IOException e) {
+            slotFreed();
+            closeChannel(channel);
+            source.completed(ip, port);
+            listener.probeCompleted(ip, port, ProbeOutcome.ERROR, System.nanoTime() - startNanos);
+        }
+    }
+
+    // Connected, so ICMP errors for this address come back to this channel. On
+    // loopback the ephemeral port can turn out to be the target port itself,
+    // and such a socket would read back its own datagram as a reply; it is held
+    // until a replacement is bound so the same port isn't handed out again.
+    private static DatagramChannel openUdp(InetSocketAddress target) throws IOException {
+        DatagramChannel selfConnected = null;
+        try {
+            while (true) {
+                DatagramChannel channel = DatagramChannel.open();
+                try {
+                    channel.configureBlocking(false);
+                    channel.connect(target);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                    throw e;
+                }
+                if (!target.equals(channel.getLocalAddress())) {
+                    return channel;
+                }
+                closeQuietly(selfConnected);
+                selfConnected = channel;
+            }
+        } finally {
+            closeQuietly(selfConnected);
+        }
+    }
+
+    private void send(UdpProbe probe, DeadlineWheel<UdpProbe> wheel) {
+        try {
+            probe.attempts++;
+            probe.sentNanos = System.nanoTime();
+            probe.channel.write(ByteBuffer.wrap(UdpPayloads.forPort(probe.port)));
+            // Exponential backoff: every retry waits twice as long as the one before
+            long timeout = (long) timeoutFor(probe.ip) << (probe.attempts - 1);
+            wheel.schedule(probe, nowMillis() + timeout);
+        } catch (PortUnreachableException e) {
+            completeUdp(probe, ProbeOutcome.CLOSED, wheel);
+        } catch (IOException e) {
+            completeUdp(probe, ProbeOutcome.ERROR, wheel);
+        }
+    }
+
+    private void retransmit(UdpProbe probe, DeadlineWheel<UdpProbe> wheel) {
+        if (probe.attempts > config.getUdpRetries()) {
+            completeUdp(probe, ProbeOutcome.OPEN_FILTERED, wheel);
+        } else {
+            send(probe, wheel);
+        }
+    }
+
+    private void receive(UdpProbe probe, ByteBuffer reply, DeadlineWheel<UdpProbe> wheel) {
+        try {
+            reply.clear();
+            if (probe.channel.read(reply) > 0) {
+                completeUdp(probe, ProbeOutcome.OPEN, wheel);
+            }
+        } catch (PortUnreachableException e) {
+            completeUdp(probe, ProbeOutcome.CLOSED, wheel);
+        } catch (IOException e) {
+            completeUdp(probe, ProbeOutcome.ERROR, wheel);
+        }
+    }
+
+    private void completeUdp(UdpProbe probe, ProbeOutcome outcome, DeadlineWheel<UdpProbe> wheel) {
+        wheel.cancel(probe);
+        probe.key.cancel();
+        closeChannel(probe.channel);
+        slotFreed();
+        recordOpen(probe.ip, probe.port, outcome);
+        source.completed(probe.ip, probe.port);
+        // Like TCP's Karn rule: an answer to a retransmission can't be timed reliably
+        if (probe.attempts == 1) {
+            recordRtt(probe.ip, outcome, probe.sentNanos);
+        }
+        listener.probeCompleted(probe.ip, probe.port, outcome, System.nanoTime() - probe.startNanos);
+    }
+
+    // Workers do the probing (and banner grabbing); checkpoints and port plans stay in-process only
+    private void runDistributed() {
+        ScanCoordinator c = new ScanCoordinator(config, targets, ports, listener);
+        coordinator = c;
+        try {
+            if (cancelled || !c.run()) {
+                cancelled = true;
+            }
+        } catch (IOException e) {
+            System.err.println("Distributed scan failed: " + e.getMessage());
+            cancelled = true;
+        } catch (InterruptedException e) {
+            cancelled = true;
+        } finally {
+            listener.scanFinished(cancelled);
+        }
+    }
+
+    private void runThreaded() {
+        Semaphore permits = new Semaphore(config.getMaxInFlight());
+        ExecutorService probes = newProbeExecutor();
+        try {
+            while (!cancelled && source.hasNext()) {
+                int n = source.next(batch, BATCH);
+                if (n == 0) {
+                    // Pacer is holding work back
+                    source.awaitReady();
+                    continue;
+                }
+                for (int i = 0; i < n && !cancelled; i++) {
+                    // Blocks here once maxInFlight probes are running; that's the backpressure
+                    permits.acquire();
+                    ProbeBudget.Lease l = lease;
+                    if (l != null) {
+                        budget.acquire(l);
+                    }
+                    if (cancelled) {
+                        unreserve(1);
+                        break;
+                    }
+                    int ip = ProbeSource.ipOf(batch[i]);
+                    int port = ProbeSource.portOf(batch[i]);
+                    inFlight.incrementAndGet();
+                    probes.execute(() -> {
+                        try {
+                            if (!cancelled) {
+                                blockingProbe(ip, port);
+                            }
+                        } finally {
+                            slotFreed();
+                            if (!cancelled) {
+                                // A probe cut short by Stop stays outstanding in the checkpoint
+                                source.completed(ip, port);
+                            }
+                            permits.release();
+                        }
+                    });
+                }
+            }
+        } catch (InterruptedException e) {
+            // cancel() interrupts us out of permits.acquire()
+        } finally {
+            if (cancelled) {
+                // cancel() has closed the connects already; this catches any that started since
+                probes.shutdownNow();
+            } else {
+                probes.shutdown();
+            }
+            try {
+                while (!probes.awaitTermination(1, TimeUnit.SECONDS)) {
+                    if (cancelled) {
+                        probes.shutdownNow();
+                    }
+                }
+            } catch (InterruptedException e) {
+                probes.shutdownNow();
+            }
+            finishGrabber();
+            finishCheckpoints();
+            closeLease();
+            listener.scanFinished(cancelled);
+        }
+    }
+
+    private void blockingProbe(int ip, int port) {
+        long startNanos = System.nanoTime();
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+        } catch (IOException e) {
+            // Out of file descriptors, most likely
+            if (!cancelled) {
+                listener.probeCompleted(ip, port, ProbeOutcome.ERROR, System.nanoTime() - startNanos);
+            }
+            return;
+        }
+        openChannels.incrementAndGet();
+        connecting.add(channel);
+        boolean released = false;
+        try {
+            // Checked after joining connecting, so a probe starting as Stop sweeps can't slip past it
+            ProbeOutcome outcome = cancelled ? null : connect(channel, ip, port);
+            connecting.remove(channel);
+            // During Stop a failure is most likely our own close rather than a real answer
+            if (outcome == ProbeOutcome.OPEN || outcome != null && !cancelled) {
+                recordRtt(ip, outcome, startNanos);
+                recordOpen(ip, port, outcome);
+                released = true;
+                try {
+                    listener.probeCompleted(ip, port, outcome, System.nanoTime() - startNanos);
+                } finally {
+                    release(ip, port, channel, outcome);
+                }
+            }
+        } finally {
+            connecting.remove(channel);
+            if (!released) {
+                closeChannel(channel);
+            }
+        }
+    }
+
+    private ProbeOutcome connect(SocketChannel channel, int ip, int port) {
+        try {
+            channel.socket().connect(Ipv4.socketAddress(ip, port), timeoutFor(ip));
+            return ProbeOutcome.OPEN;
+        } catch (SocketTimeoutException | NoRouteToHostException e) {
+            return ProbeOutcome.FILTERED;
+        } catch (ConnectException e) {
+            return ProbeOutcome.CLOSED;
+        } catch (IOException e) {
+            return ProbeOutcome.ERROR;
+        }
+    }
+
+    // One virtual thread per probe where the JVM supports it, otherwise a
+    // growable pool of daemon platform threads (the semaphore still bounds it)
+    private static ExecutorService newProbeExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "scan-probe");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing useful to do with a failed close
+        }
+    }
+
+    private static long nowMillis() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Lock-free hand-off from scan threads to the EDT. Engine threads only
+// enqueue; a Swing timer drains everything that piled up in one batch, so
+// the event queue sees one update per tick instead of one per probe.
+class ScanEventBuffer {
+    private final ConcurrentLinkedQueue<Long> openPorts = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<String> logLines = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Service> services = new ConcurrentLinkedQueue<>();
+
+    // A banner match for one open port
+    static final class Service {
+        final long packed;
+        final ServiceSignatures.Match match;
+
+        Service(long packed, ServiceSignatures.Match match) {
+            this.packed = packed;
+            this.match = match;
+        }
+    }
+
+    void addOpenPort(int ip, int port) {
+        openPorts.offer(ProbeSource.pack(ip, port));
+    }
+
+    void addService(int ip, int port, ServiceSignatures.Match match) {
+        services.offer(new Service(ProbeSource.pack(ip, port), match));
+    }
+
+    void addLog(String message) {
+        logLines.offer(message);
+    }
+
+    // Entries are packed as by ProbeSource.pack
+    List<Long> drainOpenPorts() {
+        return drain(openPorts);
+    }
+
+    List<Service> drainServices() {
+        return drain(services);
+    }
+
+    List<String> drainLog() {
+        return drain(logLines);
+    }
+
+    void clear() {
+        openPorts.clear();
+        logLines.clear();
+        services.clear();
+    }
+
+    private static <T> List<T> drain(ConcurrentLinkedQueue<T> queue) {
+        List<T> batch = new ArrayList<>();
+        T item;
+        while ((item = queue.poll()) != null) {
+            batch.add(item);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,479 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only history of completed scans, for the questions ScanResultStore
+ * (latest state per host only) can't answer: which hosts ever had 3389
+ * open, what changed on one host over the last month.
+ *
+ * Each recorded scan becomes one segment file in the history directory,
+ * written through a temp file and a rename and never modified afterwards.
+ * A segment holds what the scan covered and its open ports column by
+ * column, rows sorted by host then port. Closed ports cost nothing: covered
+ * and not open means closed, which is all the change queries need.
+ *
+ * Segment layout (big-endian, via DataOutputStream):
+ *   int magic, int version, long scannedAt, boolean udp
+ *   targets (TargetSpec.writeTo), int rangeCount, rangeCount x (char from, char to)
+ *   int serviceCount, serviceCount x UTF name
+ *   int rows, rows x int ip, rows x char port, rows x char service index
+ *
+ * Loaded, the segments are concatenated into primitive columns with three
+ * secondary indexes over them: rows by host (one sort) and by port and by
+ * service (counting-sort buckets). They are rebuilt on the first query
+ * after an append, so a query only touches the rows it returns, which
+ * keeps lookups in the milliseconds with millions of results on record.
+ */
+class ScanHistory {
+    static final String DEFAULT_DIR = "scan-history";
+    private static final int MAGIC = 0x43534853; // "CSHS"
+    private static final int VERSION = 1;
+    private static final String PREFIX = "scan-";
+    private static final String SUFFIX = ".seg";
+
+    enum Kind {
+        FIRST_SEEN("first seen open"),
+        OPENED("opened"),
+        CLOSED("closed");
+
+        private final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    // One host/port found open by at least one scan in the queried window
+    static final class Sighting {
+        final int ip;
+        final int port;
+        final String service;
+        long firstSeen;
+        long lastSeen;
+        int scans;
+
+        private Sighting(int ip, int port, String service, long seen) {
+            this.ip = ip;
+            this.port = port;
+            this.service = service;
+            this.firstSeen = seen;
+            this.lastSeen = seen;
+        }
+    }
+
+    // A port whose state on one host differed from the scan before
+    static final class Change {
+        final long at;
+        final int port;
+        final boolean udp;
+        final Kind kind;
+        final String service;
+
+        private Change(long at, int port, boolean udp, Kind kind, String service) {
+            this.at = at;
+            this.port = port;
+            this.udp = udp;
+            this.kind = kind;
+            this.service = service;
+        }
+    }
+
+    private static final class Scan {
+        final long scannedAt;
+        final boolean udp;
+        final TargetSpec targets;
+        final char[] ranges;      // covered ports as from/to pairs
+
+        Scan(long scannedAt, boolean udp, TargetSpec targets, char[] ranges) {
+            this.scannedAt = scannedAt;
+            this.udp = udp;
+            this.targets = targets;
+            this.ranges = ranges;
+        }
+
+        boolean covers(int port) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (port >= ranges[i] && port <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final File dir;
+    private final List<Scan> scans = new ArrayList<>();
+    private int nextSegment = 1;
+
+    // Every open result on record, one row each, in segment order
+    private int rows;
+    private int[] ips = new int[1024];
+    private char[] ports = new char[1024];
+    private int[] services = new int[1024];
+    private int[] scanOf = new int[1024];
+    private final List<String> serviceNames = new ArrayList<>();
+    private final Map<String, Integer> serviceIds = new HashMap<>();
+
+    // Secondary indexes; stale after an append until the next query
+    private boolean indexed;
+    private long[] byHost;        // unsigned ip << 32 | row, sorted
+    private int[] portStart;      // rows open on port p: byPort[portStart[p] .. portStart[p + 1])
+    private int[] byPort;
+    private int[] serviceStart;
+    private int[] byService;
+
+    private ScanHistory(File dir) {
+        this.dir = dir;
+    }
+
+    static ScanHistory open(File dir) throws IOException {
+        ScanHistory history = new ScanHistory(dir);
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return history;
+        }
+        // Zero-padded sequence numbers, so name order is recording order
+        Arrays.sort(files);
+        for (File file : files) {
+            history.load(file);
+            history.nextSegment = Math.max(history.nextSegment, sequenceOf(file) + 1);
+        }
+        return history;
+    }
+
+    /**
+     * Records a finished scan of targets x ports. openPorts are packed
+     * ProbeSource longs; identified maps some of them to a detected service,
+     * the rest are named from the port database.
+     */
+    synchronized void record(TargetSpec targets, int[] scanned, boolean udp, long[] openPorts,
+                             Map<Long, String> identified, long scannedAt) throws IOException {
+        // Packed probes sort by unsigned address, then port
+        long[] open = openPorts.clone();
+        Arrays.sort(open);
+        int n = 0;
+        for (int i = 0; i < open.length; i++) {
+            if (n == 0 || open[i] != open[n - 1]) {
+                open[n++] = open[i];
+            }
+        }
+
+        PortServiceTable table = PortServiceTable.get();
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> local = new HashMap<>();
+        char[] serviceIndex = new char[n];
+        for (int i = 0; i < n; i++) {
+            String service = identified != null ? identified.get(open[i]) : null;
+            if (service == null) {
+                service = table.name(ProbeSource.portOf(open[i]), udp);
+            }
+            Integer id = local.get(service);
+            if (id == null) {
+                id = names.size();
+                local.put(service, id);
+                names.add(service);
+            }
+            serviceIndex[i] = (char) (int) id;
+        }
+        char[] ranges = PortSet.toRanges(scanned);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File file = new File(dir, String.format("%s%08d%s", PREFIX, nextSegment, SUFFIX));
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(scannedAt);
+            out.writeBoolean(udp);
+            targets.writeTo(out);
+            out.writeInt(ranges.length / 2);
+            for (char c : ranges) {
+                out.writeChar(c);
+            }
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                out.writeInt(ProbeSource.ipOf(open[i]));
+            }
+            for (int i = 0; i < n; i++) {
+                out.writeChar(ProbeSource.portOf(open[i]));
+            }
+            for (int i = 0; i < n; i++) {
+                out.writeChar(serviceIndex[i]);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not write " + file);
+        }
+        nextSegment++;
+
+        int scan = scans.size();
+        scans.add(new Scan(scannedAt, udp, targets, ranges));
+        int[] global = globalIds(names);
+        ensureCapacity(rows + n);
+        for (int i = 0; i < n; i++) {
+            ips[rows] = ProbeSource.ipOf(open[i]);
+            ports[rows] = (char) ProbeSource.portOf(open[i]);
+            services[rows] = global[serviceIndex[i]];
+            scanOf[rows] = scan;
+            rows++;
+        }
+        indexed = false;
+    }
+
+    synchronized int scanCount() {
+        return scans.size();
+    }
+
+    synchronized int resultCount() {
+        return rows;
+    }
+
+    // Every host seen with port open in [from, to], oldest sighting first per host
+    synchronized List<Sighting> openOnPort(int port, boolean udp, long from, long to) {
+        index();
+        return sightings(byPort, portStart[port], portStart[port + 1], udp, from, to);
+    }
+
+    // Like openOnPort, for every port recorded under this service name (any case)
+    synchronized List<Sighting> openWithService(String service, boolean udp, long from, long to) {
+        index();
+        List<Sighting> found = new ArrayList<>();
+        for (int id = 0; id < serviceNames.size(); id++) {
+            if (serviceNames.get(id).equalsIgnoreCase(service)) {
+                found.addAll(sightings(byService, serviceStart[id], serviceStart[id + 1], udp, from, to));
+            }
+        }
+        found.sort((a, b) -> a.ip != b.ip ? Integer.compareUnsigned(a.ip, b.ip) : Integer.compare(a.port, b.port));
+        return found;
+    }
+
+    /**
+     * How ip's ports changed across the scans in [from, to] that covered
+     * it, TCP and UDP tracked separately. Ports open in the host's first
+     * scan of the window (or first covered later) come out as FIRST_SEEN.
+     */
+    synchronized List<Change> changes(int ip, long from, long to) {
+        index();
+        // This host's rows, grouped by scan; rows within a scan are already in port order
+        Map<Integer, List<Integer>> openByScan = new HashMap<>();
+        long key = (ip & 0xffffffffL) << 32;
+        for (int i = lowerBound(byHost, key); i < byHost.length && (byHost[i] >>> 32) == (ip & 0xffffffffL); i++) {
+            int row = (int) byHost[i];
+            openByScan.computeIfAbsent(scanOf[row], s -> new ArrayList<>()).add(row);
+        }
+
+        List<Integer> covering = new ArrayList<>();
+        for (int s = 0; s < scans.size(); s++) {
+            Scan scan = scans.get(s);
+            if (scan.scannedAt >= from && scan.scannedAt <= to && scan.targets.contains(ip)) {
+                covering.add(s);
+            }
+        }
+        covering.sort((a, b) -> Long.compare(scans.get(a).scannedAt, scans.get(b).scannedAt));
+
+        List<Change> changes = new ArrayList<>();
+        for (boolean udp : new boolean[]{false, true}) {
+            boolean[] known = new boolean[65536];
+            boolean[] open = new boolean[65536];
+            String[] serviceOf = new String[65536];
+            boolean[] seen = new boolean[65536];
+            List<Integer> openNow = new ArrayList<>();
+            for (int s : covering) {
+                Scan scan = scans.get(s);
+                if (scan.udp != udp) {
+                    continue;
+                }
+                List<Integer> rowsHere = openByScan.getOrDefault(s, List.of());
+                for (int row : rowsHere) {
+                    int port = ports[row];
+                    seen[port] = true;
+                    serviceOf[port] = serviceNames.get(services[row]);
+                    if (!open[port]) {
+                        changes.add(new Change(scan.scannedAt, port, udp, known[port] ? Kind.OPENED : Kind.FIRST_SEEN,
+                                serviceOf[port]));
+                    }
+                }
+                for (int port : openNow) {
+                    if (!seen[port] && scan.covers(port)) {
+                        changes.add(new Change(scan.scannedAt, port, udp, Kind.CLOSED, serviceOf[port]));
+                        open[port] = false;
+                    }
+                }
+                for (int i = 0; i < scan.ranges.length; i += 2) {
+                    Arrays.fill(known, scan.ranges[i], scan.ranges[i + 1] + 1, true);
+                }
+                openNow.removeIf(port -> !open[port]);
+                for (int row : rowsHere) {
+                    int port = ports[row];
+                    seen[port] = false;
+                    if (!open[port]) {
+                        open[port] = true;
+                        openNow.add(port);
+                    }
+                }
+            }
+        }
+        changes.sort((a, b) -> a.at != b.at ? Long.compare(a.at, b.at) : Integer.compare(a.port, b.port));
+        return changes;
+    }
+
+    private List<Sighting> sightings(int[] index, int start, int end, boolean udp, long from, long to) {
+        Map<Long, Sighting> byProbe = new LinkedHashMap<>();
+        for (int i = start; i < end; i++) {
+            int row = index[i];
+            Scan scan = scans.get(scanOf[row]);
+            if (scan.udp != udp || scan.scannedAt < from || scan.scannedAt > to) {
+                continue;
+            }
+            long probe = ProbeSource.pack(ips[row], ports[row]);
+            Sighting s = byProbe.get(probe);
+            if (s == null) {
+                byProbe.put(probe, new Sighting(ips[row], ports[row], serviceNames.get(services[row]), scan.scannedAt));
+            } else {
+                s.firstSeen = Math.min(s.firstSeen, scan.scannedAt);
+                s.lastSeen = Math.max(s.lastSeen, scan.scannedAt);
+            }
+            byProbe.get(probe).scans++;
+        }
+        List<Sighting> found = new ArrayList<>(byProbe.values());
+        found.sort((a, b) -> a.ip != b.ip ? Integer.compareUnsigned(a.ip, b.ip) : Integer.compare(a.port, b.port));
+        return found;
+    }
+
+    private void index() {
+        if (indexed) {
+            return;
+        }
+        byHost = new long[rows];
+        for (int row = 0; row < rows; row++) {
+            byHost[row] = (ips[row] & 0xffffffffL) << 32 | row;
+        }
+        Arrays.sort(byHost);
+
+        portStart = new int[65537];
+        byPort = bucket(ports, null, 65536, portStart);
+        serviceStart = new int[serviceNames.size() + 1];
+        byService = bucket(null, services, serviceNames.size(), serviceStart);
+        indexed = true;
+    }
+
+    // Counting sort of row ids by a char or int column; start[k] .. start[k + 1] delimits key k
+    private int[] bucket(char[] charKeys, int[] intKeys, int keys, int[] start) {
+        for (int row = 0; row < rows; row++) {
+            start[(charKeys != null ? charKeys[row] : intKeys[row]) + 1]++;
+        }
+        for (int k = 0; k < keys; k++) {
+            start[k + 1] += start[k];
+        }
+        int[] next = Arrays.copyOf(start, keys);
+        int[] sorted = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            sorted[next[charKeys != null ? charKeys[row] : intKeys[row]]++] = row;
+        }
+        return sorted;
+    }
+
+    private void load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a scan history segment: " + file);
+            }
+            long scannedAt = in.readLong();
+            boolean udp = in.readBoolean();
+            TargetSpec targets = TargetSpec.readFrom(in);
+            char[] ranges = new char[in.readInt() * 2];
+            for (int i = 0; i < ranges.length; i++) {
+                ranges[i] = in.readChar();
+            }
+            List<String> names = new ArrayList<>();
+            int serviceCount = in.readInt();
+            for (int i = 0; i < serviceCount; i++) {
+                names.add(in.readUTF());
+            }
+            int[] global = globalIds(names);
+            int n = in.readInt();
+            ensureCapacity(rows + n);
+            for (int i = 0; i < n; i++) {
+                ips[rows + i] = in.readInt();
+            }
+            for (int i = 0; i < n; i++) {
+                ports[rows + i] = in.readChar();
+            }
+            int scan = scans.size();
+            for (int i = 0; i < n; i++) {
+                services[rows + i] = global[in.readChar()];
+                scanOf[rows + i] = scan;
+            }
+            scans.add(new Scan(scannedAt, udp, targets, ranges));
+            rows += n;
+        } catch (NegativeArraySizeException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt scan history segment: " + file);
+        }
+        indexed = false;
+    }
+
+    private int[] globalIds(List<String> names) {
+        int[] global = new int[names.size()];
+        for (int i = 0; i < global.length; i++) {
+            String name = names.get(i);
+            Integer id = serviceIds.get(name);
+            if (id == null) {
+                id = serviceNames.size();
+                serviceIds.put(name, id);
+                serviceNames.add(name);
+            }
+            global[i] = id;
+        }
+        return global;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > ips.length) {
+            int size = Math.max(needed, ips.length * 2);
+            ips = Arrays.copyOf(ips, size);
+            ports = Arrays.copyOf(ports, size);
+            services = Arrays.copyOf(services, size);
+            scanOf = Arrays.copyOf(scanOf, size);
+        }
+    }
+
+    private static int lowerBound(long[] sorted, long key) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int sequenceOf(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
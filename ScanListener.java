@@ -0,0 +1,27 @@
+// Receives scan engine events. Callbacks arrive on engine threads (several at
+// once in virtual-thread mode), so implementations must be thread-safe, hand
+// off quickly (e.g. to the EDT) and never block.
+interface ScanListener {
+    void probeCompleted(int ip, int port, ProbeOutcome outcome);
+
+    // What the engine actually calls: the same, plus how long the probe took
+    // from its first packet to the outcome. Override to measure latency.
+    default void probeCompleted(int ip, int port, ProbeOutcome outcome, long elapsedNanos) {
+        probeCompleted(ip, port, outcome);
+    }
+
+    void scanFinished(boolean cancelled);
+
+    // Only called when host discovery is enabled, before the port sweep starts
+    default void discoveryCompleted(int[] liveHosts, long totalHosts, long elapsedMillis) {
+    }
+
+    // Only called with service detection on, some time after the port was reported OPEN
+    default void serviceIdentified(int ip, int port, ServiceSignatures.Match match) {
+    }
+
+    // Only called with service detection on, for ports in the config's TLS set: what the
+    // handshake showed, or why it failed. Successful ones also come through serviceIdentified
+    default void tlsInspected(int ip, int port, TlsInspector.Result result) {
+    }
+}
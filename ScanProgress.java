@@ -0,0 +1,120 @@
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Probe counters shared by all scan threads. Recording is a striped
+ * LongAdder increment, so hundreds of threads can report without contending
+ * on one cache line; rates and ETA come from periodic samples kept in a
+ * small ring, i.e. a sliding window over the last few seconds. Each outcome
+ * also keeps a LatencyHistogram of how long its probes took, which is what
+ * timeouts and concurrency should be tuned from: closed ports show the real
+ * round trip, filtered ones pile up at the timeout.
+ */
+class ScanProgress {
+    private static final int WINDOW_SAMPLES = 20;
+
+    private final LongAdder[] byOutcome = new LongAdder[ProbeOutcome.values().length];
+    private final LatencyHistogram[] latency = new LatencyHistogram[ProbeOutcome.values().length];
+    private final long[] sampleNanos = new long[WINDOW_SAMPLES];
+    private final long[] sampleCompleted = new long[WINDOW_SAMPLES];
+    private int samples;
+    private int nextSample;
+
+    // Point-in-time view for display
+    static final class Snapshot {
+        final long completed;
+        final long open, closed, filtered, errors;
+        final long openFiltered;  // UDP ports that never answered
+        final double probesPerSecond;
+        final long etaSeconds;   // -1 while unknown
+
+        private Snapshot(long completed, long open, long closed, long filtered, long errors, long openFiltered,
+                         double probesPerSecond, long etaSeconds) {
+            this.completed = completed;
+            this.open = open;
+            this.closed = closed;
+            this.filtered = filtered;
+            this.errors = errors;
+            this.openFiltered = openFiltered;
+            this.probesPerSecond = probesPerSecond;
+            this.etaSeconds = etaSeconds;
+        }
+    }
+
+    ScanProgress() {
+        for (int i = 0; i < byOutcome.length; i++) {
+            byOutcome[i] = new LongAdder();
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    void record(ProbeOutcome outcome) {
+        byOutcome[outcome.ordinal()].increment();
+    }
+
+    void record(ProbeOutcome outcome, long elapsedNanos) {
+        byOutcome[outcome.ordinal()].increment();
+        latency[outcome.ordinal()].record(elapsedNanos);
+    }
+
+    LatencyHistogram latency(ProbeOutcome outcome) {
+        return latency[outcome.ordinal()];
+    }
+
+    // One percentile distribution per outcome that saw any probes
+    void exportLatency(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (ProbeOutcome outcome : ProbeOutcome.values()) {
+                LatencyHistogram histogram = latency(outcome);
+                if (histogram.count() == 0) {
+                    continue;
+                }
+                out.println("# Connect latency (ms), outcome " + outcome.name().toLowerCase());
+                histogram.writePercentiles(out);
+                out.println();
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + file);
+            }
+        }
+    }
+
+    long count(ProbeOutcome outcome) {
+        return byOutcome[outcome.ordinal()].sum();
+    }
+
+    long completed() {
+        long total = 0;
+        for (LongAdder adder : byOutcome) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    // Call at a steady rate (a few times a second); the window spans WINDOW_SAMPLES calls
+    synchronized Snapshot sample(long totalProbes) {
+        long now = System.nanoTime();
+        long open = count(ProbeOutcome.OPEN);
+        long closed = count(ProbeOutcome.CLOSED);
+        long filtered = count(ProbeOutcome.FILTERED);
+        long errors = count(ProbeOutcome.ERROR);
+        long openFiltered = count(ProbeOutcome.OPEN_FILTERED);
+        long completed = open + closed + filtered + errors + openFiltered;
+
+        sampleNanos[nextSample] = now;
+        sampleCompleted[nextSample] = completed;
+        nextSample = (nextSample + 1) % WINDOW_SAMPLES;
+        samples = Math.min(samples + 1, WINDOW_SAMPLES);
+
+        double rate = 0;
+        if (samples > 1) {
+            int oldest = samples < WINDOW_SAMPLES ? 0 : nextSample;
+            long elapsed = now - sampleNanos[oldest];
+            if (elapsed > 0) {
+                rate = (completed - sampleCompleted[oldest]) * 1e9 / elapsed;
+            }
+        }
+        long eta = rate > 0 ? (long) Math.ceil(Math.max(0, totalProbes - completed) / rate) : -1;
+        return new Snapshot(completed, open, closed, filtered, errors, openFiltered, rate, eta);
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact on-disk record of what the scanner last saw, keyed by host and
+ * port. Each host stores when it was scanned, which port set was covered
+ * (port sets are shared between hosts and stored as ranges) and its open
+ * ports as a sorted char array. Anything covered but not open counted as
+ * closed, so closed ports cost nothing to remember.
+ *
+ * File layout (big-endian, via DataOutputStream):
+ *   int magic, int version
+ *   int portSetCount, then per set: int rangeCount, rangeCount x (char from, char to)
+ *   int hostCount, then per host: int ip, long scannedAt, int portSet, char openCount, openCount x char port
+ */
+class ScanResultStore {
+    static final String DEFAULT_FILE = "scan-results.bin";
+    private static final int MAGIC = 0x43535352; // "CSSR"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final List<char[]> portSets = new ArrayList<>();   // packed from/to pairs
+    private final Map<Integer, HostRecord> hosts = new HashMap<>();
+
+    private static final class HostRecord {
+        long scannedAt;
+        int portSet;
+        char[] open;
+
+        HostRecord(long scannedAt, int portSet, char[] open) {
+            this.scannedAt = scannedAt;
+            this.portSet = portSet;
+            this.open = open;
+        }
+    }
+
+    private ScanResultStore(File file) {
+        this.file = file;
+    }
+
+    static ScanResultStore load(File file) throws IOException {
+        ScanResultStore store = new ScanResultStore(file);
+        if (!file.exists()) {
+            return store;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a scan result file: " + file);
+            }
+            int setCount = in.readInt();
+            for (int i = 0; i < setCount; i++) {
+                char[] ranges = new char[in.readInt() * 2];
+                for (int j = 0; j < ranges.length; j++) {
+                    ranges[j] = in.readChar();
+                }
+                store.portSets.add(ranges);
+            }
+            int hostCount = in.readInt();
+            for (int i = 0; i < hostCount; i++) {
+                int ip = in.readInt();
+                long scannedAt = in.readLong();
+                int portSet = in.readInt();
+                char[] open = new char[in.readChar()];
+                for (int j = 0; j < open.length; j++) {
+                    open[j] = in.readChar();
+                }
+                store.hosts.put(ip, new HostRecord(scannedAt, portSet, open));
+            }
+        }
+        return store;
+    }
+
+    synchronized void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(portSets.size());
+            for (char[] ranges : portSets) {
+                out.writeInt(ranges.length / 2);
+                for (char c : ranges) {
+                    out.writeChar(c);
+                }
+            }
+            out.writeInt(hosts.size());
+            for (Map.Entry<Integer, HostRecord> e : hosts.entrySet()) {
+                HostRecord r = e.getValue();
+                out.writeInt(e.getKey());
+                out.writeLong(r.scannedAt);
+                out.writeInt(r.portSet);
+                out.writeChar(r.open.length);
+                for (char port : r.open) {
+                    out.writeChar(port);
+                }
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            // Windows won't rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    // Records a completed scan of targets x ports; openPorts are packed ProbeSource longs
+    synchronized void recordScan(TargetSpec targets, int[] ports, long[] openPorts, long scannedAt) {
+        int scanSet = internPortSet(ports);
+        Map<Integer, List<Integer>> openByHost = new HashMap<>();
+        for (long probe : openPorts) {
+            openByHost.computeIfAbsent(ProbeSource.ipOf(probe), k -> new ArrayList<>()).add(ProbeSource.portOf(probe));
+        }
+        TargetSpec.Iterator it = targets.iterator();
+        while (it.hasNext()) {
+            int ip = it.next();
+            List<Integer> found = openByHost.get(ip);
+            char[] open = new char[found == null ? 0 : found.size()];
+            for (int i = 0; i < open.length; i++) {
+                open[i] = (char) (int) found.get(i);
+            }
+            Arrays.sort(open);
+            int set = scanSet;
+            HostRecord previous = hosts.get(ip);
+            if (previous != null && previous.portSet != scanSet) {
+                // Keep what we knew about ports outside this scan's range
+                open = mergeOutside(previous, open, ports);
+                set = internPortSet(union(expand(portSets.get(previous.portSet)), ports));
+            }
+            hosts.put(ip, new HostRecord(scannedAt, set, open));
+        }
+    }
+
+    // Applies the result of re-probing a single port
+    synchronized void update(int ip, int port, boolean open, long scannedAt) {
+        HostRecord r = hosts.get(ip);
+        if (r == null) {
+            return;
+        }
+        int i = Arrays.binarySearch(r.open, (char) port);
+        if (open && i < 0) {
+            char[] grown = Arrays.copyOf(r.open, r.open.length + 1);
+            System.arraycopy(grown, -i - 1, grown, -i, r.open.length - (-i - 1));
+            grown[-i - 1] = (char) port;
+            r.open = grown;
+        } else if (!open && i >= 0) {
+            char[] shrunk = new char[r.open.length - 1];
+            System.arraycopy(r.open, 0, shrunk, 0, i);
+            System.arraycopy(r.open, i + 1, shrunk, i, shrunk.length - i);
+            r.open = shrunk;
+        }
+        r.scannedAt = scannedAt;
+    }
+
+    synchronized boolean hasHost(int ip) {
+        return hosts.containsKey(ip);
+    }
+
+    synchronized boolean wasOpen(int ip, int port) {
+        HostRecord r = hosts.get(ip);
+        return r != null && Arrays.binarySearch(r.open, (char) port) >= 0;
+    }
+
+    synchronized int[] openPorts(int ip) {
+        HostRecord r = hosts.get(ip);
+        if (r == null) {
+            return new int[0];
+        }
+        int[] ports = new int[r.open.length];
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = r.open[i];
+        }
+        return ports;
+    }
+
+    // Every port the last scan of this host covered
+    synchronized int[] scannedPorts(int ip) {
+        HostRecord r = hosts.get(ip);
+        return r == null ? new int[0] : expand(portSets.get(r.portSet));
+    }
+
+    synchronized long scannedAt(int ip) {
+        HostRecord r = hosts.get(ip);
+        return r == null ? 0 : r.scannedAt;
+    }
+
+    synchronized int hostCount() {
+        return hosts.size();
+    }
+
+    private int internPortSet(int[] ports) {
+        char[] ranges = PortSet.toRanges(ports);
+        for (int i = 0; i < portSets.size(); i++) {
+            if (Arrays.equals(portSets.get(i), ranges)) {
+                return i;
+            }
+        }
+        portSets.add(ranges);
+        return portSets.size() - 1;
+    }
+
+    private char[] mergeOutside(HostRecord previous, char[] open, int[] ports) {
+        int[] sorted = ports.clone();
+        Arrays.sort(sorted);
+        char[] merged = Arrays.copyOf(open, open.length + previous.open.length);
+        int n = open.length;
+        for (char port : previous.open) {
+            if (Arrays.binarySearch(sorted, port) < 0) {
+                merged[n++] = port;
+            }
+        }
+        merged = Arrays.copyOf(merged, n);
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        boolean[] seen = new boolean[65536];
+        int n = 0;
+        for (int p : a) {
+            if (!seen[p]) {
+                seen[p] = true;
+                n++;
+            }
+        }
+        for (int p : b) {
+            if (!seen[p]) {
+                seen[p] = true;
+                n++;
+            }
+        }
+        int[] result = new int[n];
+        int j = 0;
+        for (int p = 0; p < seen.length; p++) {
+            if (seen[p]) {
+                result[j++] = p;
+            }
+        }
+        return result;
+    }
+
+    private static int[] expand(char[] ranges) {
+        int count = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            count += ranges[i + 1] - ranges[i] + 1;
+        }
+        int[] ports = new int[count];
+        int n = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            for (int p = ranges[i]; p <= ranges[i + 1]; p++) {
+                ports[n++] = p;
+            }
+        }
+        return ports;
+    }
+}
@@ -0,0 +1,522 @@
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Table model for the scanner's results, sized for millions of rows. Each
+ * finding is a row across primitive columns (int address, char port, byte
+ * status, interned service and banner ids), about 30 bytes including the
+ * lookup slot, where an Object[] row of strings costs several hundred.
+ * Cell values are built only when JTable asks for them, i.e. for the rows
+ * on screen.
+ *
+ * Sorting and filtering never run on the EDT. A request snapshots the row
+ * count and the interned strings, and a background thread computes the new
+ * view (filter pass, then stable 16-bit radix passes, so a million rows sort
+ * in tens of milliseconds with no boxing). The result is swapped in on the
+ * EDT unless a newer request has superseded it. Rows that arrive after the
+ * snapshot, or while a view is in place, are appended to the end of the
+ * view if they pass the filter; sort again to put them in order.
+ *
+ * Apart from that worker, everything here is EDT-only, like any TableModel.
+ */
+final class ScanResultsModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    static final String[] COLUMNS = {"IP Address", "Port", "Status", "Service", "Description"};
+    private static final String[] STATUS = {"Open", "Closed", "Filtered", "Error", "Open|Filtered"};
+
+    private final PortServiceTable serviceTable;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "results-sort");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private int rows;
+    private int[] ips = new int[1024];
+    private char[] ports = new char[1024];
+    private byte[] status = new byte[1024];
+    private int[] services = new int[1024];   // ids into serviceNames
+    private int[] banners = new int[1024];    // ids into bannerTexts; 0 = describe the port instead
+    private final List<String> serviceNames = new ArrayList<>();
+    private final Map<String, Integer> serviceIds = new HashMap<>();
+    private final List<String> bannerTexts = new ArrayList<>(List.of(""));
+    private final Map<String, Integer> bannerIds = new HashMap<>(Map.of("", 0));
+
+    // Packed (ip, port) -> row, open addressing; packed values are 48-bit, so -1 marks a free slot
+    private long[] slotKeys = emptySlots(2048);
+    private int[] slotRows = new int[2048];
+
+    // The current view: model rows in display order, or null for all rows in arrival order
+    private int[] view;
+    private int viewCount;
+    private int sortColumn = -1;
+    private boolean ascending = true;
+    private String filter = "";
+    private Filter liveFilter;
+    private int generation;
+
+    ScanResultsModel(PortServiceTable serviceTable) {
+        this.serviceTable = serviceTable;
+    }
+
+    @Override
+    public int getRowCount() {
+        return view != null ? viewCount : rows;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == 1 ? Integer.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int column) {
+        int row = view != null ? view[rowIndex] : rowIndex;
+        switch (column) {
+            case 0:
+                return Ipv4.toString(ips[row]);
+            case 1:
+                return (int) ports[row];
+            case 2:
+                return STATUS[status[row]];
+            case 3:
+                return serviceNames.get(services[row]);
+            default:
+                return banners[row] != 0 ? bannerTexts.get(banners[row]) : serviceTable.description(ports[row]);
+        }
+    }
+
+    // Every finding, however many the filter hides
+    int getResultCount() {
+        return rows;
+    }
+
+    int getSortColumn() {
+        return sortColumn;
+    }
+
+    boolean isAscending() {
+        return ascending;
+    }
+
+    void clear() {
+        generation++;
+        rows = 0;
+        Arrays.fill(slotKeys, -1);
+        // New scan, new strings; the live filter's caches are keyed by the old ids
+        serviceNames.clear();
+        serviceIds.clear();
+        bannerTexts.subList(1, bannerTexts.size()).clear();
+        bannerIds.keySet().retainAll(List.of(""));
+        liveFilter = null;
+        view = hasView() ? new int[1024] : null;
+        viewCount = 0;
+        fireTableDataChanged();
+    }
+
+    // Appends a batch of open ports with a single table event; service names are the port-number guess
+    void addOpen(List<Long> found, boolean udp) {
+        int firstShown = getRowCount();
+        for (long packed : found) {
+            int port = ProbeSource.portOf(packed);
+            if (slotOf(packed) >= 0) {
+                continue;
+            }
+            ensureCapacity(rows + 1);
+            int row = rows++;
+            ips[row] = ProbeSource.ipOf(packed);
+            ports[row] = (char) port;
+            status[row] = (byte) ProbeOutcome.OPEN.ordinal();
+            services[row] = intern(serviceNames, serviceIds, serviceTable.name(port, udp));
+            banners[row] = 0;
+            putRow(packed, row);
+            if (view != null && liveFilter().matches(row)) {
+                appendToView(row);
+            }
+        }
+        if (getRowCount() > firstShown) {
+            fireTableRowsInserted(firstShown, getRowCount() - 1);
+        }
+    }
+
+    // Banner matches arrive after their OPEN row; overwrite the port-number guess
+    void applyServices(List<ScanEventBuffer.Service> found) {
+        boolean changed = false;
+        for (ScanEventBuffer.Service service : found) {
+            int slot = slotOf(service.packed);
+            if (slot < 0) {
+                continue;
+            }
+            int row = slotRows[slot];
+            if (service.match.isIdentified()) {
+                services[row] = intern(serviceNames, serviceIds, service.match.toString());
+                changed = true;
+            }
+            if (!service.match.banner.isEmpty()) {
+                banners[row] = intern(bannerTexts, bannerIds, service.match.banner);
+                changed = true;
+            }
+        }
+        if (changed && getRowCount() > 0) {
+            // JTable only repaints the part of the range that is on screen
+            fireTableRowsUpdated(0, getRowCount() - 1);
+        }
+    }
+
+    // Sorts by column, flipping the direction when it is already the sort column
+    void sortBy(int column, Runnable done) {
+        ascending = column != sortColumn || !ascending;
+        sortColumn = column;
+        recompute(done);
+    }
+
+    // Case-insensitive substring match against any column; empty shows everything
+    void setFilter(String text, Runnable done) {
+        filter = text.trim().toLowerCase();
+        liveFilter = null;
+        recompute(done);
+    }
+
+    private boolean hasView() {
+        return sortColumn >= 0 || !filter.isEmpty();
+    }
+
+    private void recompute(Runnable done) {
+        int requested = ++generation;
+        if (!hasView()) {
+            view = null;
+            fireTableDataChanged();
+            done.run();
+            return;
+        }
+        // Rows below the snapshot count never move, so the worker can read them in place
+        Snapshot snap = new Snapshot();
+        worker.execute(() -> {
+            int[] computed = snap.compute();
+            SwingUtilities.invokeLater(() -> {
+                if (requested != generation) {
+                    return;
+                }
+                view = Arrays.copyOf(computed, Math.max(1024, computed.length));
+                viewCount = computed.length;
+                Filter tail = liveFilter();
+                for (int row = snap.rows; row < rows; row++) {
+                    if (tail.matches(row)) {
+                        appendToView(row);
+                    }
+                }
+                fireTableDataChanged();
+                done.run();
+            });
+        });
+    }
+
+    private void appendToView(int row) {
+        if (viewCount == view.length) {
+            view = Arrays.copyOf(view, view.length * 2);
+        }
+        view[viewCount++] = row;
+    }
+
+    private Filter liveFilter() {
+        if (liveFilter == null) {
+            liveFilter = new Filter(filter, ips, ports, status, services, banners, serviceNames, bannerTexts);
+        }
+        // The columns may have been reallocated since; the caches stay valid
+        liveFilter.rebind(ips, ports, status, services, banners);
+        return liveFilter;
+    }
+
+    // What the worker needs, captured on the EDT
+    private final class Snapshot {
+        final int rows = ScanResultsModel.this.rows;
+        final int[] ips = ScanResultsModel.this.ips;
+        final char[] ports = ScanResultsModel.this.ports;
+        final byte[] status = ScanResultsModel.this.status;
+        final int[] services = ScanResultsModel.this.services;
+        final int[] banners = ScanResultsModel.this.banners;
+        final List<String> serviceNames = new ArrayList<>(ScanResultsModel.this.serviceNames);
+        final List<String> bannerTexts = new ArrayList<>(ScanResultsModel.this.bannerTexts);
+        final int column = sortColumn;
+        final boolean up = ascending;
+        final String text = filter;
+
+        int[] compute() {
+            int[] order = new int[rows];
+            int n = 0;
+            Filter f = new Filter(text, ips, ports, status, services, banners, serviceNames, bannerTexts);
+            for (int row = 0; row < rows; row++) {
+                if (f.matches(row)) {
+                    order[n++] = row;
+                }
+            }
+            order = Arrays.copyOf(order, n);
+            if (column >= 0) {
+                order = sort(order);
+                if (!up) {
+                    for (int i = 0, j = n - 1; i < j; i++, j--) {
+                        int t = order[i];
+                        order[i] = order[j];
+                        order[j] = t;
+                    }
+                }
+            }
+            return order;
+        }
+
+        // Least significant key first; each pass is stable, so earlier keys break ties
+        private int[] sort(int[] order) {
+            int[] address = new int[rows];
+            int[] port = new int[rows];
+            for (int i = 0; i < order.length; i++) {
+                int row = order[i];
+                address[row] = ips[row];
+                port[row] = ports[row];
+            }
+            switch (column) {
+                case 0:
+                    order = radix(order, port, false);
+                    return radix(order, address, true);
+                case 1:
+                    order = radix(order, address, true);
+                    return radix(order, port, false);
+                case 2:
+                    int[] state = new int[rows];
+                    for (int row : order) {
+                        state[row] = status[row];
+                    }
+                    order = radix(order, address, true);
+                    return radix(order, state, false);
+                case 3:
+                    int[] serviceRank = rank(serviceNames);
+                    int[] byService = new int[rows];
+                    for (int row : order) {
+                        byService[row] = services[row] < serviceRank.length ? serviceRank[services[row]] : 0;
+                    }
+                    order = radix(order, address, true);
+                    return radix(order, byService, serviceRank.length > 0xffff);
+                default:
+                    return radix(radix(order, address, true), descriptionRanks(order), true);
+            }
+        }
+
+        // Banners and port descriptions ranked together, as they share the column
+        private int[] descriptionRanks(int[] order) {
+            List<String> texts = new ArrayList<>(bannerTexts);
+            int[] portText = new int[65536];
+            Arrays.fill(portText, -1);
+            for (int row : order) {
+                if (portText[ports[row]] < 0) {
+                    portText[ports[row]] = texts.size();
+                    texts.add(serviceTable.description(ports[row]));
+                }
+            }
+            int[] ranks = rank(texts);
+            int[] key = new int[rows];
+            for (int row : order) {
+                int banner = banners[row];
+                key[row] = banner != 0 && banner < bannerTexts.size() ? ranks[banner] : ranks[portText[ports[row]]];
+            }
+            return key;
+        }
+    }
+
+    // Position of each string in case-insensitive order; equal strings share a rank
+    private static int[] rank(List<String> texts) {
+        Integer[] byText = new Integer[texts.size()];
+        for (int i = 0; i < byText.length; i++) {
+            byText[i] = i;
+        }
+        Arrays.sort(byText, (a, b) -> String.CASE_INSENSITIVE_ORDER.compare(texts.get(a), texts.get(b)));
+        int[] ranks = new int[texts.size()];
+        int rank = 0;
+        for (int i = 0; i < byText.length; i++) {
+            if (i > 0 && String.CASE_INSENSITIVE_ORDER.compare(texts.get(byText[i - 1]), texts.get(byText[i])) != 0) {
+                rank++;
+            }
+            ranks[byText[i]] = rank;
+        }
+        return ranks;
+    }
+
+    // Stable counting sort of rows by the low 16 bits of key[row], then the high 16 if wide
+    private static int[] radix(int[] order, int[] key, boolean wide) {
+        order = pass(order, key, 0);
+        return wide ? pass(order, key, 16) : order;
+    }
+
+    private static int[] pass(int[] order, int[] key, int shift) {
+        int[] start = new int[65537];
+        for (int row : order) {
+            start[((key[row] >>> shift) & 0xffff) + 1]++;
+        }
+        for (int k = 0; k < 65536; k++) {
+            start[k + 1] += start[k];
+        }
+        int[] sorted = new int[order.length];
+        for (int row : order) {
+            sorted[start[(key[row] >>> shift) & 0xffff]++] = row;
+        }
+        return sorted;
+    }
+
+    /**
+     * Substring test against a row's rendered cells without rendering them:
+     * each distinct service, banner and port description is tested once and
+     * the answer cached, and the address is only formatted when the needle
+     * could be part of one.
+     */
+    private final class Filter {
+        private final String needle;
+        private final boolean addressLike;
+        private final boolean[] statusHit = new boolean[STATUS.length];
+        private final List<String> serviceNames, bannerTexts;
+        private byte[] serviceHit = new byte[16], bannerHit = new byte[16];   // 0 untested, 1 hit, 2 miss
+        private final byte[] portHit = new byte[65536];
+        private int[] ips, services, banners;
+        private char[] ports;
+        private byte[] status;
+
+        Filter(String needle, int[] ips, char[] ports, byte[] status, int[] services, int[] banners,
+               List<String> serviceNames, List<String> bannerTexts) {
+            this.needle = needle;
+            this.addressLike = needle.chars().allMatch(c -> (c >= '0' && c <= '9') || c == '.');
+            for (int i = 0; i < STATUS.length; i++) {
+                statusHit[i] = STATUS[i].toLowerCase().contains(needle);
+            }
+            this.serviceNames = serviceNames;
+            this.bannerTexts = bannerTexts;
+            rebind(ips, ports, status, services, banners);
+        }
+
+        void rebind(int[] ips, char[] ports, byte[] status, int[] services, int[] banners) {
+            this.ips = ips;
+            this.ports = ports;
+            this.status = status;
+            this.services = services;
+            this.banners = banners;
+        }
+
+        boolean matches(int row) {
+            if (needle.isEmpty() || statusHit[status[row]]) {
+                return true;
+            }
+            int port = ports[row];
+            if (addressLike && (Ipv4.toString(ips[row]).contains(needle) || Integer.toString(port).contains(needle))) {
+                return true;
+            }
+            serviceHit = cached(serviceHit, serviceNames, services[row]);
+            if (serviceHit[services[row]] == 1) {
+                return true;
+            }
+            int banner = banners[row];
+            if (banner != 0) {
+                bannerHit = cached(bannerHit, bannerTexts, banner);
+                return bannerHit[banner] == 1;
+            }
+            if (portHit[port] == 0) {
+                portHit[port] = (byte) (serviceTable.description(port).toLowerCase().contains(needle) ? 1 : 2);
+            }
+            return portHit[port] == 1;
+        }
+
+        // Ids past the end of a snapshot's list were interned later; they count as misses
+        private byte[] cached(byte[] hits, List<String> texts, int id) {
+            if (id >= hits.length) {
+                hits = Arrays.copyOf(hits, Math.max(id + 1, hits.length * 2));
+            }
+            if (hits[id] == 0) {
+                hits[id] = (byte) (id < texts.size() && texts.get(id).toLowerCase().contains(needle) ? 1 : 2);
+            }
+            return hits;
+        }
+    }
+
+    private static int intern(List<String> texts, Map<String, Integer> ids, String text) {
+        Integer id = ids.get(text);
+        if (id == null) {
+            id = texts.size();
+            ids.put(text, id);
+            texts.add(text);
+        }
+        return id;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > ips.length) {
+            int size = Math.max(needed, ips.length * 2);
+            ips = Arrays.copyOf(ips, size);
+            ports = Arrays.copyOf(ports, size);
+            status = Arrays.copyOf(status, size);
+            services = Arrays.copyOf(services, size);
+            banners = Arrays.copyOf(banners, size);
+        }
+    }
+
+    // Slot holding packed, or -1 if absent
+    private int slotOf(long packed) {
+        int mask = slotKeys.length - 1;
+        for (int slot = hash(packed) & mask; ; slot = (slot + 1) & mask) {
+            if (slotKeys[slot] == packed) {
+                return slot;
+            }
+            if (slotKeys[slot] == -1) {
+                return -1;
+            }
+        }
+    }
+
+    private void putRow(long packed, int row) {
+        if (rows * 2 > slotKeys.length) {
+            // Rehash at half full so probe chains stay short
+            long[] oldKeys = slotKeys;
+            int[] oldRows = slotRows;
+            slotKeys = emptySlots(oldKeys.length * 2);
+            slotRows = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != -1) {
+                    insert(oldKeys[i], oldRows[i]);
+                }
+            }
+        }
+        insert(packed, row);
+    }
+
+    private void insert(long packed, int row) {
+        int mask = slotKeys.length - 1;
+        int slot = hash(packed) & mask;
+        while (slotKeys[slot] != -1) {
+            slot = (slot + 1) & mask;
+        }
+        slotKeys[slot] = packed;
+        slotRows[slot] = row;
+    }
+
+    private static int hash(long packed) {
+        long h = packed * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    private static long[] emptySlots(int size) {
+        long[] keys = new long[size];
+        Arrays.fill(keys, -1);
+        return keys;
+    }
+}
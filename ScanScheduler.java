@@ -0,0 +1,234 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of scan jobs run several at a time over one ProbeBudget. Jobs wait
+ * in priority order (then submission order) for one of maxRunning slots;
+ * an URGENT job never waits for a slot, and once running it takes budget
+ * ahead of everything below it, so a single-host check started during a
+ * background /16 sweep gets its answers in roughly its own scan time.
+ *
+ * Each Job has its own ScanEngine, ScanProgress, open-port list and
+ * cancel. Nothing here touches Swing; the listener passed to submit() hears
+ * the job's events on the engine thread, as with a bare ScanEngine.
+ */
+class ScanScheduler {
+    enum Priority {
+        URGENT("Urgent"),
+        NORMAL("Normal"),
+        BACKGROUND("Background");
+
+        private final String label;
+
+        Priority(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    enum State { QUEUED, RUNNING, DONE, STOPPED }
+
+    private final ProbeBudget budget;
+    private final int maxRunning;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    // Guarded by this
+    private final List<Job> queued = new ArrayList<>();
+    private final List<Job> jobs = new ArrayList<>();
+    private int running;
+
+    final class Job {
+        final int id;
+        final String name;
+        final Priority priority;
+        final ScanConfig config;
+        private final ScanListener listener;
+        private final ScanProgress progress = new ScanProgress();
+        private final ConcurrentLinkedQueue<Long> openPorts = new ConcurrentLinkedQueue<>();
+        private volatile State state = State.QUEUED;
+        private volatile ScanEngine engine;
+        private volatile boolean cancelled;
+        private volatile long startedNanos, finishedNanos;
+
+        private Job(String name, Priority priority, ScanConfig config, ScanListener listener) {
+            this.id = nextId.getAndIncrement();
+            this.name = name;
+            this.priority = priority;
+            this.config = config;
+            this.listener = listener;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        ScanProgress getProgress() {
+            return progress;
+        }
+
+        // Packed (ip, port) of every open port so far, in the order found
+        List<Long> getOpenPorts() {
+            return new ArrayList<>(openPorts);
+        }
+
+        // Probes in the job; 0 until it starts
+        long getTotalProbes() {
+            ScanEngine e = engine;
+            return e != null ? e.getTotalProbes() : 0;
+        }
+
+        int getInFlight() {
+            ScanEngine e = engine;
+            return e != null ? e.getInFlight() : 0;
+        }
+
+        long getElapsedMillis() {
+            long start = startedNanos;
+            if (start == 0) {
+                return 0;
+            }
+            long end = finishedNanos;
+            return ((end != 0 ? end : System.nanoTime()) - start) / 1_000_000;
+        }
+
+        // Drops a queued job, or stops a running one (its open ports so far are kept)
+        void cancel() {
+            cancelled = true;
+            ScanEngine e;
+            synchronized (ScanScheduler.this) {
+                if (state == State.QUEUED) {
+                    queued.remove(this);
+                    state = State.STOPPED;
+                    return;
+                }
+                e = engine;
+            }
+            if (e != null) {
+                e.cancel();
+            }
+        }
+
+        private void start() {
+            ScanEngine e = new ScanEngine(config, new ScanListener() {
+                @Override
+                public void probeCompleted(int ip, int port, ProbeOutcome outcome) {
+                    // The engine reports through the timed overload below
+                }
+
+                @Override
+                public void probeCompleted(int ip, int port, ProbeOutcome outcome, long elapsedNanos) {
+                    if (outcome == ProbeOutcome.OPEN) {
+                        openPorts.offer(ProbeSource.pack(ip, port));
+                    }
+                    progress.record(outcome, elapsedNanos);
+                    if (listener != null) {
+                        listener.probeCompleted(ip, port, outcome, elapsedNanos);
+                    }
+                }
+
+                @Override
+                public void serviceIdentified(int ip, int port, ServiceSignatures.Match match) {
+                    if (listener != null) {
+                        listener.serviceIdentified(ip, port, match);
+                    }
+                }
+
+                @Override
+                public void tlsInspected(int ip, int port, TlsInspector.Result result) {
+                    if (listener != null) {
+                        listener.tlsInspected(ip, port, result);
+                    }
+                }
+
+                @Override
+                public void discoveryCompleted(int[] liveHosts, long totalHosts, long elapsedMillis) {
+                    if (listener != null) {
+                        listener.discoveryCompleted(liveHosts, totalHosts, elapsedMillis);
+                    }
+                }
+
+                @Override
+                public void scanFinished(boolean stopped) {
+                    finishedNanos = System.nanoTime();
+                    state = stopped || cancelled ? State.STOPPED : State.DONE;
+                    if (listener != null) {
+                        listener.scanFinished(stopped);
+                    }
+                    finished();
+                }
+            });
+            e.setBudget(budget, priority);
+            engine = e;
+            startedNanos = System.nanoTime();
+            state = State.RUNNING;
+            e.start();
+        }
+    }
+
+    ScanScheduler(int probeBudget, int maxRunning) {
+        if (maxRunning < 1) {
+            throw new IllegalArgumentException("At least one job must be able to run");
+        }
+        this.budget = new ProbeBudget(probeBudget);
+        this.maxRunning = maxRunning;
+    }
+
+    ProbeBudget getBudget() {
+        return budget;
+    }
+
+    // config is used as given, so pass a copy if the caller keeps changing it
+    synchronized Job submit(String name, Priority priority, ScanConfig config, ScanListener listener) {
+        if (config.getCheckpointFile() != null) {
+            // Jobs come and go with the queue; a checkpoint would belong to nobody
+            throw new IllegalArgumentException("Queued scans can't be checkpointed");
+        }
+        Job job = new Job(name, priority, config, listener);
+        jobs.add(job);
+        int at = 0;
+        while (at < queued.size() && queued.get(at).priority.compareTo(priority) <= 0) {
+            at++;
+        }
+        queued.add(at, job);
+        startQueued();
+        return job;
+    }
+
+    // Every job submitted, oldest first; finished ones stay until cleared
+    synchronized List<Job> getJobs() {
+        return new ArrayList<>(jobs);
+    }
+
+    synchronized void clearFinished() {
+        jobs.removeIf(job -> job.state == State.DONE || job.state == State.STOPPED);
+    }
+
+    synchronized int getRunningCount() {
+        return running;
+    }
+
+    void cancelAll() {
+        for (Job job : getJobs()) {
+            job.cancel();
+        }
+    }
+
+    private synchronized void finished() {
+        running--;
+        startQueued();
+    }
+
+    private void startQueued() {
+        while (!queued.isEmpty()
+                && (running < maxRunning || queued.get(0).priority == Priority.URGENT)) {
+            Job job = queued.remove(0);
+            running++;
+            job.start();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Worker process for distributed scans (see ScanCoordinator for the
+ * protocol). Connects to a coordinator, runs each shard it is handed on a
+ * local ScanEngine and streams the outcomes back in batches. Every worker
+ * JVM brings its own file descriptor and ephemeral port budget, which is
+ * the point of running several.
+ *
+ *   java ScanWorker --coordinator 127.0.0.1:7070
+ *
+ * Nothing is written to stdout; problems go to stderr.
+ */
+class ScanWorker {
+    private static final int BATCH = 4096;
+    private static final int FLUSH_MILLIS = 100;
+    private static final int CONNECT_ATTEMPTS = 20;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+
+    // Outcomes waiting to be sent, guarded by this
+    private final int[] indexes = new int[BATCH];
+    private final byte[] outcomes = new byte[BATCH];
+    private final int[] micros = new int[BATCH];
+    private int batched;
+    private long lastSentNanos = System.nanoTime();
+
+    // The shard being scanned; replaced only between engines
+    private volatile ScanEngine engine;
+    private volatile int shardId;
+    private volatile Map<Integer, Integer> hostIndex;
+    private final int[] portIndex = new int[65536];
+    private volatile int portCount;
+
+    private ScanWorker(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public static void main(String[] args) {
+        String coordinator = null;
+        String name = "worker";
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-c": case "--coordinator": coordinator = ScanCli.value(args, ++i, args[i - 1]); break;
+                    case "--name": name = ScanCli.value(args, ++i, args[i - 1]); break;
+                    default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (coordinator == null || coordinator.lastIndexOf(':') < 0) {
+                throw new IllegalArgumentException("Usage: java ScanWorker --coordinator HOST:PORT [--name NAME]");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+
+        int colon = coordinator.lastIndexOf(':');
+        InetSocketAddress address;
+        try {
+            address = new InetSocketAddress(coordinator.substring(0, colon),
+                    Integer.parseInt(coordinator.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid coordinator address: " + coordinator);
+            System.exit(2);
+            return;
+        }
+        try (Socket socket = connect(address)) {
+            new ScanWorker(socket).serve(name);
+            System.exit(0);
+        } catch (IOException e) {
+            System.err.println("Worker " + name + ": " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    // The coordinator may still be starting up
+    private static Socket connect(InetSocketAddress address) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, 5000);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw new IOException("Could not reach coordinator at " + address + ": " + e.getMessage());
+                }
+                Thread.sleep(500);
+            }
+        }
+    }
+
+    private void serve(String name) throws IOException, InterruptedException {
+        synchronized (out) {
+            out.writeByte(ScanCoordinator.HELLO);
+            out.writeInt(ScanCoordinator.VERSION);
+            out.writeUTF(name);
+            out.flush();
+        }
+        Thread flusher = new Thread(this::flushLoop, "worker-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                byte type = in.readByte();
+                if (type == ScanCoordinator.SHARD) {
+                    startShard(in);
+                } else if (type == ScanCoordinator.CANCEL) {
+                    int id = in.readInt();
+                    ScanEngine e = engine;
+                    if (e != null && id == shardId) {
+                        e.cancel();
+                    }
+                } else if (type == ScanCoordinator.BYE) {
+                    break;
+                } else {
+                    throw new IOException("Unknown message type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // Coordinator went away; nothing more to do
+        } finally {
+            ScanEngine e = engine;
+            if (e != null) {
+                e.cancel();
+                e.awaitTermination();
+            }
+            flusher.interrupt();
+        }
+    }
+
+    private void startShard(DataInputStream in) throws IOException, InterruptedException {
+        int id = in.readInt();
+        ScanConfig config = new ScanConfig();
+        ScanCoordinator.readSettings(in, config);
+        int[] hosts = new int[in.readInt()];
+        Map<Integer, Integer> index = new HashMap<>(hosts.length * 2);
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = in.readInt();
+            index.putIfAbsent(hosts[i], i);
+        }
+        int[] ports = new int[in.readInt()];
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = in.readChar();
+        }
+        config.setTargets(TargetSpec.of(hosts));
+        config.setPorts(ports);
+
+        // The coordinator only sends the next shard after FINISHED, but be sure
+        ScanEngine previous = engine;
+        if (previous != null) {
+            previous.awaitTermination();
+        }
+        // Only now: the previous engine's late completions still index by its ports
+        for (int i = 0; i < ports.length; i++) {
+            portIndex[ports[i]] = i;
+        }
+        shardId = id;
+        hostIndex = index;
+        portCount = ports.length;
+        ScanEngine e = new ScanEngine(config, new ScanListener() {
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome) {
+                // The engine reports through the timed overload below
+            }
+
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome, long elapsedNanos) {
+                add(indexOf(ip, port), outcome, elapsedNanos);
+            }
+
+            @Override
+            public void serviceIdentified(int ip, int port, ServiceSignatures.Match match) {
+                sendService(id, indexOf(ip, port), match);
+            }
+
+            @Override
+            public void scanFinished(boolean cancelled) {
+                flush();
+                sendFinished(id, !cancelled);
+            }
+        });
+        engine = e;
+        e.start();
+    }
+
+    private int indexOf(int ip, int port) {
+        return hostIndex.get(ip) * portCount + portIndex[port];
+    }
+
+    private synchronized void add(int index, ProbeOutcome outcome, long elapsedNanos) {
+        indexes[batched] = index;
+        outcomes[batched] = (byte) outcome.ordinal();
+        micros[batched] = (int) Math.min(Integer.MAX_VALUE, elapsedNanos / 1000);
+        if (++batched == BATCH) {
+            flush();
+        }
+    }
+
+    private synchronized void flush() {
+        if (batched == 0) {
+            return;
+        }
+        try {
+            synchronized (out) {
+                out.writeByte(ScanCoordinator.RESULTS);
+                out.writeInt(shardId);
+                out.writeInt(batched);
+                for (int i = 0; i < batched; i++) {
+                    out.writeInt(indexes[i]);
+                    out.writeByte(outcomes[i]);
+                    out.writeInt(micros[i]);
+                }
+                out.flush();
+            }
+            lastSentNanos = System.nanoTime();
+        } catch (IOException e) {
+            lostCoordinator();
+        }
+        batched = 0;
+    }
+
+    private void sendService(int id, int index, ServiceSignatures.Match match) {
+        try {
+            synchronized (out) {
+                out.writeByte(ScanCoordinator.SERVICE);
+                out.writeInt(id);
+                out.writeInt(index);
+                out.writeUTF(match.service != null ? match.service : "");
+                out.writeUTF(match.version != null ? match.version : "");
+                out.writeUTF(match.banner);
+                out.flush();
+            }
+        } catch (IOException e) {
+            lostCoordinator();
+        }
+    }
+
+    private void sendFinished(int id, boolean complete) {
+        try {
+            synchronized (out) {
+                out.writeByte(ScanCoordinator.FINISHED);
+                out.writeInt(id);
+                out.writeBoolean(complete);
+                out.flush();
+            }
+        } catch (IOException e) {
+            lostCoordinator();
+        }
+    }
+
+    // Sends batches that have been waiting a while, and a heartbeat when there was nothing to send
+    private void flushLoop() {
+        try {
+            while (true) {
+                Thread.sleep(FLUSH_MILLIS);
+                synchronized (this) {
+                    flush();
+                    if (System.nanoTime() - lastSentNanos >= ScanCoordinator.HEARTBEAT_MILLIS * 1_000_000L) {
+                        synchronized (out) {
+                            out.writeByte(ScanCoordinator.HEARTBEAT);
+                            out.flush();
+                        }
+                        lastSentNanos = System.nanoTime();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } catch (IOException e) {
+            lostCoordinator();
+        }
+    }
+
+    // Without a coordinator the results have nowhere to go
+    private void lostCoordinator() {
+        ScanEngine e = engine;
+        if (e != null) {
+            e.cancel();
+        }
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Table of response signatures used to name the service behind an open
+ * port from what it actually says, not from the port number. Patterns are
+ * compiled once and matched at the start of the response (decoded as
+ * ISO-8859-1 so binary protocols can be matched byte for byte); the first
+ * capture group, when present, is the product/version string.
+ *
+ * Order matters: more specific signatures come before generic ones.
+ */
+final class ServiceSignatures {
+
+    // What a response was identified as; service is null when nothing matched
+    static final class Match {
+        final String service;
+        final String version;
+        final String banner;
+
+        Match(String service, String version, String banner) {
+            this.service = service;
+            this.version = version;
+            this.banner = banner;
+        }
+
+        boolean isIdentified() {
+            return service != null;
+        }
+
+        @Override
+        public String toString() {
+            if (service == null) {
+                return "unknown";
+            }
+            return version.isEmpty() ? service : service + " (" + version + ")";
+        }
+    }
+
+    private static final String[][] SIGNATURES = {
+            {"ssh", "SSH-[\\d.]+-([^\\s]+)"},
+            {"smtp", "220[ -]([^\\r\\n]*E?SMTP[^\\r\\n]*)"},
+            {"ftp", "220[ -]([^\\r\\n]*(?i:ftp)[^\\r\\n]*)"},
+            {"pop3", "\\+OK ([^\\r\\n]*)"},
+            {"imap", "\\* OK ([^\\r\\n]*)"},
+            {"http", "HTTP/1\\.[01] \\d{3}.*?\\r\\nServer: ([^\\r\\n]+)"},
+            {"http", "HTTP/1\\.[01] \\d{3}"},
+            {"rtsp", "RTSP/1\\.0 \\d{3}"},
+            {"ssl/tls", "\\x15\\x03[\\x00-\\x04]\\x00\\x02\\x02"},
+            {"mysql", ".{3}\\x00\\x0a([\\d.]+[^\\x00]*)\\x00"},
+            {"mysql", ".{3}\\x00\\xff.{2}Host .{0,80}is not allowed to connect"},
+            {"postgresql", "E\\x00\\x00\\x00.S(?:FATAL|ERROR)"},
+            {"redis", "-ERR (?:wrong number of arguments for 'get'|unknown command)"},
+            {"memcached", "ERROR\\r\\n"},
+            {"vnc", "RFB (\\d{3}\\.\\d{3})\\n"},
+            {"telnet", "\\xff[\\xfb-\\xfe]"},
+            {"irc", ":[\\w.\\-]+ NOTICE "},
+            {"ftp", "220[ -]([^\\r\\n]*)"},
+    };
+
+    private static final String[] SERVICES = new String[SIGNATURES.length];
+    private static final Pattern[] PATTERNS = new Pattern[SIGNATURES.length];
+
+    static {
+        for (int i = 0; i < SIGNATURES.length; i++) {
+            SERVICES[i] = SIGNATURES[i][0];
+            PATTERNS[i] = Pattern.compile(SIGNATURES[i][1], Pattern.DOTALL);
+        }
+    }
+
+    private ServiceSignatures() {
+    }
+
+    static Match match(byte[] response, int length) {
+        String text = new String(response, 0, length, StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < PATTERNS.length; i++) {
+            Matcher m = PATTERNS[i].matcher(text);
+            if (m.lookingAt()) {
+                String version = m.groupCount() > 0 && m.group(1) != null ? printable(m.group(1)) : "";
+                return new Match(SERVICES[i], version, printable(text));
+            }
+        }
+        return new Match(null, "", printable(text));
+    }
+
+    // First line of the response with control bytes dropped, for display
+    private static String printable(String text) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < text.length() && sb.length() < 80; i++) {
+            char c = text.charAt(i);
+            if (c == '\r' || c == '\n') {
+                if (sb.length() > 0) {
+                    break;
+                }
+            } else if (c >= 0x20 && c < 0x7f) {
+                sb.append(c);
+            }
+        }
+        return sb.toString().trim();
+    }
+}
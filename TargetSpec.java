@@ -0,0 +1,542 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Parsed scan target specification. Accepts, separated by commas or
+ * whitespace:
+ *
+ *   192.168.1.7             single address (or a hostname, resolved once)
+ *   10.0.0.0/22             CIDR block, /8 to /32
+ *   192.168.1.1-100         octet ranges, in any octet: 10.0-3.1-254.1
+ *   10.0.0.250-10.0.1.5     contiguous range between two addresses
+ *   @targets.txt            file with one spec per line, '#' starts a comment
+ *
+ * Specs are kept as compact blocks and addresses are produced lazily as
+ * packed ints, so a /8 costs a few bytes and no per-address objects.
+ * Overlapping specs ("10.0.0.0/24,10.0.0.5") yield each address once, in
+ * the position of its first block.
+ */
+class TargetSpec {
+    private static final byte KIND_RANGE = 0;    // every address from lo to hi
+    private static final byte KIND_OCTETS = 1;   // cartesian product of per-octet ranges
+
+    // Parallel block arrays; for KIND_OCTETS, lo/hi hold the four octet bounds packed
+    private int[] lo = new int[4];
+    private int[] hi = new int[4];
+    private byte[] kind = new byte[4];
+    private int blocks;
+    private long size;
+    // Per block, the stretches of its address span that earlier blocks already
+    // cover: sorted, merged [lo, hi] pairs as unsigned values, or null if none
+    private long[][] skips;
+
+    // Lazy walk over the distinct addresses of a spec. Every block runs in
+    // ascending address order, so its skips are passed with one forward pointer.
+    static final class Iterator {
+        private final TargetSpec spec;
+        private int block = -1;
+        private boolean blockLeft;
+        private long next;       // next address of a range block, as unsigned
+        private long end;
+        private final int[] octet = new int[4];
+        private long[] skip;
+        private int skipAt;
+        private int upcoming;
+        private boolean more;
+
+        private Iterator(TargetSpec spec) {
+            this.spec = spec;
+            findNext();
+        }
+
+        boolean hasNext() {
+            return more;
+        }
+
+        int next() {
+            if (!more) {
+                throw new java.util.NoSuchElementException();
+            }
+            int ip = upcoming;
+            findNext();
+            return ip;
+        }
+
+        private void findNext() {
+            while (true) {
+                while (!blockLeft) {
+                    if (++block >= spec.blocks) {
+                        more = false;
+                        return;
+                    }
+                    startBlock();
+                }
+                long ip = spec.kind[block] == KIND_RANGE ? stepRange() : stepOctets();
+                if (ip >= 0) {
+                    upcoming = (int) ip;
+                    more = true;
+                    return;
+                }
+            }
+        }
+
+        private void startBlock() {
+            blockLeft = true;
+            skip = spec.skips[block];
+            skipAt = 0;
+            if (spec.kind[block] == KIND_RANGE) {
+                next = spec.lo[block] & 0xffffffffL;
+                end = spec.hi[block] & 0xffffffffL;
+            } else {
+                for (int i = 0; i < 4; i++) {
+                    octet[i] = octetOf(spec.lo[block], i);
+                }
+            }
+        }
+
+        // Next address of a range block, jumping over skipped stretches; -1 if one runs to the end
+        private long stepRange() {
+            if (skip != null && skipAt < skip.length && skip[skipAt] <= next) {
+                next = skip[skipAt + 1] + 1;
+                skipAt += 2;
+                if (next > end) {
+                    blockLeft = false;
+                    return -1;
+                }
+            }
+            long ip = next++;
+            if (next > end) {
+                blockLeft = false;
+            }
+            return ip;
+        }
+
+        // Next address of an octet block, or -1 if it falls in a skipped stretch
+        private long stepOctets() {
+            long ip = ((long) octet[0] << 24) | (octet[1] << 16) | (octet[2] << 8) | octet[3];
+            advanceOctets();
+            if (skip != null) {
+                while (skipAt < skip.length && skip[skipAt + 1] < ip) {
+                    skipAt += 2;
+                }
+                if (skipAt < skip.length && skip[skipAt] <= ip) {
+                    return -1;
+                }
+            }
+            return ip;
+        }
+
+        // Odometer increment over the four octet ranges, last octet fastest
+        private void advanceOctets() {
+            for (int i = 3; i >= 0; i--) {
+                if (octet[i] < octetOf(spec.hi[block], i)) {
+                    octet[i]++;
+                    return;
+                }
+                octet[i] = octetOf(spec.lo[block], i);
+            }
+            blockLeft = false;
+        }
+    }
+
+    static TargetSpec parse(String text) {
+        TargetSpec spec = new TargetSpec();
+        spec.addAll(text);
+        if (spec.blocks == 0) {
+            throw new IllegalArgumentException("No targets given");
+        }
+        return spec;
+    }
+
+    // Packs an explicit address list, merging consecutive addresses into ranges
+    static TargetSpec of(int[] addresses) {
+        TargetSpec spec = new TargetSpec();
+        int i = 0;
+        while (i < addresses.length) {
+            int j = i;
+            while (j + 1 < addresses.length && addresses[j + 1] == addresses[j] + 1 && addresses[j] != -1) {
+                j++;
+            }
+            spec.addRange(addresses[i], addresses[j]);
+            i = j + 1;
+        }
+        return spec;
+    }
+
+    // Number of distinct addresses
+    long size() {
+        index();
+        return size;
+    }
+
+    // Membership test against the blocks, without walking any addresses
+    boolean contains(int ip) {
+        for (int i = 0; i < blocks; i++) {
+            if (blockContains(i, ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Block-level serialization, used by scan checkpoints
+    void writeTo(DataOutputStream out) throws IOException {
+        index();
+        out.writeInt(blocks);
+        out.writeLong(size);
+        for (int i = 0; i < blocks; i++) {
+            out.writeByte(kind[i]);
+            out.writeInt(lo[i]);
+            out.writeInt(hi[i]);
+        }
+    }
+
+    static TargetSpec readFrom(DataInputStream in) throws IOException {
+        TargetSpec spec = new TargetSpec();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Corrupt target spec");
+        }
+        in.readLong(); // distinct size, recomputed from the blocks
+        spec.lo = new int[Math.max(4, count)];
+        spec.hi = new int[spec.lo.length];
+        spec.kind = new byte[spec.lo.length];
+        for (int i = 0; i < count; i++) {
+            spec.kind[i] = in.readByte();
+            spec.lo[i] = in.readInt();
+            spec.hi[i] = in.readInt();
+            spec.blocks = i + 1;
+            spec.size += spec.blockSize(i);
+        }
+        return spec;
+    }
+
+    Iterator iterator() {
+        index();
+        return new Iterator(this);
+    }
+
+    // Works out, per block, what earlier blocks already cover and takes it out of
+    // size. A sweep in address order finds the blocks whose bounds overlap; the
+    // covered stretches are then plain interval arithmetic, never address by address.
+    private void index() {
+        if (skips != null) {
+            return;
+        }
+        skips = new long[blocks][];
+        long[] order = new long[blocks];
+        for (int i = 0; i < blocks; i++) {
+            // Flipping the sign bit makes the signed sort follow unsigned address order
+            order[i] = ((long) (lo[i] ^ Integer.MIN_VALUE) << 32) | i;
+        }
+        Arrays.sort(order);
+        Stretches[] covered = new Stretches[blocks];
+        for (int a = 0; a < blocks; a++) {
+            int i = (int) order[a];
+            for (int b = a + 1; b < blocks && Integer.compareUnsigned(lo[(int) order[b]], hi[i]) <= 0; b++) {
+                int j = (int) order[b];
+                int first = Math.min(i, j);
+                int later = Math.max(i, j);
+                if (covered[later] == null) {
+                    covered[later] = new Stretches();
+                }
+                addStretches(first, lo[later] & 0xffffffffL, hi[later] & 0xffffffffL, covered[later]);
+            }
+        }
+        for (int i = 0; i < blocks; i++) {
+            if (covered[i] != null) {
+                long[] merged = covered[i].merged();
+                if (merged.length > 0) {
+                    skips[i] = merged;
+                    for (int k = 0; k < merged.length; k += 2) {
+                        size -= countWithin(i, merged[k], merged[k + 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    // Growable list of [lo, hi] address pairs
+    private static final class Stretches {
+        long[] pairs = new long[8];
+        int count;
+
+        void add(long from, long to) {
+            if (count == pairs.length) {
+                pairs = Arrays.copyOf(pairs, count * 2);
+            }
+            pairs[count++] = from;
+            pairs[count++] = to;
+        }
+
+        // Sorted by start, overlapping and touching pairs joined
+        long[] merged() {
+            int n = count / 2;
+            long[] byStart = new long[n];
+            for (int k = 0; k < n; k++) {
+                byStart[k] = (pairs[2 * k] << 31) | k;
+            }
+            Arrays.sort(byStart);
+            long[] out = new long[count];
+            int m = 0;
+            for (long key : byStart) {
+                int k = (int) (key & Integer.MAX_VALUE);
+                long from = pairs[2 * k], to = pairs[2 * k + 1];
+                if (m > 0 && from <= out[m - 1] + 1) {
+                    out[m - 1] = Math.max(out[m - 1], to);
+                } else {
+                    out[m++] = from;
+                    out[m++] = to;
+                }
+            }
+            return Arrays.copyOf(out, m);
+        }
+    }
+
+    // Adds the runs of consecutive addresses of block that fall within [from, to]
+    private void addStretches(int block, long from, long to, Stretches out) {
+        if (kind[block] == KIND_RANGE) {
+            long a = Math.max(from, lo[block] & 0xffffffffL);
+            long b = Math.min(to, hi[block] & 0xffffffffL);
+            if (a <= b) {
+                out.add(a, b);
+            }
+            return;
+        }
+        // Octets after runOctet span 0-255, so each value of the octets up to it is one run
+        int runOctet = 3;
+        while (runOctet > 0 && octetOf(lo[block], runOctet) == 0 && octetOf(hi[block], runOctet) == 255) {
+            runOctet--;
+        }
+        addRuns(block, 0, runOctet, 0, from, to, out);
+    }
+
+    private void addRuns(int block, int depth, int runOctet, long prefix, long from, long to, Stretches out) {
+        int shift = 24 - 8 * depth;
+        long below = (1L << shift) - 1;
+        if (depth == runOctet) {
+            long a = Math.max(from, prefix | ((long) octetOf(lo[block], depth) << shift));
+            long b = Math.min(to, prefix | ((long) octetOf(hi[block], depth) << shift) | below);
+            if (a <= b) {
+                out.add(a, b);
+            }
+            return;
+        }
+        for (int o = octetOf(lo[block], depth); o <= octetOf(hi[block], depth); o++) {
+            long p = prefix | ((long) o << shift);
+            // Skip whole subtrees that miss [from, to]
+            if ((p | (hi[block] & below)) < from || (p | (lo[block] & below)) > to) {
+                continue;
+            }
+            addRuns(block, depth + 1, runOctet, p, from, to, out);
+        }
+    }
+
+    // Addresses of block within [from, to]
+    private long countWithin(int block, long from, long to) {
+        if (kind[block] == KIND_RANGE) {
+            return Math.max(0, Math.min(to, hi[block] & 0xffffffffL) - Math.max(from, lo[block] & 0xffffffffL) + 1);
+        }
+        return octetsUpTo(block, to) - octetsUpTo(block, from - 1);
+    }
+
+    // Addresses of an octet block that are <= limit, counted digit by digit
+    private long octetsUpTo(int block, long limit) {
+        if (limit < 0) {
+            return 0;
+        }
+        long count = 0;
+        for (int i = 0; i < 4; i++) {
+            int o = (int) (limit >>> (24 - 8 * i)) & 0xff;
+            int from = octetOf(lo[block], i);
+            int to = octetOf(hi[block], i);
+            long rest = 1;
+            for (int j = i + 1; j < 4; j++) {
+                rest *= octetOf(hi[block], j) - octetOf(lo[block], j) + 1;
+            }
+            if (o < from) {
+                return count;
+            }
+            if (o > to) {
+                return count + (to - from + 1) * rest;
+            }
+            count += (o - from) * rest;
+        }
+        return count + 1;
+    }
+
+    private boolean blockContains(int block, int ip) {
+        if (kind[block] == KIND_RANGE) {
+            long address = ip & 0xffffffffL;
+            return address >= (lo[block] & 0xffffffffL) && address <= (hi[block] & 0xffffffffL);
+        }
+        return octetsWithin(ip, lo[block], hi[block]);
+    }
+
+    private long blockSize(int block) {
+        if (kind[block] == KIND_RANGE) {
+            return (hi[block] & 0xffffffffL) - (lo[block] & 0xffffffffL) + 1;
+        }
+        long count = 1;
+        for (int i = 0; i < 4; i++) {
+            count *= octetOf(hi[block], i) - octetOf(lo[block], i) + 1;
+        }
+        return count;
+    }
+
+    private void addAll(String text) {
+        for (String token : text.split("[,\\s]+")) {
+            if (!token.isEmpty()) {
+                addToken(token);
+            }
+        }
+    }
+
+    private void addToken(String token) {
+        if (token.startsWith("@")) {
+            addFile(token.substring(1));
+        } else if (token.contains("/")) {
+            addCidr(token);
+        } else if (isAddressRange(token)) {
+            // Two full addresses: 10.0.0.250-10.0.1.5
+            int dash = token.indexOf('-');
+            int from = parseAddress(token.substring(0, dash));
+            int to = parseAddress(token.substring(dash + 1));
+            if (Integer.compareUnsigned(from, to) > 0) {
+                throw new IllegalArgumentException("Range runs backwards: " + token);
+            }
+            addRange(from, to);
+        } else if (token.matches("[0-9.\\-]+")) {
+            addOctets(token);
+        } else {
+            try {
+                int ip = Ipv4.resolve(token);
+                addRange(ip, ip);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Unknown host: " + token);
+            }
+        }
+    }
+
+    private void addFile(String path) {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int hash = line.indexOf('#');
+                if (hash >= 0) {
+                    line = line.substring(0, hash);
+                }
+                addAll(line.trim());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read target file " + path + ": " + e.getMessage());
+        }
+    }
+
+    private void addCidr(String token) {
+        String[] parts = token.split("/");
+        int prefix;
+        try {
+            prefix = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid CIDR block: " + token);
+        }
+        if (parts.length != 2 || prefix < 8 || prefix > 32) {
+            throw new IllegalArgumentException("CIDR prefix must be /8 to /32: " + token);
+        }
+        int mask = -1 << (32 - prefix);
+        int network = parseAddress(parts[0]) & mask;
+        addRange(network, network | ~mask);
+    }
+
+    private void addOctets(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid address: " + token);
+        }
+        int packedLo = 0, packedHi = 0;
+        for (int i = 0; i < 4; i++) {
+            String[] bounds = parts[i].split("-", -1);
+            if (bounds.length > 2) {
+                throw new IllegalArgumentException("Invalid octet range: " + parts[i]);
+            }
+            int from = parseOctet(bounds[0], token);
+            int to = bounds.length == 2 ? parseOctet(bounds[1], token) : from;
+            if (from > to) {
+                throw new IllegalArgumentException("Octet range runs backwards: " + parts[i]);
+            }
+            packedLo |= from << (24 - 8 * i);
+            packedHi |= to << (24 - 8 * i);
+        }
+        addBlock(KIND_OCTETS, packedLo, packedHi);
+    }
+
+    private void addRange(int from, int to) {
+        addBlock(KIND_RANGE, from, to);
+    }
+
+    private void addBlock(byte blockKind, int from, int to) {
+        if (blocks == kind.length) {
+            lo = Arrays.copyOf(lo, blocks * 2);
+            hi = Arrays.copyOf(hi, blocks * 2);
+            kind = Arrays.copyOf(kind, blocks * 2);
+        }
+        lo[blocks] = from;
+        hi[blocks] = to;
+        kind[blocks] = blockKind;
+        size += blockSize(blocks);
+        blocks++;
+    }
+
+    private static boolean isAddressRange(String token) {
+        String[] sides = token.split("-", -1);
+        return sides.length == 2 && sides[0].split("\\.", -1).length == 4
+                && sides[1].split("\\.", -1).length == 4;
+    }
+
+    // One dotted quad, e.g. for looking a single host up
+    static int parseAddress(String text) {
+        String[] parts = text.split("\\.");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid address: " + text);
+        }
+        int ip = 0;
+        for (String part : parts) {
+            ip = (ip << 8) | parseOctet(part, text);
+        }
+        return ip;
+    }
+
+    private static int parseOctet(String text, String token) {
+        try {
+            int value = Integer.parseInt(text);
+            if (value >= 0 && value <= 255) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Invalid octet '" + text + "' in " + token);
+    }
+
+    private static boolean octetsWithin(int ip, int packedLo, int packedHi) {
+        for (int i = 0; i < 4; i++) {
+            int octet = octetOf(ip, i);
+            if (octet < octetOf(packedLo, i) || octet > octetOf(packedHi, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int octetOf(int packed, int index) {
+        return (packed >>> (24 - 8 * index)) & 0xff;
+    }
+}
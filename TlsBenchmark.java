@@ -0,0 +1,357 @@
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the TLS inspection stage against self-signed TLS servers on
+ * loopback and measures how fast it gets through them. Certificates are
+ * made with the JDK's keytool at startup. Every simulated host serves
+ * three ports:
+ *
+ *   good      TLS 1.3, RSA 2048, valid for a year
+ *   expired   same setup, certificate expired a year ago
+ *   weak      TLS 1.2 only, RSA key exchange with a CBC cipher, RSA 1024
+ *             key signed with SHA1withRSA
+ *
+ * The same network is scanned twice with service detection on. The first
+ * pass does full handshakes. The second pass should mostly resume sessions
+ * from the shared client cache. Each pass checks every endpoint's findings
+ * against what its port was set up with and reports handshakes/s and
+ * handshake latency. The exit status is 1 if anything was missed.
+ *
+ *   java TlsBenchmark --hosts 200
+ */
+class TlsBenchmark {
+    private static final String USAGE = String.join("\n",
+            "Usage: java TlsBenchmark [options]",
+            "  --hosts N          simulated hosts, 127.0.30.1 upwards (default 100)",
+            "  --base-port N      first of the three TLS ports (default 24430)",
+            "  --timeout MS       handshake timeout (default 5000)",
+            "  --max-in-flight N  connects in flight (default 1024)",
+            "  --warmup N         unreported passes first, sessions forgotten after (default 1)");
+
+    private static final int FIRST_HOST = (127 << 24) | (30 << 8) | 1; // 127.0.30.1
+    private static final String PASSWORD = "benchmark";
+
+    enum Kind { GOOD, EXPIRED, WEAK }
+
+    /**
+     * The TLS servers: one acceptor selector for every listening socket, and a
+     * thread per accepted connection running the server side of the handshake
+     * on a blocking SSLSocket layered over the channel.
+     */
+    static final class TlsServers implements AutoCloseable {
+        private final Selector selector = Selector.open();
+        private final List<ServerSocketChannel> listeners = new ArrayList<>();
+        // Unbounded: a blocked server thread waits for a ClientHello the client may not send until
+        // it gets round to that connection, so a fixed pool could stall on connections queued client-side
+        private final ExecutorService handshakes = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "tls-server");
+            t.setDaemon(true);
+            return t;
+        });
+        private final SSLContext[] contexts = new SSLContext[Kind.values().length];
+        private final Thread acceptor;
+        private volatile boolean closed;
+        final int hosts;
+        final int basePort;
+
+        TlsServers(int hosts, int basePort, File dir) throws IOException, GeneralSecurityException,
+                InterruptedException {
+            this.hosts = hosts;
+            this.basePort = basePort;
+            contexts[Kind.GOOD.ordinal()] = serverContext(keystore(dir, "good", 2048, "SHA256withRSA", null, 365));
+            contexts[Kind.EXPIRED.ordinal()] = serverContext(keystore(dir, "expired", 2048, "SHA256withRSA",
+                    "-400d", 30));
+            contexts[Kind.WEAK.ordinal()] = serverContext(keystore(dir, "weak", 1024, "SHA1withRSA", null, 365));
+            try {
+                for (int h = 0; h < hosts; h++) {
+                    for (Kind kind : Kind.values()) {
+                        ServerSocketChannel server = ServerSocketChannel.open();
+                        listeners.add(server);
+                        server.bind(Ipv4.socketAddress(FIRST_HOST + h, basePort + kind.ordinal()), 1024);
+                        server.configureBlocking(false);
+                        server.register(selector, SelectionKey.OP_ACCEPT, kind);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            acceptor = new Thread(this::acceptLoop, "tls-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void acceptLoop() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        SocketChannel accepted;
+                        while ((accepted = ((ServerSocketChannel) key.channel()).accept()) != null) {
+                            Kind kind = (Kind) key.attachment();
+                            SocketChannel channel = accepted;
+                            handshakes.execute(() -> serve(channel, kind));
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!closed) {
+                    System.err.println("TLS acceptor failed: " + e);
+                }
+            }
+        }
+
+        // Handshake and hang up; a TLS 1.3 session ticket has already gone out by then
+        private void serve(SocketChannel channel, Kind kind) {
+            try (SSLSocket ssl = (SSLSocket) contexts[kind.ordinal()].getSocketFactory()
+                    .createSocket(channel.socket(), null, channel.socket().getPort(), true)) {
+                ssl.setUseClientMode(false);
+                if (kind == Kind.WEAK) {
+                    ssl.setEnabledProtocols(new String[]{"TLSv1.2"});
+                    ssl.setEnabledCipherSuites(new String[]{"TLS_RSA_WITH_AES_128_CBC_SHA"});
+                }
+                ssl.setSoTimeout(10_000);
+                ssl.startHandshake();
+            } catch (IOException e) {
+                // The client gives up on its own schedule; nothing to report from this side
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing useful to do with a failed close
+            }
+            for (ServerSocketChannel server : listeners) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    // Same
+                }
+            }
+            handshakes.shutdownNow();
+        }
+    }
+
+    // One scan pass over every endpoint
+    static final class Pass {
+        final Map<Long, TlsInspector.Result> results = new ConcurrentHashMap<>();
+        final LatencyHistogram latency = new LatencyHistogram();
+        long elapsedNanos;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    private static int run(String[] args) {
+        int hosts = 100, basePort = 24430, timeout = 5000, maxInFlight = 1024, warmup = 1;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--hosts": hosts = ScanCli.number(args, ++i, arg, 1); break;
+                    case "--base-port": basePort = ScanCli.number(args, ++i, arg, 1); break;
+                    case "--timeout": timeout = ScanCli.number(args, ++i, arg, 1); break;
+                    case "--max-in-flight": maxInFlight = ScanCli.number(args, ++i, arg, 1); break;
+                    case "--warmup": warmup = ScanCli.number(args, ++i, arg, 0); break;
+                    case "-h": case "--help":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (hosts > 254) {
+                throw new IllegalArgumentException("--hosts can be at most 254");
+            }
+            if (basePort + Kind.values().length - 1 > 65535) {
+                throw new IllegalArgumentException("--base-port leaves no room for the three TLS ports");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        File dir = null;
+        try {
+            dir = Files.createTempDirectory("tls-benchmark").toFile();
+            try (TlsServers servers = new TlsServers(hosts, basePort, dir)) {
+                System.out.printf("TLS servers: %d host(s) from %s, ports %d (good), %d (expired), %d (weak)%n",
+                        hosts, Ipv4.toString(FIRST_HOST), basePort, basePort + 1, basePort + 2);
+                for (int i = 0; i < warmup; i++) {
+                    scan(servers, timeout, maxInFlight);
+                }
+                // The measured cold pass has to do full handshakes
+                TlsInspector.forgetSessions();
+                int failures = 0;
+                for (String name : new String[]{"cold", "resumed"}) {
+                    Pass pass = scan(servers, timeout, maxInFlight);
+                    failures += report(name, pass, servers);
+                }
+                return failures == 0 ? 0 : 1;
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Could not set up the TLS servers: " + e.getMessage());
+            System.err.println("(addresses beyond 127.0.0.1 need Linux; elsewhere try --hosts 1)");
+            return 1;
+        } catch (InterruptedException e) {
+            return 1;
+        } finally {
+            if (dir != null) {
+                for (File f : dir.listFiles()) {
+                    f.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    private static Pass scan(TlsServers servers, int timeout, int maxInFlight) throws InterruptedException {
+        int hosts = servers.hosts;
+        int basePort = servers.basePort;
+        ScanConfig config = new ScanConfig();
+        config.setTargets(TargetSpec.parse(Ipv4.toString(FIRST_HOST) + "-" + Ipv4.toString(FIRST_HOST + hosts - 1)));
+        config.setPortRange(basePort, basePort + Kind.values().length - 1);
+        config.setMaxInFlight(maxInFlight);
+        config.setServiceDetection(true);
+        config.setBannerTimeoutMillis(timeout);
+        config.setTlsPorts(PortSet.parse(basePort + "-" + (basePort + Kind.values().length - 1)));
+
+        Pass pass = new Pass();
+        ScanEngine engine = new ScanEngine(config, new ScanListener() {
+            @Override
+            public void probeCompleted(int ip, int port, ProbeOutcome outcome) {
+            }
+
+            @Override
+            public void tlsInspected(int ip, int port, TlsInspector.Result result) {
+                pass.results.put(ProbeSource.pack(ip, port), result);
+                pass.latency.record(TimeUnit.MILLISECONDS.toNanos(result.handshakeMillis));
+            }
+
+            @Override
+            public void scanFinished(boolean cancelled) {
+            }
+        });
+        long start = System.nanoTime();
+        engine.start();
+        engine.awaitTermination();
+        pass.elapsedNanos = System.nanoTime() - start;
+        return pass;
+    }
+
+    // Prints the pass and returns how many endpoints came back wrong or not at all
+    private static int report(String name, Pass pass, TlsServers servers) {
+        int hosts = servers.hosts;
+        int basePort = servers.basePort;
+        int wrong = 0;
+        int resumed = 0;
+        String firstProblem = null;
+        for (int h = 0; h < hosts; h++) {
+            for (Kind kind : Kind.values()) {
+                int ip = FIRST_HOST + h;
+                int port = basePort + kind.ordinal();
+                TlsInspector.Result r = pass.results.get(ProbeSource.pack(ip, port));
+                String problem = r == null ? "no result" : check(kind, r);
+                if (problem != null) {
+                    wrong++;
+                    if (firstProblem == null) {
+                        firstProblem = Ipv4.toString(ip) + ":" + port + " " + problem + (r != null ? " (" + r + ")" : "");
+                    }
+                } else if (r.resumed) {
+                    resumed++;
+                }
+            }
+        }
+        int endpoints = hosts * Kind.values().length;
+        System.out.printf("%-8s %,6d handshakes in %,6.0f ms  %,7.0f/s  p50 %5.1f ms  p99 %6.1f ms  resumed %,d  wrong %,d%n",
+                name, pass.results.size(), pass.elapsedNanos / 1e6, pass.results.size() * 1e9 / pass.elapsedNanos,
+                pass.latency.percentileMillis(50), pass.latency.percentileMillis(99), resumed, wrong);
+        if (firstProblem != null) {
+            System.out.println("  first problem: " + firstProblem);
+        }
+        if (pass.results.size() < endpoints) {
+            System.out.println("  " + (endpoints - pass.results.size()) + " endpoint(s) never reported");
+        }
+        return wrong;
+    }
+
+    // Null when the result shows exactly what the port was set up with
+    private static String check(Kind kind, TlsInspector.Result r) {
+        if (!r.isHandshaken()) {
+            return "handshake failed";
+        }
+        List<String> f = r.findings;
+        switch (kind) {
+            case GOOD:
+                return f.equals(List.of("self-signed")) ? null : "expected only self-signed";
+            case EXPIRED:
+                return f.size() == 2 && f.get(0).startsWith("expired ") && f.contains("self-signed") ? null
+                        : "expected expired and self-signed";
+            default:
+                return r.protocol.equals("TLSv1.2") && f.contains("weak key (RSA 1024)")
+                        && f.contains("weak signature (SHA1withRSA)") && f.contains("no forward secrecy")
+                        && f.contains("CBC cipher") ? null : "expected every weakness the port was set up with";
+        }
+    }
+
+    // A self-signed key pair made by keytool, in a fresh PKCS12 file
+    private static File keystore(File dir, String name, int keySize, String sigAlg, String startDate, int validityDays)
+            throws IOException, InterruptedException {
+        File file = new File(dir, name + ".p12");
+        List<String> command = new ArrayList<>(List.of(
+                new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+                "-genkeypair", "-alias", name, "-keystore", file.getPath(), "-storetype", "PKCS12",
+                "-storepass", PASSWORD, "-keypass", PASSWORD, "-keyalg", "RSA", "-keysize", String.valueOf(keySize),
+                "-sigalg", sigAlg, "-dname", "CN=" + name + ".tls.test", "-validity", String.valueOf(validityDays),
+                "-ext", "san=dns:" + name + ".tls.test,ip:127.0.0.1"));
+        if (startDate != null) {
+            command.addAll(List.of("-startdate", startDate));
+        }
+        Process keytool = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(keytool.getInputStream().readAllBytes());
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output.trim());
+        }
+        return file;
+    }
+
+    private static SSLContext serverContext(File keystore) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keystore)) {
+            store.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, PASSWORD.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return context;
+    }
+}
@@ -0,0 +1,477 @@
+import javax.net.ssl.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.DSAKey;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TLS stage of service detection. On ports that normally speak TLS (443,
+ * 8443, 993, 995, ...) BannerGrabber runs a client handshake through an
+ * SSLEngine on its selector instead of waiting for a banner, then reads the
+ * negotiated protocol and cipher and the server certificate off the session
+ * and flags what is wrong with them: expired or not yet valid, expiring
+ * soon, self-signed, weak key or signature, no forward secrecy, weak or
+ * legacy ciphers and protocols.
+ *
+ * Nothing is verified. The trust manager accepts any chain, since the point
+ * is to look at certificates, broken ones included. Only what this JDK is
+ * willing to negotiate can be seen: a server that only speaks protocols
+ * disabled in java.security (TLS 1.1 and older by default) fails the
+ * handshake, and that failure is what gets reported.
+ *
+ * One client SSLContext is shared by every scan in the process. Its session
+ * cache is keyed by address and port, so a re-scan resumes sessions instead
+ * of redoing full handshakes. Delegated tasks (certificate parsing, key
+ * exchange) run on a small shared pool, so the selector thread only moves
+ * bytes.
+ */
+final class TlsInspector {
+    static final String DEFAULT_PORTS = "261,443,465,563,585,636,853,989-990,992-995,2083,2087,3269,5061,5986,6697,8443,9443";
+    private static final int SESSION_CACHE_SIZE = 20_000;
+    private static final int SESSION_TIMEOUT_SECONDS = 3600;
+    private static final long EXPIRY_WARNING_MILLIS = 30 * 86_400_000L;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final SSLContext CONTEXT = clientContext();
+    private static final AtomicInteger TASK_THREADS = new AtomicInteger();
+    private static final ExecutorService TASKS = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                Thread t = new Thread(r, "tls-tasks-" + TASK_THREADS.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    // Returned by Handshake.step once there is nothing left to wait for
+    static final int DONE = -1;
+
+    private TlsInspector() {
+    }
+
+    // Drops every cached client session, so the next handshake with each endpoint is a full one
+    static void forgetSessions() {
+        SSLSessionContext sessions = CONTEXT.getClientSessionContext();
+        for (java.util.Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements(); ) {
+            SSLSession session = sessions.getSession(ids.nextElement());
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+
+    // What one endpoint's handshake showed; protocol is null when it failed
+    static final class Result {
+        final String protocol;
+        final String cipher;
+        final String subject;
+        final String issuer;
+        final List<String> subjectAltNames;
+        final long notBefore;
+        final long notAfter;
+        final String key;           // e.g. "RSA 2048", "EC 256"
+        final String signature;
+        final boolean selfSigned;
+        final boolean resumed;
+        final long handshakeMillis;
+        final List<String> findings;
+        final String error;
+
+        private Result(String protocol, String cipher, X509Certificate leaf, boolean resumed, long handshakeMillis,
+                       String error) {
+            this.protocol = protocol;
+            this.cipher = cipher;
+            this.resumed = resumed;
+            this.handshakeMillis = handshakeMillis;
+            this.error = error;
+            this.subjectAltNames = new ArrayList<>();
+            if (leaf != null) {
+                subject = leaf.getSubjectX500Principal().getName();
+                issuer = leaf.getIssuerX500Principal().getName();
+                notBefore = leaf.getNotBefore().getTime();
+                notAfter = leaf.getNotAfter().getTime();
+                key = describe(leaf.getPublicKey());
+                signature = leaf.getSigAlgName();
+                selfSigned = isSelfSigned(leaf);
+                addAltNames(leaf, subjectAltNames);
+            } else {
+                subject = issuer = key = signature = "";
+                notBefore = notAfter = 0;
+                selfSigned = false;
+            }
+            this.findings = protocol != null ? assess(this, leaf, System.currentTimeMillis()) : List.of();
+        }
+
+        boolean isHandshaken() {
+            return protocol != null;
+        }
+
+        // Short name for the certificate: its CN, else the whole subject
+        String commonName() {
+            for (String part : subject.split(",")) {
+                if (part.startsWith("CN=")) {
+                    return part.substring(3);
+                }
+            }
+            return subject;
+        }
+
+        // Reported through serviceIdentified, so tables and stores that only know banners show it too
+        ServiceSignatures.Match toMatch(int port) {
+            return new ServiceSignatures.Match("ssl/" + PortServiceTable.get().name(port), protocol, toString());
+        }
+
+        @Override
+        public String toString() {
+            if (!isHandshaken()) {
+                return "handshake failed: " + error;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(protocol).append(' ').append(cipher);
+            if (!subject.isEmpty()) {
+                sb.append(", ").append(commonName()).append(", expires ")
+                        .append(new SimpleDateFormat("yyyy-MM-dd").format(new Date(notAfter)));
+            }
+            if (resumed) {
+                sb.append(", resumed");
+            }
+            if (!findings.isEmpty()) {
+                sb.append(" - ").append(String.join(", ", findings));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Client side of one handshake. The caller owns the channel and the
+     * selector; step() moves bytes until the engine needs something the
+     * socket doesn't have yet and says which interest ops to wait for.
+     * Not thread-safe: drive it from the selector thread only.
+     */
+    static final class Handshake {
+        private final SSLEngine engine;
+        private final long startedMillis = System.currentTimeMillis();
+        private ByteBuffer netIn;
+        private final ByteBuffer netOut;
+        private final ByteBuffer appIn;
+        private Result result;
+        private boolean awaitingTicket;
+
+        Handshake(int ip, int port) throws SSLException {
+            // Peer host and port key the session cache, which is what makes resumption work
+            engine = CONTEXT.createSSLEngine(Ipv4.toString(ip), port);
+            engine.setUseClientMode(true);
+            SSLSession session = engine.getSession();
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            engine.beginHandshake();
+        }
+
+        /**
+         * Advances the handshake. Returns the SelectionKey interest ops to
+         * wait for, 0 while delegated tasks run (tasksDone is called once
+         * they have, from another thread), or DONE when result() is ready.
+         * An exception means the handshake failed; see failed().
+         */
+        int step(SocketChannel channel, Runnable tasksDone) throws IOException {
+            if (netOut.position() > 0 && !flush(channel)) {
+                return SelectionKey.OP_WRITE;
+            }
+            if (awaitingTicket) {
+                return readTicket(channel);
+            }
+            while (true) {
+                SSLEngineResult r;
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_WRAP:
+                        r = engine.wrap(EMPTY, netOut);
+                        if (!flush(channel)) {
+                            return SelectionKey.OP_WRITE;
+                        }
+                        if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("Handshake aborted");
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        netIn.flip();
+                        r = engine.unwrap(netIn, appIn);
+                        netIn.compact();
+                        // No application data is expected during a handshake
+                        appIn.clear();
+                        if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("Server closed the connection during the handshake");
+                        }
+                        if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            if (!netIn.hasRemaining()) {
+                                netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                            }
+                            int n = channel.read(netIn);
+                            if (n < 0) {
+                                throw new EOFException("Server closed the connection during the handshake");
+                            }
+                            if (n == 0) {
+                                return SelectionKey.OP_READ;
+                            }
+                        }
+                        break;
+                    case NEED_TASK:
+                        TASKS.execute(() -> {
+                            Runnable task;
+                            while ((task = engine.getDelegatedTask()) != null) {
+                                task.run();
+                            }
+                            tasksDone.run();
+                        });
+                        return 0;
+                    default:
+                        // FINISHED or NOT_HANDSHAKING: the handshake is over
+                        result = complete();
+                        if (!"TLSv1.3".equals(result.protocol)) {
+                            return DONE;
+                        }
+                        // TLS 1.3 servers send the session ticket after the handshake; without it there's nothing to resume
+                        awaitingTicket = true;
+                        return readTicket(channel);
+                }
+            }
+        }
+
+        boolean isAwaitingTicket() {
+            return awaitingTicket;
+        }
+
+        Result result() {
+            return result;
+        }
+
+        // What to report when the caller gives up: the handshake if it completed, else a timeout
+        Result timedOut() {
+            return result != null ? result : failed("no answer before the timeout");
+        }
+
+        Result failed(IOException e) {
+            return failed(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        }
+
+        private Result failed(String why) {
+            engine.closeOutbound();
+            return new Result(null, null, null, false, System.currentTimeMillis() - startedMillis, why);
+        }
+
+        private int readTicket(SocketChannel channel) throws IOException {
+            boolean progressed = false;
+            int n = channel.read(netIn);
+            netIn.flip();
+            while (netIn.hasRemaining()) {
+                SSLEngineResult r = engine.unwrap(netIn, appIn);
+                appIn.clear();
+                if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    // Storing a ticket is cheap; not worth a trip to the pool
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                }
+                if (r.getStatus() != SSLEngineResult.Status.OK) {
+                    break;
+                }
+                progressed |= r.bytesConsumed() > 0;
+            }
+            netIn.compact();
+            return progressed || n < 0 ? DONE : SelectionKey.OP_READ;
+        }
+
+        private boolean flush(SocketChannel channel) throws IOException {
+            netOut.flip();
+            channel.write(netOut);
+            boolean flushed = !netOut.hasRemaining();
+            netOut.compact();
+            return flushed;
+        }
+
+        private Result complete() {
+            SSLSession session = engine.getSession();
+            X509Certificate leaf = null;
+            try {
+                Certificate[] chain = session.getPeerCertificates();
+                if (chain.length > 0 && chain[0] instanceof X509Certificate) {
+                    leaf = (X509Certificate) chain[0];
+                }
+            } catch (SSLPeerUnverifiedException e) {
+                // Anonymous suite: nothing to look at, which assess() flags through the cipher name
+            }
+            // A resumed session was created by an earlier handshake
+            boolean resumed = session.getCreationTime() < startedMillis;
+            return new Result(session.getProtocol(), session.getCipherSuite(), leaf, resumed,
+                    System.currentTimeMillis() - startedMillis, null);
+        }
+    }
+
+    private static List<String> assess(Result r, X509Certificate leaf, long now) {
+        List<String> findings = new ArrayList<>();
+        if (leaf != null) {
+            SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+            if (now > r.notAfter) {
+                findings.add("expired " + day.format(new Date(r.notAfter)));
+            } else if (r.notAfter - now < EXPIRY_WARNING_MILLIS) {
+                findings.add("expires in " + (r.notAfter - now) / 86_400_000L + " days");
+            }
+            if (now < r.notBefore) {
+                findings.add("not valid until " + day.format(new Date(r.notBefore)));
+            }
+            if (r.selfSigned) {
+                findings.add("self-signed");
+            }
+            if (isWeakKey(leaf.getPublicKey())) {
+                findings.add("weak key (" + r.key + ")");
+            }
+            String sig = r.signature.toUpperCase();
+            if (sig.contains("MD5") || sig.contains("SHA1")) {
+                findings.add("weak signature (" + r.signature + ")");
+            }
+        } else {
+            findings.add("no certificate");
+        }
+        if (r.protocol.startsWith("SSL") || r.protocol.equals("TLSv1") || r.protocol.equals("TLSv1.1")) {
+            findings.add("legacy protocol " + r.protocol);
+        }
+        String cipher = r.cipher;
+        if (cipher.contains("_anon_") || cipher.contains("_NULL_") || cipher.contains("_RC4_")
+                || cipher.contains("_DES_") || cipher.contains("_3DES_") || cipher.contains("_EXPORT")) {
+            findings.add("weak cipher");
+        } else if (cipher.startsWith("TLS_RSA_") || cipher.startsWith("SSL_RSA_")) {
+            findings.add("no forward secrecy");
+        }
+        if (cipher.contains("_CBC_")) {
+            findings.add("CBC cipher");
+        }
+        return findings;
+    }
+
+    private static boolean isWeakKey(PublicKey key) {
+        if (key instanceof RSAKey) {
+            return ((RSAKey) key).getModulus().bitLength() < 2048;
+        }
+        if (key instanceof DSAKey) {
+            return ((DSAKey) key).getParams().getP().bitLength() < 2048;
+        }
+        if (key instanceof ECKey) {
+            return ((ECKey) key).getParams().getOrder().bitLength() < 256;
+        }
+        return false;
+    }
+
+    private static String describe(PublicKey key) {
+        if (key instanceof RSAKey) {
+            return "RSA " + ((RSAKey) key).getModulus().bitLength();
+        }
+        if (key instanceof DSAKey) {
+            return "DSA " + ((DSAKey) key).getParams().getP().bitLength();
+        }
+        if (key instanceof ECKey) {
+            return "EC " + ((ECKey) key).getParams().getOrder().bitLength();
+        }
+        return key.getAlgorithm();
+    }
+
+    private static boolean isSelfSigned(X509Certificate cert) {
+        if (!cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal())) {
+            return false;
+        }
+        try {
+            cert.verify(cert.getPublicKey());
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    // DNS and IP entries only, as "DNS:host" / "IP:addr"
+    private static void addAltNames(X509Certificate cert, List<String> names) {
+        try {
+            Collection<List<?>> entries = cert.getSubjectAlternativeNames();
+            if (entries == null) {
+                return;
+            }
+            for (List<?> entry : entries) {
+                int type = (Integer) entry.get(0);
+                if (type == 2) {
+                    names.add("DNS:" + entry.get(1));
+                } else if (type == 7) {
+                    names.add("IP:" + entry.get(1));
+                }
+            }
+        } catch (CertificateParsingException e) {
+            // An unreadable extension just means no alternative names to show
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int atLeast) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(atLeast, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static SSLContext clientContext() {
+        // Inspection only: every chain is accepted and looked at afterwards
+        TrustManager acceptAll = new X509ExtendedTrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[]{acceptAll}, null);
+            context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return context;
+        } catch (GeneralSecurityException e) {
+            // Every JDK ships a TLS provider
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+// Classic token bucket: refills at a fixed rate up to a burst ceiling.
+// Not thread-safe; callers guard it with their own lock.
+class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double perSecond, double burst, long nowNanos) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = nowNanos;
+    }
+
+    // Bucket allowing roughly 50 ms worth of traffic in one burst
+    static TokenBucket perSecond(double perSecond, long nowNanos) {
+        return new TokenBucket(perSecond, perSecond / 20, nowNanos);
+    }
+
+    boolean tryTake(long nowNanos) {
+        refill(nowNanos);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    int available(long nowNanos) {
+        refill(nowNanos);
+        return (int) tokens;
+    }
+
+    long nanosUntilAvailable(long nowNanos) {
+        refill(nowNanos);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * tokensPerNano);
+            lastRefill = nowNanos;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request datagrams for UDP scanning. Most UDP services stay silent on an
+ * empty or malformed datagram, so for well-known ports we send a small valid
+ * request the service must answer (a DNS query, an NTP client packet, an
+ * SNMP get...). Other ports get a bare CRLF, which line-based services
+ * often answer and which at least provokes an ICMP port-unreachable when
+ * the port is closed.
+ */
+final class UdpPayloads {
+    // Not empty: DatagramChannel.write sends nothing at all for an empty buffer
+    private static final byte[] DEFAULT = {'\r', '\n'};
+    private static final byte[][] BY_PORT = new byte[65536][];
+
+    static {
+        // DNS: NS query for the root zone
+        BY_PORT[53] = dnsQuery("", 2, 1);
+        // TFTP: read request for a file that won't exist; servers answer with an error packet
+        BY_PORT[69] = concat(new byte[] {0, 1}, ascii("scan-probe\0octet\0"));
+        // Sun RPC portmapper: NULL procedure call
+        BY_PORT[111] = bytes(0x12, 0x34, 0x56, 0x78, 0, 0, 0, 0, 0, 0, 0, 2, 0, 1, 0x86, 0xa0,
+                0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        // NTP: version 3 client request
+        byte[] ntp = new byte[48];
+        ntp[0] = 0x1b;
+        BY_PORT[123] = ntp;
+        // NetBIOS: node status request for the wildcard name
+        BY_PORT[137] = concat(bytes(0x12, 0x34, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0x20),
+                ascii("CKAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"), bytes(0, 0, 0x21, 0, 1));
+        // SNMPv1 GetRequest for sysDescr.0 with community "public"
+        BY_PORT[161] = bytes(0x30, 0x29, 0x02, 0x01, 0x00, 0x04, 0x06, 'p', 'u', 'b', 'l', 'i', 'c',
+                0xa0, 0x1c, 0x02, 0x04, 0x12, 0x34, 0x56, 0x78, 0x02, 0x01, 0x00, 0x02, 0x01, 0x00,
+                0x30, 0x0e, 0x30, 0x0c, 0x06, 0x08, 0x2b, 0x06, 0x01, 0x02, 0x01, 0x01, 0x01, 0x00, 0x05, 0x00);
+        // SSDP: discover everything
+        BY_PORT[1900] = ascii("M-SEARCH * HTTP/1.1\r\nHOST: 239.255.255.250:1900\r\n"
+                + "MAN: \"ssdp:discover\"\r\nMX: 1\r\nST: ssdp:all\r\n\r\n");
+        // SIP: OPTIONS ping
+        BY_PORT[5060] = ascii("OPTIONS sip:probe SIP/2.0\r\nVia: SIP/2.0/UDP probe;branch=z9hG4bK-scan\r\n"
+                + "From: <sip:probe@probe>;tag=scan\r\nTo: <sip:probe@probe>\r\nCall-ID: scan-probe\r\n"
+                + "CSeq: 1 OPTIONS\r\nMax-Forwards: 70\r\nContent-Length: 0\r\n\r\n");
+        // mDNS: service enumeration, asking for a unicast reply
+        BY_PORT[5353] = dnsQuery("_services._dns-sd._udp.local", 12, 0x8001);
+        // memcached: UDP frame header followed by "stats"
+        BY_PORT[11211] = concat(bytes(0, 1, 0, 0, 0, 1, 0, 0), ascii("stats\r\n"));
+    }
+
+    private UdpPayloads() {
+    }
+
+    // The request to send to port; shared, callers must not modify it
+    static byte[] forPort(int port) {
+        byte[] payload = BY_PORT[port];
+        return payload != null ? payload : DEFAULT;
+    }
+
+    private static byte[] dnsQuery(String name, int type, int qclass) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(bytes(0x12, 0x34, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0));
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.")) {
+                out.write(label.length());
+                out.writeBytes(ascii(label));
+            }
+        }
+        out.write(0);
+        out.writeBytes(bytes(type >> 8, type, qclass >> 8, qclass));
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}